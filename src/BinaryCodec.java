@@ -0,0 +1,366 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The BinaryCodec packs RPCs into a compact, fixed layout (protocol version 2). Every field is written big-endian
+ * straight into a byte array that the connection reuses from frame to frame, and read back from the received frame
+ * without any intermediate streams:
+ *   RPC name:  1 byte opcode
+ *   PeerID:    1 byte address length (4 or 16, 0 for an unresolved host name followed by a string), address, 2 byte port
+ *   MessageID: PeerID followed by a 4 byte sequence number
+ *   TTL:       1 byte
+ *   String:    2 byte length (0xFFFF for null) followed by the UTF-8 bytes
+ *   Bytes:     4 byte length (-1 for null) followed by the bytes
+ *   DanFile:   1 byte present flag, filename, version, origin server, 1 byte consistency, last modified time, last
+ *              polled time, TTR, content hash and Merkle root (strings, null if not known)
+ *   PollResult: 1 byte out of date flag followed by the 8 byte TTR
+ */
+public class BinaryCodec {
+  public static final int MAX_CACHED_PEERS = 4096; // How many decoded PeerIDs are kept for reuse
+
+  // Opcodes are the index of the RPC's name, 0 is never sent
+  private static final String[] RPCS = {null, "query", "hitQuery", "obtain", "invalidate", "poll", "ping", "pong",
+      "obtainRange", "batch", "routeTable", "search",
+      "searchHit", "walk", "walkCheck", "cancel"};
+
+  // PeerIDs decoded from IPv4 addresses, keyed by address and port, so that hot peers aren't decoded every time
+  private static final Map<Long, PeerID> peers = new ConcurrentHashMap<Long, PeerID>();
+
+  /**
+   * Writes fields into a growing byte array. The first four bytes are left free for the frame's length prefix.
+   */
+  public static class Writer implements MessageWriter {
+    private byte[] buffer = new byte[256]; // Frame being written, reused for every frame
+    private int position; // Where the next byte goes
+
+    public Writer(){
+      reset();
+    }
+
+    /**
+     * Starts a new frame in the same buffer
+     */
+    public void reset(){
+      position = 4;
+    }
+
+    /**
+     * Fills in the length prefix and returns the whole frame
+     * @return the buffer, holding the length prefix followed by the frame up to getLength()
+     */
+    public byte[] finish(){
+      int length = position - 4;
+      buffer[0] = (byte) (length >>> 24);
+      buffer[1] = (byte) (length >>> 16);
+      buffer[2] = (byte) (length >>> 8);
+      buffer[3] = (byte) length;
+      return buffer;
+    }
+
+    public int getLength(){
+      return position;
+    }
+
+    public void writeRpc(String rpc) throws IOException {
+      for(int i = 1; i < RPCS.length; i++){
+        if(RPCS[i].equals(rpc)){
+          writeByte(i);
+          return;
+        }
+      }
+      throw new IOException("No opcode for " + rpc);
+    }
+
+    public void writePeerID(PeerID peerID) throws IOException {
+      byte[] raw = peerID.getRawAddress();
+      if(raw != null){
+        writeByte(raw.length);
+        ensure(raw.length);
+        System.arraycopy(raw, 0, buffer, position, raw.length);
+        position += raw.length;
+      } else {
+        writeByte(0);
+        writeString(peerID.getAddress());
+      }
+      ensure(2);
+      buffer[position++] = (byte) (peerID.getPort() >>> 8);
+      buffer[position++] = (byte) peerID.getPort();
+    }
+
+    public void writeMessageID(MessageID messageID) throws IOException {
+      writePeerID(messageID.getPeerID());
+      writeInt(messageID.getSequenceNumber());
+    }
+
+    public void writeTTL(int TTL){
+      writeByte(Math.max(0, Math.min(TTL, 255)));
+    }
+
+    public void writeInt(int value){
+      ensure(4);
+      buffer[position++] = (byte) (value >>> 24);
+      buffer[position++] = (byte) (value >>> 16);
+      buffer[position++] = (byte) (value >>> 8);
+      buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value){
+      writeInt((int) (value >>> 32));
+      writeInt((int) value);
+    }
+
+    public void writeBoolean(boolean value){
+      writeByte(value ? 1 : 0);
+    }
+
+    public void writeString(String value) throws IOException {
+      if(value == null){
+        writeShort(0xFFFF);
+        return;
+      }
+
+      // Most names are plain ASCII, which can be copied without encoding into a temporary array
+      int length = value.length();
+      boolean ascii = length < 0xFFFF;
+      for(int i = 0; i < length && ascii; i++){
+        ascii = value.charAt(i) < 0x80;
+      }
+      if(ascii){
+        writeShort(length);
+        ensure(length);
+        for(int i = 0; i < length; i++){
+          buffer[position++] = (byte) value.charAt(i);
+        }
+        return;
+      }
+
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      if(bytes.length >= 0xFFFF){
+        throw new IOException("String too long for a frame");
+      }
+      writeShort(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    public void writeBytes(byte[] value){
+      if(value == null){
+        writeInt(-1);
+        return;
+      }
+      writeInt(value.length);
+      ensure(value.length);
+      System.arraycopy(value, 0, buffer, position, value.length);
+      position += value.length;
+    }
+
+    public void writeDanFile(DanFile danFile) throws IOException {
+      writeBoolean(danFile != null);
+      if(danFile == null){
+        return;
+      }
+      writeString(danFile.getFilename());
+      writeInt(danFile.getVersion());
+      writePeerID(danFile.getOriginServer());
+      writeByte(danFile.getConsistency());
+      writeLong(danFile.getLastModifiedTime());
+      writeLong(danFile.getLastPolledTime());
+      writeLong(danFile.getTTR());
+      writeString(danFile.getHash());
+      writeString(danFile.getRoot());
+    }
+
+    public void writePollResult(PollResult result){
+      writeBoolean(result.isOutOfDate());
+      writeLong(result.getNewTTR());
+    }
+
+    private void writeByte(int value){
+      ensure(1);
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeShort(int value){
+      ensure(2);
+      buffer[position++] = (byte) (value >>> 8);
+      buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Grows the buffer if the next bytes don't fit
+     * @param count number of bytes about to be written
+     */
+    private void ensure(int count){
+      if(position + count > buffer.length){
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+      }
+    }
+  }
+
+  /**
+   * Reads fields from a received frame
+   */
+  public static class Reader implements MessageReader {
+    private byte[] buffer; // The frame being read
+    private int position; // Where the next byte comes from
+    private int limit; // End of the frame
+
+    public Reader(byte[] buffer, int length){
+      reset(buffer, length);
+    }
+
+    /**
+     * Starts reading another frame
+     * @param buffer the frame
+     * @param length the length of the frame
+     */
+    public void reset(byte[] buffer, int length){
+      this.buffer = buffer;
+      this.position = 0;
+      this.limit = length;
+    }
+
+    public String readRpc() throws IOException {
+      int opcode = readByte();
+      if(opcode < 1 || opcode >= RPCS.length){
+        throw new StreamCorruptedException("Unknown opcode " + opcode);
+      }
+      return RPCS[opcode];
+    }
+
+    public PeerID readPeerID() throws IOException {
+      int length = readByte();
+      if(length == 0){
+        // Host name that couldn't be resolved by the sender
+        String address = readString();
+        return new PeerID(address, readShort());
+      }
+      if(length != 4 && length != 16){
+        throw new StreamCorruptedException("Invalid address length " + length);
+      }
+
+      require(length + 2);
+      int start = position;
+      position += length;
+      int port = readShort();
+
+      // Reuse the PeerID we made the last time this IPv4 address and port came by
+      Long key = null;
+      if(length == 4){
+        key = ((long) (buffer[start] & 0xFF) << 40) | ((long) (buffer[start + 1] & 0xFF) << 32)
+            | ((long) (buffer[start + 2] & 0xFF) << 24) | ((long) (buffer[start + 3] & 0xFF) << 16) | port;
+        PeerID cached = peers.get(key);
+        if(cached != null){
+          return cached;
+        }
+      }
+
+      PeerID peerID = new PeerID(Arrays.copyOfRange(buffer, start, start + length), port);
+      if(key != null && peers.size() < MAX_CACHED_PEERS){
+        peers.put(key, peerID);
+      }
+      return peerID;
+    }
+
+    public MessageID readMessageID() throws IOException {
+      PeerID peerID = readPeerID();
+      return new MessageID(peerID, readInt());
+    }
+
+    public int readTTL() throws IOException {
+      return readByte();
+    }
+
+    public int readInt() throws IOException {
+      require(4);
+      int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+          | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+      position += 4;
+      return value;
+    }
+
+    public long readLong() throws IOException {
+      long high = readInt();
+      return (high << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public boolean readBoolean() throws IOException {
+      return readByte() != 0;
+    }
+
+    public String readString() throws IOException {
+      int length = readShort();
+      if(length == 0xFFFF){
+        return null;
+      }
+      require(length);
+      String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    public byte[] readBytes() throws IOException {
+      int length = readInt();
+      if(length == -1){
+        return null;
+      }
+      if(length < 0){
+        throw new StreamCorruptedException("Invalid length " + length);
+      }
+      require(length);
+      byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+      position += length;
+      return value;
+    }
+
+    public DanFile readDanFile() throws IOException {
+      if(!readBoolean()){
+        return null;
+      }
+      DanFile danFile = new DanFile(readString());
+      danFile.setVersion(readInt());
+      danFile.setOriginServer(readPeerID());
+      danFile.setConsistency(readByte());
+      danFile.setLastModifiedTime(readLong());
+      danFile.setLastPolledTime(readLong());
+      danFile.setTTR(readLong());
+      danFile.setHash(readString());
+      danFile.setRoot(readString());
+      return danFile;
+    }
+
+    public PollResult readPollResult() throws IOException {
+      boolean outOfDate = readBoolean();
+      return new PollResult(outOfDate, readLong());
+    }
+
+    private int readByte() throws IOException {
+      require(1);
+      return buffer[position++] & 0xFF;
+    }
+
+    private int readShort() throws IOException {
+      require(2);
+      int value = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+      position += 2;
+      return value;
+    }
+
+    /**
+     * Makes sure the frame holds enough bytes for the next field
+     * @param count number of bytes about to be read
+     * @throws EOFException if the frame ends too early
+     */
+    private void require(int count) throws EOFException {
+      if(position + count > limit){
+        throw new EOFException("Frame ended early");
+      }
+    }
+  }
+}
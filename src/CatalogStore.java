@@ -0,0 +1,298 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The CatalogStore keeps a peer's catalog on disk, so that a peer that restarts comes back with every file it had,
+ * downloaded ones included, along with their versions, origin servers, consistency states, poll times and hashes,
+ * instead of rebuilding its own files at version 0 and forgetting the rest. Loading it only reads one small file, so
+ * the peer is up right away and checks the catalog against the files on disk afterwards (see Peer.reconcile).
+ *
+ * Every change to a file is appended to LOG_FILE as a record holding the whole DanFile, so a change costs one small
+ * write, and when the log is read back the last record for a file is the one that counts. Once the log holds
+ * CHECKPOINT_FACTOR times as many records as the catalog has files, and at least MIN_CHECKPOINT, it is checkpointed:
+ * rewritten with one record per file into a new file that then replaces the old one, so a crash part way through
+ * leaves one of the two whole. Each record carries its length and a CRC32, so a record cut short by a crash is found
+ * and dropped along with anything after it. The log starts with MAGIC and FORMAT, then holds records:
+ *   length (4 bytes), CRC32 of the rest (4 bytes), type (1 byte), filename, and for a PUT: version, origin server
+ *   address and port, consistency (1 byte), last modified time, last polled time, TTR, hash and Merkle root (each a 1
+ *   byte present flag followed by the string)
+ */
+public class CatalogStore {
+  public static final String LOG_FILE = "catalog.log"; // Where the catalog is kept
+  public static final int PUT = 1, REMOVE = 2; // Types of records
+  public static final int MIN_CHECKPOINT = 1024; // Records in the log before it is ever checkpointed
+  public static final int CHECKPOINT_FACTOR = 2; // Records per file in the log that trigger a checkpoint
+  private static final int MAGIC = 0x44414E43; // "DANC", marks the file as a catalog log
+  private static final int FORMAT = 1; // Version of the layout
+  private static final int HEADER = 4 + 4; // Bytes taken by MAGIC and FORMAT
+
+  private File file; // The log
+  private DataOutputStream out; // Appends to the log, null until it is opened
+  private int records; // Records in the log
+
+  private long appended; // Records appended since the peer started
+  private int checkpoints; // Times the log was checkpointed since the peer started
+
+  /**
+   * Creates a store kept in the given file. Nothing is read or written until load, append or checkpoint is called.
+   * @param path where the log is
+   */
+  public CatalogStore(String path){
+    this.file = new File(path);
+  }
+
+  /**
+   * Reads the catalog back from the log. A record cut short at the end of the log is cut off, so that new records
+   * follow the last whole one.
+   * @return the files, in the order they were first added, or null if there is no log or it isn't a catalog log
+   */
+  public synchronized List<DanFile> load(){
+    if(!file.exists()){
+      return null;
+    }
+
+    Map<String, DanFile> files = new LinkedHashMap<String, DanFile>();
+    long end = HEADER; // End of the last whole record
+    try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+      if(raf.length() < HEADER || raf.readInt() != MAGIC || raf.readInt() != FORMAT){
+        System.out.println(file + " isn't a catalog log this peer can read. Ignoring it.");
+        return null;
+      }
+
+      CRC32 crc = new CRC32();
+      while(true){
+        byte[] record;
+        int checksum;
+        try {
+          int length = raf.readInt();
+          checksum = raf.readInt();
+          if(length < 1 || length > raf.length() - raf.getFilePointer()){
+            break; // Cut short
+          }
+          record = new byte[length];
+          raf.readFully(record);
+        } catch (EOFException e){
+          break; // Cut short, or simply the end
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        if((int) crc.getValue() != checksum){
+          break; // Damaged
+        }
+
+        DanFile danFile = read(record);
+        if(record[0] == PUT){
+          files.put(danFile.getFilename(), danFile);
+        } else {
+          files.remove(danFile.getFilename());
+        }
+        records++;
+        end = raf.getFilePointer();
+      }
+
+      if(end < raf.length()){
+        System.out.println("Dropped " + (raf.length() - end) + " bytes cut short at the end of " + file + ".");
+        raf.setLength(end);
+      }
+    } catch (IOException e){
+      e.printStackTrace();
+      return null;
+    }
+
+    return new ArrayList<DanFile>(files.values());
+  }
+
+  /**
+   * Appends the current state of a file to the log
+   * @param danFile the file that was added or changed
+   */
+  public synchronized void put(DanFile danFile){
+    append(write(PUT, danFile.getFilename(), danFile));
+  }
+
+  /**
+   * Appends the removal of a file to the log
+   * @param filename the name of the file that is gone
+   */
+  public synchronized void remove(String filename){
+    append(write(REMOVE, filename, null));
+  }
+
+  /**
+   * Checks whether the log has grown enough to be worth checkpointing
+   * @param size how many files the catalog has
+   * @return true if it should be checkpointed
+   */
+  public synchronized boolean isDue(int size){
+    return records >= MIN_CHECKPOINT && records >= CHECKPOINT_FACTOR * size;
+  }
+
+  /**
+   * Rewrites the log with a single record for each file
+   * @param files every file in the catalog
+   */
+  public synchronized void checkpoint(List<DanFile> files){
+    File next = new File(file.getPath() + ".tmp");
+    try {
+      try(FileOutputStream fos = new FileOutputStream(next);
+          DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))){
+        dos.writeInt(MAGIC);
+        dos.writeInt(FORMAT);
+        for(DanFile danFile : files){
+          dos.write(write(PUT, danFile.getFilename(), danFile));
+        }
+        dos.flush();
+        fos.getFD().sync(); // The new log must be whole before it replaces the old one
+      }
+
+      close();
+      Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      records = files.size();
+      checkpoints++;
+    } catch (IOException e){
+      e.printStackTrace();
+      next.delete();
+    }
+  }
+
+  /**
+   * Writes a framed record to the end of the log, starting a new log if there isn't one
+   * @param record the record, framed
+   */
+  private void append(byte[] record){
+    try {
+      if(out == null){
+        boolean fresh = !file.exists() || file.length() < HEADER;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh)));
+        if(fresh){
+          out.writeInt(MAGIC);
+          out.writeInt(FORMAT);
+          records = 0;
+        }
+      }
+      out.write(record);
+      out.flush();
+      records++;
+      appended++;
+    } catch (IOException e){
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Closes the log. The next record appended opens it again.
+   */
+  private void close() throws IOException {
+    if(out != null){
+      out.close();
+      out = null;
+    }
+  }
+
+  /**
+   * Packs a record and frames it with its length and CRC32
+   * @param type PUT or REMOVE
+   * @param filename the name of the file
+   * @param danFile the file, null for a REMOVE
+   * @return the framed record
+   */
+  private static byte[] write(int type, String filename, DanFile danFile){
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      DataOutputStream dos = new DataOutputStream(bytes);
+      dos.writeInt(0); // Length and CRC32, filled in below
+      dos.writeInt(0);
+      dos.writeByte(type);
+      dos.writeUTF(filename);
+      if(type == PUT){
+        dos.writeInt(danFile.getVersion());
+        dos.writeUTF(danFile.getOriginServer().getAddress());
+        dos.writeInt(danFile.getOriginServer().getPort());
+        dos.writeByte(danFile.getConsistency());
+        dos.writeLong(danFile.getLastModifiedTime());
+        dos.writeLong(danFile.getLastPolledTime());
+        dos.writeLong(danFile.getTTR());
+        writeString(dos, danFile.getHash());
+        writeString(dos, danFile.getRoot());
+      }
+      dos.flush();
+
+      byte[] record = bytes.toByteArray();
+      int length = record.length - 8;
+      CRC32 crc = new CRC32();
+      crc.update(record, 8, length);
+      int checksum = (int) crc.getValue();
+      for(int i = 0; i < 4; i++){
+        record[i] = (byte) (length >>> (24 - 8 * i));
+        record[4 + i] = (byte) (checksum >>> (24 - 8 * i));
+      }
+      return record;
+    } catch (IOException e){
+      throw new IllegalStateException(e); // Writing to memory doesn't fail
+    }
+  }
+
+  /**
+   * Unpacks a record
+   * @param record the record, without its length and CRC32
+   * @return the DanFile it holds, with only its filename for a REMOVE
+   * @throws IOException if the record is malformed
+   */
+  private static DanFile read(byte[] record) throws IOException {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+    int type = dis.readByte();
+    DanFile danFile = new DanFile(dis.readUTF());
+    if(type == PUT){
+      danFile.setVersion(dis.readInt());
+      danFile.setOriginServer(new PeerID(dis.readUTF(), dis.readInt()));
+      danFile.setConsistency(dis.readByte());
+      danFile.setLastModifiedTime(dis.readLong());
+      danFile.setLastPolledTime(dis.readLong());
+      danFile.setTTR(dis.readLong());
+      danFile.setHash(readString(dis));
+      danFile.setRoot(readString(dis));
+    }
+    return danFile;
+  }
+
+  /**
+   * Writes a string that may be null
+   */
+  private static void writeString(DataOutputStream dos, String value) throws IOException {
+    dos.writeBoolean(value != null);
+    if(value != null){
+      dos.writeUTF(value);
+    }
+  }
+
+  /**
+   * Reads a string that may be null
+   */
+  private static String readString(DataInputStream dis) throws IOException {
+    return dis.readBoolean() ? dis.readUTF() : null;
+  }
+
+  /**
+   * Returns a one line summary of the log for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    return String.format("  log: %d records, %d bytes; appended: %d; checkpoints: %d", records, file.length(),
+        appended, checkpoints);
+  }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CatalogWatcher keeps the catalog up to date with the peer's own files while it runs. It asks the operating system
+ * to report files created, modified and deleted in Peer.MY_FILES_DIR, and hands each changed file to Peer.fileChanged,
+ * so the directory is never scanned again, however large it is.
+ *
+ * Copying or saving a file sets off a burst of events, so a file is only looked at once it has gone QUIET milliseconds
+ * without any. A file changed many times in a row is then hashed and published once. If the operating system reports
+ * that it dropped events because too many came at once, the whole directory is checked instead (see Peer.reconcile),
+ * once things have been quiet as long.
+ *
+ * The startup check of the catalog against the disk also runs on the watcher's thread, once the directory is watched.
+ * A change made while the check runs waits until it is done, instead of racing it and leaving the catalog with a hash
+ * that was already out of date.
+ */
+public class CatalogWatcher {
+  public static final long QUIET = 500; // Milliseconds a file must go without events before its change is applied
+
+  private Peer peer; // The peer whose files are watched
+  private Map<String, Long> pending = new LinkedHashMap<String, Long>(); // Changed files by last event, oldest first
+  private long overflowed = -1; // When events were last dropped, -1 if they haven't been since the last check
+
+  private long events; // Events reported
+  private long applied; // Changes handed to the peer
+  private long overflows; // Times events were dropped
+
+  /**
+   * Creates a watcher for the given peer's own files. Nothing is watched until watch runs.
+   * @param peer the peer
+   */
+  public CatalogWatcher(Peer peer){
+    this.peer = peer;
+  }
+
+  /**
+   * Checks the catalog against the own files, then watches them and applies their changes, until the directory can't
+   * be watched anymore. Runs on its own thread.
+   */
+  public void watch(){
+    Path dir = Paths.get(Peer.MY_FILES_DIR);
+    boolean reconciled = false;
+    try(WatchService service = FileSystems.getDefault().newWatchService()){
+      dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+
+      // Every change from here on is reported, and is applied once the check is done
+      peer.reconcile();
+      reconciled = true;
+
+      while(true){
+        // Wait for events, but no longer than until the oldest pending change has been quiet long enough
+        long wait = timeout(System.currentTimeMillis());
+        WatchKey key = wait < 0 ? service.take() : service.poll(wait, TimeUnit.MILLISECONDS);
+        if(key != null){
+          long now = System.currentTimeMillis();
+          for(WatchEvent<?> event : key.pollEvents()){
+            record(event, now);
+          }
+          if(!key.reset()){
+            System.out.println(dir + " can't be watched anymore. Changes to it show up at the next start.");
+            return;
+          }
+        }
+        apply(System.currentTimeMillis());
+      }
+    } catch (IOException | InterruptedException e){
+      e.printStackTrace();
+    }
+
+    if(!reconciled){
+      peer.reconcile(); // The directory couldn't be watched, but the catalog still needs checking
+    }
+  }
+
+  /**
+   * Notes a file that changed, or that events were dropped
+   * @param event the event
+   * @param now when it was received
+   */
+  private synchronized void record(WatchEvent<?> event, long now){
+    events++;
+    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+      overflows++;
+      overflowed = now;
+      return;
+    }
+    String filename = ((Path) event.context()).toString();
+    pending.remove(filename); // Put it back at the end, so the map stays in the order of the last events
+    pending.put(filename, now);
+  }
+
+  /**
+   * Works out how long to wait for events
+   * @param now the current time
+   * @return milliseconds until the oldest pending change is due, -1 if there is nothing pending
+   */
+  private synchronized long timeout(long now){
+    long due = -1;
+    if(!pending.isEmpty()){
+      due = pending.values().iterator().next() + QUIET;
+    }
+    if(overflowed >= 0){
+      due = due < 0 ? overflowed + QUIET : Math.min(due, overflowed + QUIET);
+    }
+    return due < 0 ? -1 : Math.max(1, due - now);
+  }
+
+  /**
+   * Hands the peer every change that has been quiet long enough
+   * @param now the current time
+   */
+  private void apply(long now){
+    boolean rescan = false;
+    Map<String, Long> due = new LinkedHashMap<String, Long>();
+    synchronized(this){
+      Iterator<Map.Entry<String, Long>> iterator = pending.entrySet().iterator();
+      while(iterator.hasNext()){
+        Map.Entry<String, Long> entry = iterator.next();
+        if(entry.getValue() + QUIET > now){
+          break; // The rest changed even later
+        }
+        due.put(entry.getKey(), entry.getValue());
+        iterator.remove();
+      }
+      if(overflowed >= 0 && overflowed + QUIET <= now){
+        rescan = true;
+        overflowed = -1;
+        pending.clear(); // Checked along with everything else
+      }
+      applied += due.size();
+    }
+
+    // Outside the lock, since hashing a large file takes a while
+    if(rescan){
+      System.out.println("Too many changes to " + Peer.MY_FILES_DIR + " at once to follow, checking all of it.");
+      peer.reconcile();
+      return;
+    }
+    for(String filename : due.keySet()){
+      peer.fileChanged(filename);
+    }
+  }
+
+  /**
+   * Returns a one line summary of the watcher for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    return String.format("  watcher: %d events; %d changes applied; %d pending; %d overflows", events, applied,
+        pending.size(), overflows);
+  }
+}
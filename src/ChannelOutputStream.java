@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Stream that writes to a non-blocking channel served by the NioListener. A worker writing a reply waits on its own
+ * selector whenever the other peer isn't reading fast enough, so the selector threads never block on a write.
+ */
+public class ChannelOutputStream extends OutputStream {
+  public static final int WRITE_TIMEOUT = 1000 * 30; // How long a reply may wait for a peer that isn't reading
+
+  private SocketChannel channel; // Channel to write to
+  private Selector selector; // Selector to wait on when the channel is full, opened the first time it's needed
+
+  public ChannelOutputStream(SocketChannel channel){
+    this.channel = channel;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+    while(buffer.hasRemaining()){
+      if(channel.write(buffer) == 0){
+        awaitWritable();
+      }
+    }
+  }
+
+  /**
+   * Sends part of a file straight from the file system cache to the channel, without copying it through the heap
+   * @param file the file to send
+   * @param position where in the file to start
+   * @param count how many bytes to send
+   * @throws IOException if the file or the channel failed
+   */
+  public synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+    long end = position + count;
+    while(position < end){
+      long sent = file.transferTo(position, end - position, channel);
+      if(sent == 0){
+        if(position >= file.size()){
+          throw new IOException("File ended before " + count + " bytes were sent");
+        }
+        awaitWritable();
+      }
+      position += sent;
+    }
+  }
+
+  /**
+   * Waits until the channel has room for more bytes
+   * @throws IOException if the other peer doesn't read anything for too long
+   */
+  private void awaitWritable() throws IOException {
+    if(selector == null){
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_WRITE);
+    }
+    if(selector.select(WRITE_TIMEOUT) == 0){
+      throw new IOException("Timed out writing to " + channel.socket().getRemoteSocketAddress());
+    }
+    selector.selectedKeys().clear();
+  }
+
+  @Override
+  public void close(){
+    try {
+      if(selector != null){
+        selector.close();
+      }
+    } catch (IOException e){
+      // Nothing left to release
+    }
+  }
+}
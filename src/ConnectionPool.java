@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * The ConnectionPool keeps persistent connections to other peers so that RPCs don't pay for a new TCP connection
+ * (and leave a socket in TIME_WAIT) every time. Connections are keyed by PeerID; a PeerStub borrows one for the length
+ * of an RPC and hands it back afterwards. Idle connections are pinged every so often and dropped if the other peer
+ * doesn't answer.
+ */
+public class ConnectionPool {
+  public static final int MAX_IDLE = 4; // How many idle connections to keep per peer
+  public static final long IDLE_TIMEOUT = 1000 * 60 * 2; // Idle connections older than this are closed
+  public static final int PING_INTERVAL = 1000 * 20; // How often idle connections are health-checked
+  public static final int PING_TIMEOUT = 1000 * 5; // How long a health check waits for the reply
+
+  private Map<PeerID, Deque<PeerConnection>> idle; // Idle connections for each peer, most recently used first
+
+  /**
+   * Creates an empty connection pool
+   */
+  public ConnectionPool(){
+    this.idle = new ConcurrentHashMap<PeerID, Deque<PeerConnection>>();
+  }
+
+  /**
+   * Hands out a connection to the given peer, reusing an idle one if possible
+   * @param ID the peer to connect to
+   * @return a connection for exclusive use until it is released
+   * @throws IOException if a new connection couldn't be opened
+   */
+  public PeerConnection borrow(PeerID ID) throws IOException {
+    // Look for a healthy idle connection first
+    Deque<PeerConnection> connections = idle.get(ID);
+    if(connections != null){
+      PeerConnection connection;
+      while((connection = connections.pollFirst()) != null){
+        if(connection.isHealthy(IDLE_TIMEOUT)){
+          connection.markUsed();
+          return connection;
+        }
+        connection.close(); // Stale connection, discard it
+      }
+    }
+
+    // Nothing to reuse, open a new connection
+    PeerConnection connection = PeerConnection.open(ID);
+    connection.markUsed();
+    return connection;
+  }
+
+  /**
+   * Returns a borrowed connection to the pool. The connection is closed instead if pooling is disabled or enough idle
+   * connections to that peer are already kept.
+   * @param connection the connection to return
+   */
+  public void release(PeerConnection connection){
+    if(!Peer.POOLED || !connection.isHealthy(IDLE_TIMEOUT)){
+      connection.close();
+      return;
+    }
+
+    Deque<PeerConnection> connections = idle.computeIfAbsent(connection.getID(), id -> new ConcurrentLinkedDeque<PeerConnection>());
+    if(connections.size() >= MAX_IDLE){
+      connection.close();
+    } else {
+      connections.offerFirst(connection); // Most recently used first so cold connections age out
+    }
+  }
+
+  /**
+   * The method that the maintenance thread runs. Periodically pings idle connections and closes the ones that don't
+   * answer or have been idle for too long.
+   */
+  public void maintain(){
+    while(true){
+      try {
+        Thread.sleep(PING_INTERVAL);
+      } catch (Exception e){
+        e.printStackTrace();
+      }
+
+      for(Deque<PeerConnection> connections : idle.values()){
+        // Take out the connections that are idle right now; borrowed ones are in use and therefore healthy
+        LinkedList<PeerConnection> checked = new LinkedList<PeerConnection>();
+        PeerConnection connection;
+        while((connection = connections.pollLast()) != null){
+          if(connection.isHealthy(IDLE_TIMEOUT) && connection.ping(PING_TIMEOUT)){
+            checked.addFirst(connection);
+          } else {
+            connection.close();
+          }
+        }
+
+        // Put the healthy ones back behind anything released in the meantime, keeping their order
+        for(PeerConnection c : checked){
+          connections.offerLast(c);
+        }
+      }
+    }
+  }
+}
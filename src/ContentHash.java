@@ -0,0 +1,244 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ContentHash works out the SHA-256 hash that identifies the content of a file, whatever its name. A query for
+ * PREFIX followed by a hash finds the file with that content, and downloads are checked against the hash the source
+ * sent so that a corrupt transfer isn't kept and served onward.
+ *
+ * Hashing means reading every byte of a file, so the hashes of the peer's own files, and the Merkle roots over their
+ * pieces (see MerkleTree), are kept in CACHE_FILE along with the size and modified time of the file when it was hashed.
+ * At startup only the files that changed since are hashed again, on as many threads as there are processors. Each
+ * line of the cache file holds:
+ *   size modified-time hash root filename
+ */
+public class ContentHash {
+  public static final String PREFIX = "sha256:"; // Starts a query for a file by the hash of its content
+  public static final String CACHE_FILE = "hashes.cache"; // Where the hashes of the peer's own files are kept
+  public static final int ATTEMPTS = 2; // Times a download is fetched before a mismatch with its hash is final
+  private static final int BUFFER_SIZE = 64 * 1024; // Bytes read from the file at a time
+
+  /**
+   * Hashes the content of a file
+   * @param file the file
+   * @return the SHA-256 hash, in lower case hex
+   * @throws IOException if the file couldn't be read
+   */
+  public static String of(File file) throws IOException {
+    MessageDigest digest = sha256();
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while(channel.read(buffer) != -1){
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    return hex(digest.digest());
+  }
+
+  /**
+   * Starts a SHA-256 hash
+   * @return the digest
+   */
+  public static MessageDigest sha256(){
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e){
+      throw new IllegalStateException(e); // Every JDK has SHA-256
+    }
+  }
+
+  /**
+   * Writes a hash out in hex
+   * @param hash the hash
+   * @return the hash in lower case hex
+   */
+  public static String hex(byte[] hash){
+    char[] hex = new char[hash.length * 2];
+    for(int i = 0; i < hash.length; i++){
+      hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+      hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Checks a downloaded file against the hash its source sent, and deletes it if they don't match
+   * @param danFile the DanFile that came with the download
+   * @param file the downloaded file
+   * @return true if the file matches, or there is no hash to check it against
+   */
+  public static boolean verify(DanFile danFile, File file){
+    if(danFile.getHash() == null){
+      return true; // The source doesn't know the hash
+    }
+    try {
+      if(danFile.getHash().equals(of(file))){
+        return true;
+      }
+    } catch (IOException e){
+      e.printStackTrace();
+    }
+    file.delete();
+    return false;
+  }
+
+  /**
+   * Hashes the given files, several at a time, and sets the hash and Merkle root of each. Files whose size and
+   * modified time are the same as when they were hashed get the hashes in CACHE_FILE. The cache file is rewritten with
+   * the hashes of these files.
+   * @param danFiles the files, left without a hash if they couldn't be read
+   * @param dir the directory they are in
+   */
+  public static void hashAll(List<DanFile> danFiles, String dir){
+    Map<String, Entry> cache = load();
+    Map<String, Entry> hashes = new HashMap<String, Entry>();
+    List<Entry> entries = new ArrayList<Entry>();
+
+    // Hash the files that changed, all at once. The whole file and its pieces are hashed in the same pass.
+    ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    List<CompletableFuture<Entry>> pending = new ArrayList<CompletableFuture<Entry>>();
+    for(DanFile danFile : danFiles){
+      File file = new File(dir + danFile.getFilename());
+      Entry cached = cache.get(file.getName());
+      if(cached != null && cached.size == file.length() && cached.modified == file.lastModified()){
+        entries.add(cached);
+        continue;
+      }
+      pending.add(CompletableFuture.supplyAsync(() -> entry(file), pool));
+    }
+    for(CompletableFuture<Entry> future : pending){
+      Entry entry = future.join();
+      if(entry != null){
+        entries.add(entry);
+      }
+    }
+    pool.shutdown();
+
+    if(!pending.isEmpty()){
+      System.out.println("Hashed " + pending.size() + " files, " + (entries.size() - pending.size())
+          + " unchanged since the last run.");
+      save(entries);
+    }
+    for(Entry entry : entries){
+      hashes.put(entry.filename, entry);
+    }
+    for(DanFile danFile : danFiles){
+      Entry entry = hashes.get(danFile.getFilename());
+      if(entry != null){
+        danFile.setHash(entry.hash);
+        danFile.setRoot(entry.root);
+      }
+    }
+  }
+
+  /**
+   * Hashes a single file and sets its hash and Merkle root, leaving CACHE_FILE as it is. The file's size and modified
+   * time no longer match its cached hashes, so it is hashed again at the next start.
+   * @param danFile the file
+   * @param dir the directory it is in
+   * @return true if the file could be read
+   */
+  public static boolean hash(DanFile danFile, String dir){
+    Entry entry = entry(new File(dir + danFile.getFilename()));
+    if(entry == null){
+      return false;
+    }
+    danFile.setHash(entry.hash);
+    danFile.setRoot(entry.root);
+    return true;
+  }
+
+  /**
+   * Hashes a file and the pieces of it in the same pass
+   * @param file the file
+   * @return its hashes, null if it couldn't be read
+   */
+  private static Entry entry(File file){
+    try {
+      long size = file.length();
+      long modified = file.lastModified();
+      MessageDigest whole = sha256();
+      MerkleTree tree = MerkleTree.of(file, whole);
+      return new Entry(file.getName(), size, modified, hex(whole.digest()), tree.getRoot());
+    } catch (IOException e){
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Reads the cache file
+   * @return the cached hashes by filename, empty if there is no cache file
+   */
+  private static Map<String, Entry> load(){
+    Map<String, Entry> cache = new HashMap<String, Entry>();
+    File file = new File(CACHE_FILE);
+    if(!file.exists()){
+      return cache;
+    }
+    try(BufferedReader br = new BufferedReader(new FileReader(file))){
+      String line;
+      while((line = br.readLine()) != null){
+        String[] fields = line.split(" ", 5);
+        if(fields.length == 5){
+          cache.put(fields[4], new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+              fields[3]));
+        }
+      }
+    } catch (Exception e){
+      // A damaged cache only means hashing again
+      e.printStackTrace();
+    }
+    return cache;
+  }
+
+  /**
+   * Writes the cache file
+   * @param entries the hashes to keep
+   */
+  private static void save(List<Entry> entries){
+    try(PrintWriter out = new PrintWriter(CACHE_FILE)){
+      for(Entry entry : entries){
+        out.println(entry.size + " " + entry.modified + " " + entry.hash + " " + entry.root + " " + entry.filename);
+      }
+    } catch (IOException e){
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The hashes of a file along with the size and modified time it was computed for
+   */
+  private static class Entry {
+    private String filename; // Name of the file
+    private long size; // Its size when it was hashed
+    private long modified; // Its modified time when it was hashed
+    private String hash; // The hash of the whole file
+    private String root; // The Merkle root over its pieces
+
+    public Entry(String filename, long size, long modified, String hash, String root){
+      this.filename = filename;
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+      this.root = root;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.util.Date;
  * files over the network a breeze.
  */
 public class DanFile implements Serializable{
+  private static final long serialVersionUID = 2596236912579316073L; // Keeps older peers able to read it
 
   // The 3 states a file could be in
   public static final int VALID = 0, INVALID = 1, TTR_EXPIRED = 2;
@@ -18,6 +19,9 @@ public class DanFile implements Serializable{
   private long lastModifiedTime; // The last modified time in the system's milliseconds of the file on disk
   private long lastPolledTime; // The last time this file was polled for pull-based consistency
   private long TTR; // The length of time at which to poll
+  private String hash; // SHA-256 of the content in hex, null if not known (see ContentHash)
+  private String root; // Merkle root over the pieces of the content in hex, null if not known (see MerkleTree)
+  private transient boolean owned; // Whether the peer holding this DanFile owns the file, set by its FileCatalog
 
   /**
    * Creates a DanFile with specified name
@@ -53,7 +57,7 @@ public class DanFile implements Serializable{
    * @return True if the peer is the owner, false otherwise
    */
   public boolean isOwner(Peer peer) {
-    return originServer.toString().equals(peer.getFullAddress());
+    return originServer.equals(peer.getID());
   }
 
   /**
@@ -89,7 +93,7 @@ public class DanFile implements Serializable{
       symbol = "   - ";
     }
 
-    return symbol + filename + " : {\n  version: " + version + ";\n  state: " + validation + ";\n  lastModified: " + getTime(lastModifiedTime) + ";\n  lastPolled: " + getTime(lastPolledTime) + "\n}";
+    return symbol + filename + " : {\n  version: " + version + ";\n  state: " + validation + ";\n  lastModified: " + getTime(lastModifiedTime) + ";\n  lastPolled: " + getTime(lastPolledTime) + ";\n  hash: " + (hash != null ? hash : "unknown") + ";\n  root: " + (root != null ? root : "unknown") + "\n}";
   }
 
   /**
@@ -198,4 +202,28 @@ public class DanFile implements Serializable{
     this.lastPolledTime = lastPolledTime;
   }
 
+  public String getHash() {
+    return hash;
+  }
+
+  public void setHash(String hash) {
+    this.hash = hash;
+  }
+
+  public String getRoot() {
+    return root;
+  }
+
+  public void setRoot(String root) {
+    this.root = root;
+  }
+
+  public boolean isOwned() {
+    return owned;
+  }
+
+  public void setOwned(boolean owned) {
+    this.owned = owned;
+  }
+
 }
@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The DownloadManager runs the downloads of a peer. A hit or a refresh only queues its download and goes back to
+ * handling messages, and the transfers run on their own workers. At most Peer.DOWNLOADS transfers run at once, and at
+ * most MAX_PER_ORIGIN of them from the same peer, so a bulk refresh doesn't swamp the origin server of the files.
+ * Waiting downloads start by priority, files the user asked for before refreshes, and in the order they were asked for
+ * within the same priority.
+ *
+ * Asking for a file that is already being downloaded, or waiting to be, joins that download instead of starting
+ * another one, as long as both are for the same version or one of them takes whatever version the source has. Swarm
+ * downloads fetch from many sources on their own workers, but claim their file here too, so that a get or refresh of a
+ * file a swarm is working on joins the swarm, and a swarm for a file that is already being downloaded gives way.
+ *
+ * If the peer already has a file with the same content hash as the one asked for, under another name, the content is
+ * copied from there instead of being fetched again.
+ */
+public class DownloadManager {
+  public static final int INTERACTIVE = 0, REFRESH = 1; // Priorities, most urgent first
+  public static final int MAX_PER_ORIGIN = 2; // Most transfers from one peer at once
+
+  private static final MeteredExecutor workers = MeteredExecutor.create("downloads"); // Runs the transfers
+
+  private Peer peer; // The peer the files are downloaded for
+  private TreeSet<Transfer> waiting = new TreeSet<Transfer>(); // Downloads not started yet, most urgent first
+  private Map<String, List<Transfer>> byFilename = new HashMap<String, List<Transfer>>(); // Waiting and running
+  private Map<PeerID, Integer> perOrigin = new HashMap<PeerID, Integer>(); // Running transfers by source
+  private int running; // Transfers running on the workers
+  private long order; // Numbers the downloads in the order they were asked for
+
+  private long completed; // Downloads that finished
+  private long failed; // Downloads that didn't
+  private long joined; // Requests that joined a download already going
+  private long copied; // Downloads whose content the peer had under another name
+
+  /**
+   * Creates a manager with nothing to download
+   * @param peer the peer the files are downloaded for
+   */
+  public DownloadManager(Peer peer){
+    this.peer = peer;
+  }
+
+  /**
+   * Queues the download of a file from a single peer, unless the same file is already being downloaded. Once the file
+   * is in, it is handed to Peer.downloaded.
+   * @param filename the name of the file
+   * @param version the version expected, -1 to take whatever the source has
+   * @param source the peer to download it from
+   * @param priority INTERACTIVE or REFRESH
+   * @return true if a new download was queued, false if the request joined one already going
+   */
+  public synchronized boolean download(String filename, int version, PeerID source, int priority){
+    List<Transfer> same = byFilename.computeIfAbsent(filename, k -> new ArrayList<Transfer>());
+    for(Transfer transfer : same){
+      if(transfer.matches(version)){
+        joined++;
+        if(!transfer.started && priority < transfer.priority){
+          // Move it up the queue, the TreeSet only sorts on the way in
+          waiting.remove(transfer);
+          transfer.priority = priority;
+          waiting.add(transfer);
+        }
+        System.out.println("Already downloading " + filename + ", joining that download.");
+        return false;
+      }
+    }
+
+    Transfer transfer = new Transfer(filename, version, source, priority, order++);
+    same.add(transfer);
+    waiting.add(transfer);
+    schedule();
+    return true;
+  }
+
+  /**
+   * Claims a file for a download that runs somewhere else, such as a swarm. The caller must call finish once done.
+   * @param filename the name of the file
+   * @param version the version being downloaded
+   * @return the claim, null if the file is already being downloaded
+   */
+  public synchronized Transfer claim(String filename, int version){
+    List<Transfer> same = byFilename.computeIfAbsent(filename, k -> new ArrayList<Transfer>());
+    for(Transfer transfer : same){
+      if(transfer.started || transfer.matches(version)){
+        joined++;
+        return null;
+      }
+    }
+
+    Transfer transfer = new Transfer(filename, version, null, INTERACTIVE, order++);
+    transfer.start();
+    same.add(transfer);
+    return transfer;
+  }
+
+  /**
+   * Ends a download, freeing its slot for the next one waiting
+   * @param transfer the download
+   * @param succeeded whether the file came in
+   */
+  public synchronized void finish(Transfer transfer, boolean succeeded){
+    List<Transfer> same = byFilename.get(transfer.filename);
+    if(same != null){
+      same.remove(transfer);
+      if(same.isEmpty()){
+        byFilename.remove(transfer.filename);
+      }
+    }
+    if(transfer.source != null){
+      running--;
+      if(perOrigin.merge(transfer.source, -1, Integer::sum) == 0){
+        perOrigin.remove(transfer.source);
+      }
+    }
+    if(succeeded){
+      completed++;
+    } else {
+      failed++;
+    }
+    schedule();
+  }
+
+  /**
+   * Starts the most urgent waiting downloads, as long as there are free slots, their source isn't busy with
+   * MAX_PER_ORIGIN transfers already and their file isn't being downloaded in another version
+   */
+  private void schedule(){
+    Iterator<Transfer> iterator = waiting.iterator();
+    while(running < Peer.DOWNLOADS && iterator.hasNext()){
+      Transfer transfer = iterator.next();
+      if(perOrigin.getOrDefault(transfer.source, 0) >= MAX_PER_ORIGIN || isRunning(transfer.filename)){
+        continue;
+      }
+      iterator.remove();
+      transfer.start();
+      running++;
+      perOrigin.merge(transfer.source, 1, Integer::sum);
+      workers.execute(() -> run(transfer));
+    }
+  }
+
+  /**
+   * Checks whether a file is being downloaded right now
+   */
+  private boolean isRunning(String filename){
+    for(Transfer transfer : byFilename.get(filename)){
+      if(transfer.started){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Downloads a file from its source and hands it to the peer. Runs on the workers.
+   * @param transfer the download
+   */
+  private void run(Transfer transfer){
+    DanFile danFile = null;
+    try {
+      // Ask the source what it has, then copy the content if the peer has it already or fetch it otherwise
+      PeerStub stub = new PeerStub(transfer.source);
+      RangeResult probe = stub.obtainRange(transfer.filename, -1, 0, 0, null);
+      if(probe != null){
+        danFile = copy(probe.getDanFile());
+        if(danFile == null){
+          danFile = stub.obtain(probe, transfer::opened);
+        }
+      }
+      if(danFile != null){
+        peer.downloaded(transfer.filename, danFile, transfer.source);
+      } else {
+        System.out.println("Download of " + transfer.filename + " from " + transfer.source + " failed.");
+      }
+    } finally {
+      finish(transfer, danFile != null);
+    }
+  }
+
+  /**
+   * Copies the content of a file from a file the peer already has with the same hash
+   * @param danFile the DanFile of the file wanted
+   * @return the DanFile, null if the peer has no file with the same content or it couldn't be copied
+   */
+  private DanFile copy(DanFile danFile){
+    if(danFile.getHash() == null){
+      return null;
+    }
+    DanFile same = peer.getCatalog().find(ContentHash.PREFIX + danFile.getHash());
+    if(same == null || same.getFilename().equals(danFile.getFilename()) || !same.isValid()){
+      return null;
+    }
+
+    // Copy next to the file and rename it over, like a download, so the version being replaced stays whole until then
+    try {
+      String dir = same.isOwned() ? Peer.MY_FILES_DIR : Peer.OTHER_FILES_DIR;
+      Path target = Paths.get(Peer.OTHER_FILES_DIR + danFile.getFilename());
+      Path copy = Paths.get(Peer.OTHER_FILES_DIR + danFile.getFilename() + PartialFile.DATA_SUFFIX);
+      Files.copy(Paths.get(dir + same.getFilename()), copy, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.deleteIfExists(Paths.get(Peer.OTHER_FILES_DIR + danFile.getFilename() + PartialFile.STATE_SUFFIX));
+    } catch (IOException e){
+      e.printStackTrace();
+      return null;
+    }
+    synchronized(this){
+      copied++;
+    }
+    System.out.println("Copied " + danFile.getFilename() + " from " + same.getFilename()
+        + ", which has the same content.");
+    return danFile;
+  }
+
+  /**
+   * Returns a summary of the downloads for the stats, with the progress of each one running
+   * @return the summary
+   */
+  public synchronized String print(){
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("  running: %d of %d; waiting: %d; completed: %d; failed: %d; joined: %d; copied: %d",
+        running, Peer.DOWNLOADS, waiting.size(), completed, failed, joined, copied));
+    for(List<Transfer> same : byFilename.values()){
+      for(Transfer transfer : same){
+        if(transfer.started){
+          sb.append("\n").append(transfer.print());
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * One file being downloaded, or waiting to be
+   */
+  public static class Transfer implements Comparable<Transfer> {
+    private String filename; // Name of the file
+    private volatile int version; // Version expected, -1 until known if any version will do
+    private PeerID source; // Peer it is downloaded from, null for a swarm
+    private int priority; // INTERACTIVE or REFRESH
+    private long order; // When it was asked for, relative to the other downloads
+    private boolean started; // Set once the transfer runs
+    private long startTime; // When it started running
+    private volatile PartialFile partial; // The file being written, once opened
+
+    public Transfer(String filename, int version, PeerID source, int priority, long order){
+      this.filename = filename;
+      this.version = version;
+      this.source = source;
+      this.priority = priority;
+      this.order = order;
+    }
+
+    /**
+     * Marks the transfer as running
+     */
+    private void start(){
+      started = true;
+      startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Follows the progress of the file being written, which also tells which version is being downloaded
+     * @param partial the file being written
+     */
+    public void opened(PartialFile partial){
+      this.partial = partial;
+      this.version = partial.getVersion();
+    }
+
+    /**
+     * Checks whether a request for the given version can join this transfer
+     * @param version the version asked for, -1 for any
+     * @return true if either takes any version or they are the same
+     */
+    private boolean matches(int version){
+      return version == -1 || this.version == -1 || this.version == version;
+    }
+
+    @Override
+    public int compareTo(Transfer other){
+      if(priority != other.priority){
+        return Integer.compare(priority, other.priority);
+      }
+      return Long.compare(order, other.order);
+    }
+
+    /**
+     * Returns a one line summary of the transfer's progress
+     * @return the summary
+     */
+    public String print(){
+      String progress = "starting";
+      PartialFile opened = partial;
+      if(opened != null){
+        int done = opened.getPieceCount() - opened.getMissing();
+        progress = String.format("%d of %d pieces (%.0f%%) of %d bytes", done, opened.getPieceCount(),
+            opened.getPieceCount() == 0 ? 100 : 100.0 * done / opened.getPieceCount(), opened.getSize());
+      }
+      return String.format("  %-24s %-28s %s, %.1f s", filename + (version >= 0 ? " v" + version : ""),
+          source != null ? "from " + source : "from a swarm", progress,
+          (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ExpandingRing sends a query or search out in rings of growing TTL instead of flooding it with the full TTL right
+ * away. Each ring waits a little while for hits, and the next, larger ring is only sent if not enough hits came back.
+ * Popular files are usually found by the first ring, which only reaches the neighbors, so most searches cost a fraction
+ * of the messages of a flood.
+ *
+ * Every ring reuses the MessageID of the first one. Peers the previous ring reached already have it in their
+ * MessageCache with a lower TTL, so they only pass the larger ring on instead of searching and replying all over again.
+ */
+public class ExpandingRing {
+  public static final int[] RINGS = {0, 2}; // TTLs of the rings sent before the last one, which has the peer's TTL
+  public static final int HOP_WAIT = Peer.DEBUG ? 4000 : 200; // Milliseconds to wait for hits per hop of the ring
+  public static final int ENOUGH_HITS = 3; // Hits that stop a search or swarm download from expanding further
+
+  private static final Map<MessageID, ExpandingRing> rings = new ConcurrentHashMap<MessageID, ExpandingRing>();
+  private static final MeteredExecutor expanders = MeteredExecutor.create("rings"); // Sends the rings of each search
+
+  // Counters for the stats, over every search this peer started
+  private static final AtomicLong searches = new AtomicLong(); // Searches sent in rings
+  private static final AtomicLong ringsSent = new AtomicLong(); // Rings sent over all searches
+  private static final AtomicLong stoppedEarly = new AtomicLong(); // Searches that got enough hits before the last ring
+  private static final AtomicLong messagesSent = new AtomicLong(); // Copies this peer sent to neighbors, all rings
+
+  private MessageID messageID; // The search, shared by every ring
+  private int maxTTL; // TTL of the last ring
+  private int wanted; // Hits that are enough
+  private Sender sender; // Sends one ring to the neighbors
+  private int hits; // Hits received so far
+
+  private ExpandingRing(MessageID messageID, int maxTTL, int wanted, Sender sender){
+    this.messageID = messageID;
+    this.maxTTL = maxTTL;
+    this.wanted = wanted;
+    this.sender = sender;
+  }
+
+  /**
+   * Starts sending a search in rings. Returns right away, the rings are sent on their own thread.
+   * @param messageID the ID of the search
+   * @param maxTTL the TTL of the last ring
+   * @param wanted how many hits are enough
+   * @param sender sends a ring with the given TTL to the neighbors and returns how many neighbors it went to
+   */
+  public static void start(MessageID messageID, int maxTTL, int wanted, Sender sender){
+    ExpandingRing ring = new ExpandingRing(messageID, maxTTL, wanted, sender);
+    rings.put(messageID, ring);
+    searches.incrementAndGet();
+    expanders.execute(ring::expand);
+  }
+
+  /**
+   * Counts a hit for a search, if it is still being sent in rings
+   * @param messageID the ID of the search the hit is for
+   */
+  public static void hit(MessageID messageID){
+    ExpandingRing ring = rings.get(messageID);
+    if(ring != null){
+      synchronized(ring){
+        ring.hits++;
+        ring.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Stops sending larger rings of a search that was cancelled
+   * @param messageID the ID of the search
+   */
+  public static void stop(MessageID messageID){
+    ExpandingRing ring = rings.get(messageID);
+    if(ring != null){
+      synchronized(ring){
+        ring.hits = Math.max(ring.hits, ring.wanted);
+        ring.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Sends the rings one by one, waiting for hits after each, until enough hits arrived or the last ring was sent
+   */
+  private void expand(){
+    try {
+      for(int i = 0; i <= RINGS.length; i++){
+        int TTL = i < RINGS.length ? Math.min(RINGS[i], maxTTL) : maxTTL;
+        boolean last = TTL == maxTTL;
+
+        ringsSent.incrementAndGet();
+        messagesSent.addAndGet(sender.send(TTL));
+        if(last){
+          return; // Whatever the full flood finds is all there is
+        }
+
+        // Wait long enough for hits to come back from the edge of the ring
+        long deadline = System.currentTimeMillis() + (long) HOP_WAIT * (TTL + 1);
+        synchronized(this){
+          long left;
+          while(hits < wanted && (left = deadline - System.currentTimeMillis()) > 0){
+            wait(left);
+          }
+          if(hits >= wanted){
+            stoppedEarly.incrementAndGet();
+            return;
+          }
+        }
+      }
+    } catch (InterruptedException e){
+      e.printStackTrace();
+    } finally {
+      rings.remove(messageID);
+    }
+  }
+
+  /**
+   * Returns a summary of the searches sent in rings for the stats
+   * @return the summary
+   */
+  public static String print(){
+    long count = searches.get();
+    return String.format("  searches: %d; rings: %d (%.1f each); stopped early: %d; sent to neighbors: %d (%.1f each)",
+        count, ringsSent.get(), count == 0 ? 0 : (double) ringsSent.get() / count, stoppedEarly.get(),
+        messagesSent.get(), count == 0 ? 0 : (double) messagesSent.get() / count);
+  }
+
+  /**
+   * Sends one ring of a search
+   */
+  public interface Sender {
+    int send(int TTL);
+  }
+}
@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The FileCatalog is the set of files a peer can share, both its own and the ones it downloaded. Files are kept in a
+ * concurrent hash map keyed by filename, so the lookups every query, poll and obtain makes take constant time and
+ * never lock. Whether the peer owns a file is worked out once, when the file is added, and kept on the DanFile.
+ * Anything that needs to walk over the files works on a snapshot.
+ *
+ * Files can also be found by keyword. An inverted index maps every keyword of a filename (see RouteTable.keywords) to
+ * the names of the files it appears in. It is updated as files are added, so a search only looks up its terms and never
+ * walks over the catalog. The keywords are kept sorted, so that a term ending in * can look up a range of them.
+ *
+ * Files can be found by the hash of their content as well (see ContentHash), so the same content is found under any
+ * name.
+ *
+ * Every file added, changed or removed is saved to the peer's CatalogStore, so that the catalog outlives the peer.
+ * Whoever changes a DanFile held by the catalog tells it so through changed.
+ */
+public class FileCatalog {
+  private PeerID owner; // The peer whose catalog this is
+  private Map<String, DanFile> files; // The files, keyed by filename
+  private AtomicInteger owned = new AtomicInteger(); // How many of the files the peer owns
+  private AtomicInteger changes = new AtomicInteger(); // Counts files added and hashes changed, so others can tell
+  private NavigableMap<String, Set<String>> index = new ConcurrentSkipListMap<String, Set<String>>(); // By keyword
+  private Map<String, String> hashes = new ConcurrentHashMap<String, String>(); // Filenames by content hash
+  private CatalogStore store; // Where changes are saved, null if they aren't
+
+  /**
+   * Creates a catalog holding the given files
+   * @param owner the peer whose catalog this is
+   * @param files the files to start with, such as the peer's own files or the ones the store held
+   * @param store where changes are saved from now on, null to not save them
+   */
+  public FileCatalog(PeerID owner, List<DanFile> files, CatalogStore store){
+    this.owner = owner;
+    this.files = new ConcurrentHashMap<String, DanFile>(Math.max(16, files.size() * 2));
+    for(DanFile danFile : files){
+      update(danFile);
+    }
+    this.store = store;
+  }
+
+  /**
+   * Gets the DanFile with the given name
+   * @param filename name of the file
+   * @return the DanFile, null if the catalog doesn't have it
+   */
+  public DanFile get(String filename){
+    return files.get(filename);
+  }
+
+  /**
+   * Adds a file to the catalog. If the catalog already has a file with that name, that one is updated to the new
+   * version instead, so that anyone holding on to it sees the change.
+   * @param danFile the DanFile to add, such as the one that came with a download
+   * @return the DanFile kept in the catalog
+   */
+  public DanFile update(DanFile danFile){
+    DanFile kept = files.compute(danFile.getFilename(), (filename, old) -> {
+      if(old == null){
+        danFile.setOwned(danFile.getOriginServer().equals(owner));
+        if(danFile.isOwned()){
+          owned.incrementAndGet();
+        }
+        for(String keyword : RouteTable.keywords(filename)){
+          index.computeIfAbsent(keyword, k -> ConcurrentHashMap.newKeySet()).add(filename);
+        }
+        if(danFile.getHash() != null){
+          hashes.put(danFile.getHash(), filename);
+        }
+        changes.incrementAndGet();
+        return danFile;
+      }
+
+      // If we already had it, update parameters
+      old.setVersion(danFile.getVersion());
+      old.setLastModifiedTime(danFile.getLastModifiedTime());
+      old.setConsistency(danFile.getConsistency());
+      old.setTTR(danFile.getTTR());
+      old.setLastPolledTime(danFile.getLastPolledTime());
+
+      // If the content changed, it is found by its new hash
+      if(!Objects.equals(old.getHash(), danFile.getHash())){
+        if(old.getHash() != null){
+          hashes.remove(old.getHash(), filename);
+        }
+        if(danFile.getHash() != null){
+          hashes.put(danFile.getHash(), filename);
+        }
+        old.setHash(danFile.getHash());
+        changes.incrementAndGet();
+      }
+      old.setRoot(danFile.getRoot());
+      return old;
+    });
+    changed(kept);
+    return kept;
+  }
+
+  /**
+   * Removes a file from the catalog, such as one that is gone from the disk
+   * @param filename the name of the file
+   * @return the DanFile removed, null if the catalog didn't have it
+   */
+  public DanFile remove(String filename){
+    DanFile removed = files.remove(filename);
+    if(removed == null){
+      return null;
+    }
+    if(removed.isOwned()){
+      owned.decrementAndGet();
+    }
+    for(String keyword : RouteTable.keywords(filename)){
+      index.computeIfPresent(keyword, (k, filenames) -> {
+        filenames.remove(filename);
+        return filenames.isEmpty() ? null : filenames;
+      });
+    }
+    if(removed.getHash() != null){
+      hashes.remove(removed.getHash(), filename);
+    }
+    changes.incrementAndGet();
+    if(store != null){
+      store.remove(filename);
+    }
+    return removed;
+  }
+
+  /**
+   * Saves a file that was added or changed to the store, and checkpoints the store once its log has grown enough
+   * @param danFile the file, as held by the catalog
+   */
+  public void changed(DanFile danFile){
+    if(store == null){
+      return;
+    }
+    store.put(danFile);
+    synchronized(store){
+      if(store.isDue(files.size())){
+        store.checkpoint(snapshot()); // Taken while holding the store, so no change slips in between
+      }
+    }
+  }
+
+  /**
+   * Rewrites the store with the files as they are now, such as when the peer shuts down
+   */
+  public void checkpoint(){
+    if(store != null){
+      synchronized(store){
+        store.checkpoint(snapshot());
+      }
+    }
+  }
+
+
+  /**
+   * Looks up the file a query asks for, by its name or by ContentHash.PREFIX followed by the hash of its content
+   * @param filename the name of the file, or the hash
+   * @return the DanFile, null if the catalog doesn't have it
+   */
+  public DanFile find(String filename){
+    if(filename.startsWith(ContentHash.PREFIX)){
+      String named = hashes.get(filename.substring(ContentHash.PREFIX.length()));
+      return named != null ? files.get(named) : null;
+    }
+    return files.get(filename);
+  }
+
+  /**
+   * Checks to see if the given file is available for download
+   * @param filename Name of the file to check
+   * @return True if the catalog has a valid copy of the file
+   */
+  public boolean hasValid(String filename){
+    DanFile danFile = files.get(filename);
+    return danFile != null && danFile.isValid();
+  }
+
+  /**
+   * Check to see if the peer owns the file with the given name
+   * @param filename Name of file to check
+   * @return True if the catalog has the file and the peer owns it
+   */
+  public boolean isOwner(String filename){
+    DanFile danFile = files.get(filename);
+    return danFile != null && danFile.isOwned();
+  }
+
+  /**
+   * Finds the valid files whose keywords match every term of a search
+   * @param terms the terms, see RouteTable.terms
+   * @return the matching files, in no particular order
+   */
+  public List<DanFile> search(List<String> terms){
+    Set<String> matches = null;
+    for(String term : terms){
+      // Gather the files with a keyword matching this term
+      Set<String> found = new HashSet<String>();
+      if(RouteTable.isPrefix(term)){
+        String prefix = term.substring(0, term.length() - 1);
+        for(Set<String> filenames : index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()){
+          found.addAll(filenames);
+        }
+      } else {
+        Set<String> filenames = index.get(term);
+        if(filenames != null){
+          found.addAll(filenames);
+        }
+      }
+
+      // Keep only the files that matched every term so far
+      if(matches == null){
+        matches = found;
+      } else {
+        matches.retainAll(found);
+      }
+      if(matches.isEmpty()){
+        break;
+      }
+    }
+
+    List<DanFile> results = new ArrayList<DanFile>();
+    if(matches != null){
+      for(String filename : matches){
+        DanFile danFile = files.get(filename);
+        if(danFile != null && danFile.isValid()){
+          results.add(danFile);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Copies the list of files, so it can be walked over while files are being added
+   * @return the files, in no particular order
+   */
+  public List<DanFile> snapshot(){
+    return new ArrayList<DanFile>(files.values());
+  }
+
+  /**
+   * Returns a one line summary of the catalog for the stats
+   * @return the summary
+   */
+  public String print(){
+    int size = files.size();
+    return String.format("  files: %d (%d owned, %d downloaded); keywords: %d", size, owned.get(), size - owned.get(),
+        index.size()) + (store != null ? "\n" + store.print() : "");
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public int size(){
+    return files.size();
+  }
+
+  public int getOwned(){
+    return owned.get();
+  }
+
+  public int getChanges(){
+    return changes.get();
+  }
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HitCache remembers the hitQuery messages a peer passed on for other peers, so that the next query for a popular
+ * file can be answered on the spot instead of flooding the network again. For every file it keeps the peers a hit came
+ * from, with the version they had and when the hit passed by.
+ *
+ * The cache holds up to CAPACITY files and drops the one used least recently to make room. Sources older than EXPIRY
+ * are ignored and dropped, since the peer may have gone away or lost the file, and an invalidation passing through
+ * drops every source of the file older than the new version.
+ */
+public class HitCache {
+  public static final int CAPACITY = 1024; // Most files remembered
+  public static final int MAX_SOURCES = 8; // Most sources remembered for one file
+  public static final long EXPIRY = 1000 * 60; // Milliseconds a hit is trusted for
+
+  private LinkedHashMap<String, List<Source>> files; // Sources by filename, least recently used first
+
+  private long hits; // Queries answered from the cache
+  private long misses; // Queries the cache couldn't answer
+  private long evictions; // Files dropped to make room
+  private long expired; // Sources dropped for being too old
+  private long invalidated; // Sources dropped by invalidations
+
+  public HitCache(){
+    this.files = new LinkedHashMap<String, List<Source>>(16, 0.75f, true){
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<Source>> eldest){
+        if(size() > CAPACITY){
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Remembers that a peer has a file
+   * @param filename the name of the file
+   * @param address the peer that has it
+   * @param version the version it has, -1 if unknown
+   */
+  public synchronized void put(String filename, PeerID address, int version){
+    List<Source> sources = files.computeIfAbsent(filename, k -> new ArrayList<Source>());
+    sources.removeIf(source -> source.address.equals(address));
+    if(sources.size() >= MAX_SOURCES){
+      sources.remove(0); // Oldest first
+    }
+    sources.add(new Source(address, version));
+  }
+
+  /**
+   * Looks up the peers recently known to have a file
+   * @param filename the name of the file
+   * @return the sources, empty if none are fresh enough
+   */
+  public synchronized List<Source> get(String filename){
+    List<Source> sources = files.get(filename);
+    if(sources != null){
+      long now = System.currentTimeMillis();
+      int before = sources.size();
+      sources.removeIf(source -> now - source.time > EXPIRY);
+      expired += before - sources.size();
+      if(sources.isEmpty()){
+        files.remove(filename);
+        sources = null;
+      }
+    }
+
+    if(sources == null){
+      misses++;
+      return new ArrayList<Source>();
+    }
+    hits++;
+    return new ArrayList<Source>(sources);
+  }
+
+  /**
+   * Drops the sources of a file that have an older version than the given one
+   * @param filename the name of the file
+   * @param version the new version of the file
+   */
+  public synchronized void invalidate(String filename, int version){
+    List<Source> sources = files.get(filename);
+    if(sources == null){
+      return;
+    }
+    Iterator<Source> iterator = sources.iterator();
+    while(iterator.hasNext()){
+      if(iterator.next().version < version){
+        iterator.remove();
+        invalidated++;
+      }
+    }
+    if(sources.isEmpty()){
+      files.remove(filename);
+    }
+  }
+
+  /**
+   * Returns a one line summary of the cache for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    return String.format("  files: %d of %d; hits: %d; misses: %d; evictions: %d; expired: %d; invalidated: %d",
+        files.size(), CAPACITY, hits, misses, evictions, expired, invalidated);
+  }
+
+  /**
+   * A peer that had the file when its hit passed by
+   */
+  public static class Source {
+    private PeerID address; // The peer with the file
+    private int version; // The version it had, -1 if unknown
+    private long time = System.currentTimeMillis(); // When the hit passed by
+
+    public Source(PeerID address, int version){
+      this.address = address;
+      this.version = version;
+    }
+
+    public PeerID getAddress(){
+      return address;
+    }
+
+    public int getVersion(){
+      return version;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MerkleTree hashes a file piece by piece, PartialFile.PIECE_SIZE bytes at a time, then hashes those hashes in pairs,
+ * and those in pairs again, up to a single root that DanFile carries next to the hash of the whole file. A source sends
+ * the proof of every piece along with the piece: the hashes of its siblings on the way up to the root. The downloader
+ * hashes the piece it received, folds the proof into it and compares the result with the root, so a corrupt piece is
+ * caught as soon as it comes in and only that piece has to be fetched again, from whichever source.
+ *
+ * Each level pairs the hashes of the level below, left then right. A hash left over at the end of a level moves up
+ * unchanged and has no sibling in the proof, so the length of a proof only depends on the piece and how many pieces
+ * there are, and the proofs of a run of pieces are simply sent one after the other. An empty file is a single empty
+ * piece.
+ *
+ * Hashing a file means reading all of it, so the trees of the files served most recently are kept in memory.
+ */
+public class MerkleTree {
+  public static final int HASH_SIZE = 32; // Bytes in a SHA-256 hash
+  public static final int MAX_CACHED = 16; // Trees of served files kept in memory
+
+  // Trees by the path of their file, least recently used first
+  private static final Map<String, MerkleTree> cache = new LinkedHashMap<String, MerkleTree>(16, 0.75f, true){
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, MerkleTree> eldest){
+      return size() > MAX_CACHED;
+    }
+  };
+
+  private byte[][] levels; // Hashes of each level back to back, from the pieces up to the root
+  private long size; // Size of the file the tree was built from
+  private long modified; // Modified time of the file when it was read
+
+  /**
+   * Builds the tree over the hashes of the pieces
+   * @param leaves the hash of every piece, back to back
+   */
+  public MerkleTree(byte[] leaves){
+    MessageDigest digest = ContentHash.sha256();
+    List<byte[]> built = new ArrayList<byte[]>();
+    byte[] level = leaves;
+    built.add(level);
+    while(level.length > HASH_SIZE){
+      int count = level.length / HASH_SIZE;
+      byte[] up = new byte[(count + 1) / 2 * HASH_SIZE];
+      for(int i = 0; i < count; i += 2){
+        if(i + 1 < count){
+          digest.update(level, i * HASH_SIZE, 2 * HASH_SIZE); // Siblings sit next to each other
+          System.arraycopy(digest.digest(), 0, up, i / 2 * HASH_SIZE, HASH_SIZE);
+        } else {
+          System.arraycopy(level, i * HASH_SIZE, up, i / 2 * HASH_SIZE, HASH_SIZE); // Moves up unchanged
+        }
+      }
+      level = up;
+      built.add(level);
+    }
+    levels = built.toArray(new byte[built.size()][]);
+  }
+
+  /**
+   * Reads a file and builds its tree
+   * @param file the file
+   * @param whole also fed every byte of the file, to hash the whole file in the same pass. May be null.
+   * @return the tree
+   * @throws IOException if the file couldn't be read
+   */
+  public static MerkleTree of(File file, MessageDigest whole) throws IOException {
+    MessageDigest digest = ContentHash.sha256();
+    long modified = file.lastModified();
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+      long size = channel.size();
+      int count = (int) Math.max(1, (size + PartialFile.PIECE_SIZE - 1) / PartialFile.PIECE_SIZE);
+      byte[] leaves = new byte[count * HASH_SIZE];
+      ByteBuffer buffer = ByteBuffer.allocate(PartialFile.PIECE_SIZE);
+      for(int piece = 0; piece < count; piece++){
+        buffer.clear();
+        while(buffer.hasRemaining() && channel.read(buffer) != -1){
+          // Fill the buffer with a whole piece
+        }
+        buffer.flip();
+        if(whole != null){
+          whole.update(buffer);
+          buffer.rewind();
+        }
+        digest.update(buffer);
+        System.arraycopy(digest.digest(), 0, leaves, piece * HASH_SIZE, HASH_SIZE);
+      }
+
+      MerkleTree tree = new MerkleTree(leaves);
+      tree.size = size;
+      tree.modified = modified;
+      return tree;
+    }
+  }
+
+  /**
+   * Returns the tree of a file, from memory if the file didn't change since it was last read
+   * @param file the file
+   * @return the tree, null if the file couldn't be read
+   */
+  public static MerkleTree cached(File file){
+    String path = file.getPath();
+    synchronized(cache){
+      MerkleTree tree = cache.get(path);
+      if(tree != null && tree.size == file.length() && tree.modified == file.lastModified()){
+        return tree;
+      }
+    }
+
+    // Read the file outside the lock, so that serving other files doesn't wait on it
+    try {
+      MerkleTree tree = of(file, null);
+      synchronized(cache){
+        cache.put(path, tree);
+      }
+      return tree;
+    } catch (IOException e){
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Hashes one piece of a file
+   * @param channel the file
+   * @param offset where the piece starts
+   * @param length how long the piece is
+   * @return the hash of the piece
+   * @throws IOException if the piece couldn't be read
+   */
+  public static byte[] hash(FileChannel channel, long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while(buffer.hasRemaining()){
+      if(channel.read(buffer, offset + buffer.position()) == -1){
+        throw new EOFException("The file ends before the piece at " + offset);
+      }
+    }
+    buffer.flip();
+    MessageDigest digest = ContentHash.sha256();
+    digest.update(buffer);
+    return digest.digest();
+  }
+
+  /**
+   * Works out how long the proof of a piece is
+   * @param piece index of the piece
+   * @param count how many pieces the file has
+   * @return the length of the proof in bytes
+   */
+  public static int proofLength(int piece, int count){
+    int length = 0;
+    for(; count > 1; count = (count + 1) / 2, piece /= 2){
+      if((piece ^ 1) < count){
+        length += HASH_SIZE;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns the proofs of a run of pieces, one after the other
+   * @param first index of the first piece
+   * @param last index of the last piece
+   * @return the proofs
+   */
+  public byte[] proofs(int first, int last){
+    int count = getPieceCount();
+    int total = 0;
+    for(int piece = first; piece <= last; piece++){
+      total += proofLength(piece, count);
+    }
+
+    byte[] proofs = new byte[total];
+    int at = 0;
+    for(int piece = first; piece <= last; piece++){
+      int index = piece;
+      for(int level = 0; level < levels.length - 1; level++, index /= 2){
+        if((index ^ 1) < levels[level].length / HASH_SIZE){
+          System.arraycopy(levels[level], (index ^ 1) * HASH_SIZE, proofs, at, HASH_SIZE);
+          at += HASH_SIZE;
+        }
+      }
+    }
+    return proofs;
+  }
+
+  /**
+   * Checks a piece against the root of its file
+   * @param hash the hash of the piece
+   * @param piece index of the piece
+   * @param count how many pieces the file has
+   * @param proofs holds the proof of the piece
+   * @param offset where the proof starts in proofs
+   * @param root the root of the file, in hex
+   * @return true if the proof leads from the piece to the root
+   */
+  public static boolean verify(byte[] hash, int piece, int count, byte[] proofs, int offset, String root){
+    if(proofs == null || offset + proofLength(piece, count) > proofs.length){
+      return false; // No proof, or one cut short
+    }
+    MessageDigest digest = ContentHash.sha256();
+    for(; count > 1; count = (count + 1) / 2, piece /= 2){
+      if((piece ^ 1) >= count){
+        continue; // Moves up unchanged
+      }
+      if((piece & 1) == 0){
+        digest.update(hash);
+        digest.update(proofs, offset, HASH_SIZE);
+      } else {
+        digest.update(proofs, offset, HASH_SIZE);
+        digest.update(hash);
+      }
+      hash = digest.digest();
+      offset += HASH_SIZE;
+    }
+    return ContentHash.hex(hash).equals(root);
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public String getRoot(){
+    return ContentHash.hex(levels[levels.length - 1]);
+  }
+
+  public int getPieceCount(){
+    return levels[0].length / HASH_SIZE;
+  }
+}
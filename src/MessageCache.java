@@ -0,0 +1,369 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MessageCache remembers the messages a peer has seen, along with the upstream peer each one came from, so that a
+ * message is handled only once and hits can be traced back. It holds up to a configurable number of messages for up to
+ * a configurable time.
+ *
+ * Each message is reduced to a single long: the high half is a small number standing for the PeerID that created the
+ * message, the low half is its sequence number. Entries live in open-addressing hash tables of parallel primitive
+ * arrays (key, upstream peer number, TTL, time seen), so remembering a message allocates nothing. The cache is made of
+ * two generations: new messages go into the current one, and once it is full or half the expiry time has passed, the
+ * previous generation is thrown away whole and the current one takes its place. Lookups check both, so a message is
+ * remembered for at least half the capacity and half the expiry time, and never longer than the expiry time.
+ *
+ * The highest TTL a message has arrived with is kept too. A search that is sent again with a larger TTL (see
+ * ExpandingRing) reuses its MessageID, so a peer that already handled it can tell the message only needs to go further
+ * this time, and passes it on without handling it again.
+ *
+ * The number standing for a PeerID is handed back once neither generation holds a message that uses it, and goes to
+ * the next new PeerID. So the table of numbers only grows as large as the number of peers seen within the last two
+ * generations, however many peers come and go over the life of the peer.
+ *
+ * A message can also be cancelled by the peer that started it. Its TTL is then set higher than any real one, so every
+ * copy arriving later counts as a duplicate and goes no further.
+ */
+public class MessageCache {
+  public static final int NEW = 0; // The message hasn't been seen before
+  public static final int DEEPER = 1; // The message was seen before, but with a lower TTL
+  public static final int DUPLICATE = 2; // The message was seen before with this TTL or higher
+  private static final int CANCELLED = Integer.MAX_VALUE; // TTL remembered for a cancelled message
+
+  private int capacity; // Most messages remembered, across both generations
+  private long expiry; // Longest time a message is remembered, in milliseconds
+
+  private Generation current; // Where new messages go
+  private Generation previous; // Messages from before the last rotation
+
+  // Numbers standing for PeerIDs, starting at 1 so that a key is never 0 and upstream 0 means none
+  private Map<PeerID, Integer> peerNumbers = new ConcurrentHashMap<PeerID, Integer>();
+  private PeerID[] peers = new PeerID[16];
+  private long[] used = new long[16]; // Rotation during which each number was last stored in a generation
+  private int peerCount; // Highest number handed out so far
+  private ArrayDeque<Integer> free = new ArrayDeque<Integer>(); // Numbers handed back, to be reused first
+  private long rotations; // Rotations so far, the current generation is filling during the last one
+
+  private long hits; // Lookups that found the message
+  private long misses; // Lookups that didn't
+  private long evictions; // Messages forgotten because a generation was thrown away
+  private long cancelled; // Messages cancelled by the peer that started them
+
+  /**
+   * Creates an empty cache
+   * @param capacity how many messages are remembered at most
+   * @param expiry how long a message is remembered at most, in milliseconds
+   */
+  public MessageCache(int capacity, long expiry){
+    this.capacity = Math.max(2, capacity);
+    this.expiry = Math.max(1, expiry);
+    this.current = new Generation(this.capacity / 2);
+    this.previous = new Generation(this.capacity / 2);
+  }
+
+  /**
+   * Remembers a message unless it has been seen before. Checking and remembering happen together, so when the same
+   * message arrives from two neighbors at once only one of them gets to handle it.
+   * @param messageID the message
+   * @param upstream the peer it came from, null if not needed
+   * @return true if the message is new
+   */
+  public boolean add(MessageID messageID, PeerID upstream){
+    return add(messageID, upstream, 0) == NEW;
+  }
+
+  /**
+   * Remembers a message along with the TTL it arrived with. A message seen before only counts again if it now has a
+   * higher TTL, in which case that TTL is remembered and the upstream of the first arrival is kept.
+   * @param messageID the message
+   * @param upstream the peer it came from, null if not needed
+   * @param TTL the TTL it arrived with
+   * @return NEW, DEEPER or DUPLICATE
+   */
+  public synchronized int add(MessageID messageID, PeerID upstream, int TTL){
+    long now = System.currentTimeMillis();
+    long key = key(messageID, true);
+    rotate(now);
+
+    Generation generation = find(key, now);
+    if(generation != null){
+      hits++;
+      int slot = generation.slot(key);
+      if(TTL > generation.ttls[slot]){
+        generation.ttls[slot] = TTL;
+        return DEEPER;
+      }
+      return DUPLICATE;
+    }
+    misses++;
+
+    insert(key, upstream != null ? number(upstream) : 0, TTL, now);
+    return NEW;
+  }
+
+  /**
+   * Marks a message as cancelled, so that every copy of it arriving from now on is a duplicate. A message that hasn't
+   * been seen yet is remembered as cancelled right away, in case it is still on its way.
+   * @param messageID the message
+   * @return true if the message had been seen and wasn't cancelled yet, so this peer may have passed it on
+   */
+  public synchronized boolean cancel(MessageID messageID){
+    long now = System.currentTimeMillis();
+    long key = key(messageID, true);
+    rotate(now);
+
+    Generation generation = find(key, now);
+    if(generation == null){
+      insert(key, 0, CANCELLED, now);
+      cancelled++;
+      return false;
+    }
+    int slot = generation.slot(key);
+    if(generation.ttls[slot] == CANCELLED){
+      return false;
+    }
+    generation.ttls[slot] = CANCELLED;
+    cancelled++;
+    return true;
+  }
+
+  /**
+   * Checks if this message has been cancelled
+   * @param messageID The messageID to check
+   * @return True if the peer that started it cancelled it
+   */
+  public synchronized boolean isCancelled(MessageID messageID){
+    long now = System.currentTimeMillis();
+    rotate(now);
+    long key = key(messageID, false);
+    Generation generation = find(key, now);
+    return generation != null && generation.ttls[generation.slot(key)] == CANCELLED;
+  }
+
+  /**
+   * Checks if this message has already been seen
+   * @param messageID The messageID to check
+   * @return True if we've already seen the message
+   */
+  public synchronized boolean contains(MessageID messageID){
+    long now = System.currentTimeMillis();
+    rotate(now);
+    return count(find(key(messageID, false), now) != null);
+  }
+
+  /**
+   * Given a messageID, provide the upstream PeerID for back-tracing
+   * @param messageID The message to look up
+   * @return The upstream peer, or null if the message isn't in the cache
+   */
+  public synchronized PeerID getUpstream(MessageID messageID){
+    long now = System.currentTimeMillis();
+    rotate(now);
+    long key = key(messageID, false);
+    Generation generation = find(key, now);
+    if(!count(generation != null)){
+      return null;
+    }
+    int upstream = generation.upstreams[generation.slot(key)];
+    return upstream != 0 ? peers[upstream] : null;
+  }
+
+  /**
+   * Returns a one line summary of the cache for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    return String.format("  messages: %d of %d; hits: %d; misses: %d; evictions: %d; cancelled: %d; peers: %d",
+        current.count + previous.count, capacity, hits, misses, evictions, cancelled, peerNumbers.size());
+  }
+
+  /**
+   * Adds a message that isn't in either generation to the current one, rotating first if it is full
+   * @param key the message's key
+   * @param upstream number of the peer it came from, 0 for none
+   * @param TTL the TTL it arrived with
+   * @param now the current time
+   */
+  private void insert(long key, int upstream, int TTL, long now){
+    if(current.count >= current.limit){
+      rotate(now + expiry); // Full, make room by forcing a rotation
+    }
+    current.insert(key, upstream, TTL, now);
+    used[(int) (key >>> 32)] = rotations;
+    if(upstream != 0){
+      used[upstream] = rotations;
+    }
+  }
+
+  /**
+   * Looks for a message that hasn't expired in either generation
+   * @param key the message's key
+   * @param now the current time
+   * @return the generation holding it, null if neither does
+   */
+  private Generation find(long key, long now){
+    if(key == 0){
+      return null; // Its peer has no number, so it can't be here
+    }
+    if(current.isFresh(key, now, expiry)){
+      return current;
+    }
+    if(previous.isFresh(key, now, expiry)){
+      return previous;
+    }
+    return null;
+  }
+
+  /**
+   * Throws the previous generation away if the current one has been filling for half the expiry time, and hands back
+   * the numbers of the peers that only messages in it used
+   * @param now the current time
+   */
+  private void rotate(long now){
+    if(now - current.started < expiry / 2){
+      return;
+    }
+    evictions += previous.count;
+    Generation emptied = previous;
+    emptied.clear(System.currentTimeMillis());
+    previous = current;
+    current = emptied;
+    rotations++;
+
+    // The previous generation filled during the last rotation, anything stored before that is gone
+    for(int number = 1; number <= peerCount; number++){
+      if(peers[number] != null && used[number] < rotations - 1){
+        peerNumbers.remove(peers[number]);
+        peers[number] = null;
+        free.push(number);
+      }
+    }
+  }
+
+  /**
+   * Counts a lookup as a hit or a miss
+   * @param found whether the lookup found the message
+   * @return found
+   */
+  private boolean count(boolean found){
+    if(found){
+      hits++;
+    } else {
+      misses++;
+    }
+    return found;
+  }
+
+  /**
+   * Packs a MessageID into a long
+   * @param messageID the message
+   * @param assign whether to hand out a number if its peer doesn't have one
+   * @return the number of its peer in the high half and its sequence number in the low half, 0 if the peer has no
+   *         number and assign is false
+   */
+  private long key(MessageID messageID, boolean assign){
+    Integer number = peerNumbers.get(messageID.getPeerID());
+    if(assign){
+      number = number(messageID.getPeerID());
+    } else if(number == null){
+      return 0;
+    }
+    return ((long) number << 32) | (messageID.getSequenceNumber() & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Returns the number standing for a PeerID, handing out a new one the first time the PeerID is seen, or the first
+   * time since its number was handed back
+   * @param peerID the peer
+   * @return its number, at least 1
+   */
+  private int number(PeerID peerID){
+    Integer number = peerNumbers.get(peerID);
+    if(number == null){
+      if(!free.isEmpty()){
+        number = free.pop();
+      } else {
+        number = ++peerCount;
+        if(number == peers.length){
+          peers = Arrays.copyOf(peers, peers.length * 2);
+          used = Arrays.copyOf(used, used.length * 2);
+        }
+      }
+      peers[number] = peerID;
+      peerNumbers.put(peerID, number);
+    }
+    used[number] = rotations; // Keeps it from being handed back by a rotation before the caller stores it
+    return number;
+  }
+
+  /**
+   * One generation of the cache: an open-addressing hash table with linear probing, kept at most half full
+   */
+  private static class Generation {
+    private long[] keys; // Message keys, 0 for an empty slot
+    private int[] upstreams; // Number of the upstream peer of each message
+    private int[] ttls; // Highest TTL each message arrived with
+    private long[] times; // When each message was seen
+    private int mask; // Table size minus one
+    private int limit; // Most messages this generation takes
+    private int count; // Messages in this generation
+    private long started; // When this generation started filling
+
+    public Generation(int limit){
+      int size = Integer.highestOneBit(Math.max(2, limit) * 2 - 1) << 1; // Power of two, at least twice the limit
+      this.keys = new long[size];
+      this.upstreams = new int[size];
+      this.ttls = new int[size];
+      this.times = new long[size];
+      this.mask = size - 1;
+      this.limit = limit;
+      this.started = System.currentTimeMillis();
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it would go
+     * @param key the key
+     * @return index of the slot
+     */
+    public int slot(long key){
+      // Spread the bits of the key so that consecutive sequence numbers don't cluster
+      long hash = key * 0x9E3779B97F4A7C15L;
+      int i = (int) (hash ^ (hash >>> 32)) & mask;
+      while(keys[i] != 0 && keys[i] != key){
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    /**
+     * Checks whether the key is here and was seen less than the expiry time ago
+     */
+    public boolean isFresh(long key, long now, long expiry){
+      int i = slot(key);
+      return keys[i] == key && now - times[i] < expiry;
+    }
+
+    /**
+     * Adds a key that isn't here yet
+     */
+    public void insert(long key, int upstream, int TTL, long now){
+      int i = slot(key);
+      keys[i] = key;
+      upstreams[i] = upstream;
+      ttls[i] = TTL;
+      times[i] = now;
+      count++;
+    }
+
+    /**
+     * Empties the generation so it can start filling again
+     */
+    public void clear(long now){
+      Arrays.fill(keys, 0);
+      count = 0;
+      started = now;
+    }
+  }
+}
@@ -5,6 +5,7 @@ import java.io.Serializable;
  * by the same peer, and so that we can link them to Upstream PeerIDs as a trace-back mechanism.
  */
 public class MessageID implements Serializable {
+  private static final long serialVersionUID = 4777945824870167780L; // Keeps older peers able to read it
   private PeerID peerID;
   private int sequenceNumber;
 
@@ -40,4 +41,9 @@ public class MessageID implements Serializable {
     MessageID other = (MessageID) obj;
     return peerID.equals(other.getPeerID()) && sequenceNumber == other.getSequenceNumber();
   }
+
+  @Override
+  public int hashCode() {
+    return 31 * peerID.hashCode() + sequenceNumber;
+  }
 }
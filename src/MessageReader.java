@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * A MessageReader unpacks the name and parameters of an RPC, or the contents of a reply, from a frame. It is the
+ * counterpart of a MessageWriter for the same version of the wire protocol.
+ */
+public interface MessageReader {
+  String readRpc() throws IOException;
+  PeerID readPeerID() throws IOException;
+  MessageID readMessageID() throws IOException;
+  int readTTL() throws IOException;
+  int readInt() throws IOException;
+  long readLong() throws IOException;
+  boolean readBoolean() throws IOException;
+  String readString() throws IOException;
+  byte[] readBytes() throws IOException;
+  DanFile readDanFile() throws IOException;
+  PollResult readPollResult() throws IOException;
+}
@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+/**
+ * A MessageWriter packs the name and parameters of an RPC, or the contents of a reply, into a frame. Each version of the
+ * wire protocol has its own implementation, so the PeerStub and PeerSkeleton pack every RPC the same way no matter
+ * which version a connection speaks.
+ */
+public interface MessageWriter {
+  void writeRpc(String rpc) throws IOException;
+  void writePeerID(PeerID peerID) throws IOException;
+  void writeMessageID(MessageID messageID) throws IOException;
+  void writeTTL(int TTL) throws IOException;
+  void writeInt(int value) throws IOException;
+  void writeLong(long value) throws IOException;
+  void writeBoolean(boolean value) throws IOException;
+  void writeString(String value) throws IOException;
+  void writeBytes(byte[] value) throws IOException;
+  void writeDanFile(DanFile danFile) throws IOException;
+  void writePollResult(PollResult result) throws IOException;
+}
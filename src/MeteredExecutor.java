@@ -0,0 +1,146 @@
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MeteredExecutor runs tasks on an underlying executor and counts how many are waiting, running and done, so that
+ * the "stats" command can show how far behind each part of the peer is. Executors made by create() use a virtual
+ * thread per task when the JDK supports it and virtual threads are selected, and a pool of platform threads otherwise.
+ */
+public class MeteredExecutor implements Executor {
+  private static final List<MeteredExecutor> executors = new CopyOnWriteArrayList<MeteredExecutor>(); // All executors
+
+  private String name; // Name shown in the stats
+  private String kind; // Kind of threads the tasks run on
+  private ExecutorService service; // The executor that runs the tasks
+
+  private AtomicLong submitted = new AtomicLong(); // Tasks handed to the executor
+  private AtomicLong started = new AtomicLong(); // Tasks that began running
+  private AtomicLong completed = new AtomicLong(); // Tasks that finished running
+  private AtomicLong peakQueued = new AtomicLong(); // Most tasks ever waiting at once
+
+  /**
+   * Creates a MeteredExecutor around the given executor and registers it for the stats
+   * @param name name shown in the stats
+   * @param kind kind of threads the tasks run on
+   * @param service the executor that runs the tasks
+   */
+  private MeteredExecutor(String name, String kind, ExecutorService service){
+    this.name = name;
+    this.kind = kind;
+    this.service = service;
+    executors.add(this);
+  }
+
+  /**
+   * Creates an executor for tasks that mostly block on the network or disk, using the kind of threads selected on the
+   * command line
+   * @param name name shown in the stats
+   * @return the new executor
+   */
+  public static MeteredExecutor create(String name){
+    if(Peer.THREADS == Peer.VIRTUAL){
+      ExecutorService service = newVirtualThreadPerTaskExecutor();
+      if(service != null){
+        return new MeteredExecutor(name, "virtual", service);
+      }
+    }
+    return new MeteredExecutor(name, "platform", Executors.newCachedThreadPool());
+  }
+
+  /**
+   * Wraps an existing executor, such as a bounded pool, so that it shows up in the stats
+   * @param name name shown in the stats
+   * @param service the executor that runs the tasks
+   * @return the new executor
+   */
+  public static MeteredExecutor wrap(String name, ExecutorService service){
+    return new MeteredExecutor(name, "pool", service);
+  }
+
+  /**
+   * Checks whether this JDK can run a virtual thread per task
+   * @return True if virtual threads are available
+   */
+  public static boolean virtualThreadsSupported(){
+    ExecutorService service = newVirtualThreadPerTaskExecutor();
+    if(service == null){
+      return false;
+    }
+    service.shutdown();
+    return true;
+  }
+
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor() at runtime so that the peer still builds and runs on JDKs
+   * that don't have it
+   * @return the executor, null if virtual threads aren't available
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor(){
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e){
+      return null; // Missing, or a preview feature that isn't enabled
+    }
+  }
+
+  /**
+   * Runs the task on the underlying executor, keeping count of where it is
+   * @param task the task to run
+   * @throws RejectedExecutionException if a bounded executor has no room for the task
+   */
+  @Override
+  public void execute(Runnable task){
+    long queued = submitted.incrementAndGet() - started.get();
+    peakQueued.accumulateAndGet(queued, Math::max);
+
+    try {
+      service.execute(() -> {
+        started.incrementAndGet();
+        try {
+          task.run();
+        } finally {
+          completed.incrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e){
+      submitted.decrementAndGet(); // Never queued
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a one line summary of the executor for the stats
+   * @return the summary
+   */
+  public String print(){
+    long start = started.get();
+    long done = completed.get();
+    return String.format("  %-12s %-8s queued: %d (peak %d); running: %d; completed: %d", name, kind,
+        Math.max(0, submitted.get() - start), peakQueued.get(), Math.max(0, start - done), done);
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public static List<MeteredExecutor> getExecutors(){
+    return executors;
+  }
+
+  public String getName(){
+    return name;
+  }
+
+  public long getQueued(){
+    return Math.max(0, submitted.get() - started.get());
+  }
+}
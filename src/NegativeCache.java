@@ -0,0 +1,239 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The NegativeCache remembers queries that went unanswered, so that a peer stops flooding the network with queries for
+ * files that nobody has. A query a peer forwards is given ANSWER_WAIT to bring back a hit. If none passes back through
+ * the peer in that time, the query counts as a miss for its filename and the neighbor it came from, which stands for
+ * the part of the network the query came out of. Once a filename has missed THRESHOLD times from the same neighbor
+ * within the window, further queries for it from that neighbor are dropped (SUPPRESS) or forwarded with half the TTL
+ * they have left (REDUCE), depending on Peer.NEGATIVE. A hit for the file passing through clears its misses. When
+ * hits are sent straight to the originator (Peer.DIRECT) they don't pass through, so no misses are counted.
+ *
+ * Misses are counted in counting Bloom filters, so the cache takes the same space no matter how many filenames are
+ * asked for. There are two generations: misses are added to the current one, lookups add up both, and every half window
+ * the older one is emptied and becomes the current one. A miss is therefore remembered for between half the window and
+ * the whole window.
+ */
+public class NegativeCache {
+  public static final int OFF = 0, SUPPRESS = 1, REDUCE = 2; // What to do with queries that keep missing
+  public static final int COUNTERS = 1 << 16; // Counters in each generation
+  public static final int HASHES = 3; // Counters used for every filename and neighbor
+  public static final int THRESHOLD = 2; // Misses after which queries are suppressed or cut short
+  public static final int MAX_PENDING = 4096; // Most forwarded queries waiting for a hit at once
+  public static final long ANSWER_WAIT = Peer.DEBUG ? 1000 * 30 : 1000 * 5; // Milliseconds a query has to get a hit
+
+  private long window; // Milliseconds a miss is remembered at most
+  private byte[] current = new byte[COUNTERS]; // Misses counted since the last rotation
+  private byte[] previous = new byte[COUNTERS]; // Misses counted in the half window before that
+  private long rotated = System.currentTimeMillis(); // When the generations last rotated
+
+  private LinkedList<Pending> waiting = new LinkedList<Pending>(); // Forwarded queries by deadline, earliest first
+  private Map<MessageID, Pending> pending = new HashMap<MessageID, Pending>(); // The same queries by messageID
+
+  private long misses; // Queries that got no hit in time
+  private long suppressed; // Queries dropped because of earlier misses
+  private long reduced; // Queries forwarded with a smaller TTL because of earlier misses
+  private long cleared; // Filenames whose misses were cleared by a hit
+
+  /**
+   * Creates an empty cache
+   * @param window how long a miss is remembered at most, in milliseconds
+   */
+  public NegativeCache(long window){
+    this.window = Math.max(2, window);
+  }
+
+  /**
+   * Works out the TTL to forward a query with, given how often queries for the same file from the same neighbor missed
+   * @param filename the file the query is for
+   * @param upstream the neighbor it came from
+   * @param TTL the TTL it would normally be forwarded with
+   * @return the TTL to forward it with, -1 to not forward it at all
+   */
+  public synchronized int limit(String filename, PeerID upstream, int TTL){
+    if(Peer.NEGATIVE == OFF){
+      return TTL;
+    }
+    expire(System.currentTimeMillis());
+    if(count(hash(filename, upstream)) < THRESHOLD){
+      return TTL;
+    }
+    if(Peer.NEGATIVE == SUPPRESS){
+      suppressed++;
+      return -1;
+    }
+    reduced++;
+    return TTL / 2;
+  }
+
+  /**
+   * Starts waiting for a hit for a query this peer forwarded
+   * @param messageID the query
+   * @param filename the file it is for
+   * @param upstream the neighbor it came from
+   */
+  public synchronized void forwarded(MessageID messageID, String filename, PeerID upstream){
+    if(Peer.NEGATIVE == OFF || Peer.HITS == Peer.DIRECT || pending.containsKey(messageID)){
+      return; // Direct hits never pass back through this peer, so misses can't be told apart from hits
+    }
+    long now = System.currentTimeMillis();
+    expire(now);
+    if(waiting.size() >= MAX_PENDING){
+      pending.remove(waiting.removeFirst().messageID); // Too many at once, give up on the oldest
+    }
+    Pending query = new Pending(messageID, hash(filename, upstream), now + ANSWER_WAIT);
+    waiting.addLast(query);
+    pending.put(messageID, query);
+  }
+
+  /**
+   * Records a hit passing through for a query, which clears the misses of its file from that neighbor
+   * @param messageID the query
+   * @param filename the file it is for
+   * @param upstream the neighbor the query came from, null if not known
+   */
+  public synchronized void answered(MessageID messageID, String filename, PeerID upstream){
+    Pending query = pending.remove(messageID);
+    if(query != null){
+      query.answered = true;
+    }
+    if(upstream != null){
+      long hash = hash(filename, upstream);
+      if(count(hash) > 0){
+        clear(current, hash);
+        clear(previous, hash);
+        cleared++;
+      }
+    }
+  }
+
+  /**
+   * Stops waiting for a hit for a query its originator cancelled. A query cut short that way isn't a miss.
+   * @param messageID the query
+   */
+  public synchronized void cancelled(MessageID messageID){
+    Pending query = pending.remove(messageID);
+    if(query != null){
+      query.answered = true;
+    }
+  }
+
+  /**
+   * Counts every forwarded query whose time ran out without a hit as a miss, and rotates the generations if due
+   * @param now the current time
+   */
+  private void expire(long now){
+    long half = window / 2;
+    long halves = (now - rotated) / half;
+    if(halves >= 2){
+      // No rotation for a whole window, so every miss in both generations is older than the window
+      Arrays.fill(current, (byte) 0);
+      Arrays.fill(previous, (byte) 0);
+    } else if(halves == 1){
+      byte[] emptied = previous;
+      Arrays.fill(emptied, (byte) 0);
+      previous = current;
+      current = emptied;
+    }
+    rotated += halves * half; // Keep to the half window steps, however late this runs
+
+    while(!waiting.isEmpty() && waiting.getFirst().deadline <= now){
+      Pending query = waiting.removeFirst();
+      if(!query.answered){
+        pending.remove(query.messageID);
+        add(query.hash);
+        misses++;
+      }
+    }
+  }
+
+  /**
+   * Adds a miss to the current generation
+   */
+  private void add(long hash){
+    for(int i = 0; i < HASHES; i++){
+      int counter = counter(hash, i);
+      if(current[counter] != (byte) 0xFF){
+        current[counter]++; // Counters stick at their highest value instead of wrapping around
+      }
+    }
+  }
+
+  /**
+   * Estimates the misses counted for a hash over both generations
+   * @return the smallest total of the hash's counters
+   */
+  private int count(long hash){
+    int count = Integer.MAX_VALUE;
+    for(int i = 0; i < HASHES; i++){
+      int counter = counter(hash, i);
+      count = Math.min(count, (current[counter] & 0xFF) + (previous[counter] & 0xFF));
+    }
+    return count;
+  }
+
+  /**
+   * Takes away the misses counted for a hash in one generation
+   */
+  private void clear(byte[] counters, long hash){
+    int count = Integer.MAX_VALUE;
+    for(int i = 0; i < HASHES; i++){
+      count = Math.min(count, counters[counter(hash, i)] & 0xFF);
+    }
+    for(int i = 0; i < HASHES; i++){
+      int counter = counter(hash, i);
+      counters[counter] = (byte) ((counters[counter] & 0xFF) - count);
+    }
+  }
+
+  /**
+   * Hashes a filename and neighbor with 64 bit FNV-1a
+   */
+  private static long hash(String filename, PeerID upstream){
+    long hash = 0xCBF29CE484222325L;
+    String key = filename + "@" + upstream;
+    for(int i = 0; i < key.length(); i++){
+      hash ^= key.charAt(i);
+      hash *= 0x100000001B3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Picks the i-th counter for a hash, combining its two halves so that one hash gives all the counters
+   */
+  private static int counter(long hash, int i){
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    return (h1 + i * h2) & (COUNTERS - 1);
+  }
+
+  /**
+   * Returns a one line summary of the cache for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    expire(System.currentTimeMillis());
+    return String.format("  waiting: %d; misses: %d; suppressed: %d; reduced: %d; cleared: %d", waiting.size(), misses,
+        suppressed, reduced, cleared);
+  }
+
+  /**
+   * A forwarded query waiting for a hit
+   */
+  private static class Pending {
+    private MessageID messageID; // The query
+    private long hash; // Hash of its filename and the neighbor it came from
+    private long deadline; // When it counts as a miss
+    private boolean answered; // Set when a hit passed through
+
+    public Pending(MessageID messageID, long hash, long deadline){
+      this.messageID = messageID;
+      this.hash = hash;
+      this.deadline = deadline;
+    }
+  }
+}
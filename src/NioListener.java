@@ -0,0 +1,486 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The NioListener is an alternative to PeerSkeleton.listen() that is chosen at startup with the "nio" argument. Instead
+ * of a thread per connection, a few selector threads read every connection without blocking and assemble the frames.
+ * Each complete RPC is handed to a bounded pool of workers that run the PeerSkeleton handlers, so a burst of queries
+ * queues up instead of creating thousands of threads, and a slow peer can't hold up anybody else.
+ *
+ * The selector threads never run a handler themselves. The RPCs of a connection are handled one at a time and in the
+ * order they arrived, as on a thread per connection, so an invalidation is handled before a query that was sent after
+ * it. Sending a file can take a long time, so obtain and obtainRange, and connections without the handshake, run on a
+ * separate pool of transfer threads and can't take up the workers that route queries. When a pool has no room left,
+ * or a connection has MAX_QUEUED RPCs waiting, the selector thread stops reading that connection until a worker is
+ * free again, and the other peer waits in its socket buffer.
+ */
+public class NioListener {
+  public static final int IO_THREADS = 2; // Number of selector threads reading connections
+  public static final int WORKER_THREADS = 16; // Number of threads running the peer's handlers
+  public static final int WORKER_QUEUE = 1024; // How many connections may wait for a worker
+  public static final int TRANSFER_THREADS = 8; // Number of threads sending files
+  public static final int TRANSFER_QUEUE = 256; // How many connections may wait for a transfer thread
+  public static final int MAX_QUEUED = 64; // RPCs a connection may have waiting before it stops being read
+  public static final long RETRY = 100; // Milliseconds before a connection the pools had no room for is tried again
+  public static final int READ_BUFFER = 64 * 1024; // Size of each selector thread's read buffer
+
+  private PeerSkeleton skeleton; // Handlers that complete the RPCs
+  private int port; // Port to listen on
+  private MeteredExecutor workers; // Pool running the handlers
+  private MeteredExecutor transfers; // Pool sending files and serving connections without the handshake
+  private ArrayList<IOLoop> loops; // Selector threads, connections are spread evenly among them
+
+  /**
+   * Creates an NioListener that will hand RPCs to the given skeleton
+   * @param skeleton the skeleton whose handlers complete the RPCs
+   * @param port the port to listen on
+   */
+  public NioListener(PeerSkeleton skeleton, int port){
+    this.skeleton = skeleton;
+    this.port = port;
+
+    // When every thread is busy and the queue is full a connection is turned away, and stops being read until it can
+    // be handed over
+    this.workers = MeteredExecutor.wrap("nio-workers", new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WORKER_QUEUE), new ThreadPoolExecutor.AbortPolicy()));
+    this.transfers = MeteredExecutor.wrap("nio-transfers", new ThreadPoolExecutor(TRANSFER_THREADS,
+        TRANSFER_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(TRANSFER_QUEUE),
+        new ThreadPoolExecutor.AbortPolicy()));
+    this.loops = new ArrayList<IOLoop>();
+  }
+
+  /**
+   * Checks whether an RPC sends a file, and so may take long enough to run on the transfer threads
+   * @param rpc the name of the RPC
+   * @return true for obtain and obtainRange
+   */
+  private static boolean isTransfer(String rpc){
+    return rpc.equals("obtain") || rpc.equals("obtainRange");
+  }
+
+  /**
+   * Lets the selector threads know that a thread is free, so the connections the pools had no room for are tried again
+   */
+  private void freed(){
+    for(IOLoop loop : loops){
+      if(!loop.stalled.isEmpty()){
+        loop.freed.set(true);
+        loop.selector.wakeup();
+      }
+    }
+  }
+
+  /**
+   * Accepts incoming connections and hands them to the selector threads. Should be called on a separate thread so that
+   * a peer could also make its own requests.
+   */
+  public void listen(){
+    try {
+      // Start the selector threads
+      for(int i = 0; i < IO_THREADS; i++){
+        IOLoop loop = new IOLoop();
+        loops.add(loop);
+        new Thread(loop::run).start();
+      }
+
+      // Create a ServerSocketChannel with the given port number
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port));
+
+      // Infinitely accept connections, spreading them over the selector threads
+      int next = 0;
+      while(true){
+        SocketChannel channel = server.accept();
+        loops.get(next).register(channel);
+        next = (next + 1) % loops.size();
+      }
+    } catch (Exception e){
+      // An error occurred in the connection
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * A selector thread. It reads every connection registered with it and turns the bytes into frames.
+   */
+  private class IOLoop {
+    private Selector selector; // Selector watching this thread's connections
+    private ConcurrentLinkedQueue<SocketChannel> pending; // Connections waiting to be registered
+    private ArrayList<Session> handoffs; // Unframed connections to be served on a transfer thread
+    private ConcurrentLinkedQueue<Session> stalled; // Connections the pools had no room for
+    private ConcurrentLinkedQueue<Session> resumed; // Connections whose backlog went down, to be read again
+    private ByteBuffer buffer; // Buffer that all of this thread's reads go through
+    private AtomicBoolean freed = new AtomicBoolean(); // Set when a thread is free to take a stalled connection
+    private long retried; // When the stalled connections were last tried again
+
+    /**
+     * Creates a selector thread with no connections
+     * @throws IOException if the selector couldn't be opened
+     */
+    public IOLoop() throws IOException {
+      this.selector = Selector.open();
+      this.pending = new ConcurrentLinkedQueue<SocketChannel>();
+      this.handoffs = new ArrayList<Session>();
+      this.stalled = new ConcurrentLinkedQueue<Session>();
+      this.resumed = new ConcurrentLinkedQueue<Session>();
+      this.buffer = ByteBuffer.allocateDirect(READ_BUFFER);
+    }
+
+    /**
+     * Queues a new connection for this thread to read
+     * @param channel the accepted connection
+     */
+    public void register(SocketChannel channel){
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    /**
+     * The method that the selector thread runs. Waits for connections to become readable and reads them.
+     */
+    public void run(){
+      while(true){
+        try {
+          selector.select(stalled.isEmpty() ? 0 : RETRY);
+
+          // Register connections accepted since the last select
+          SocketChannel channel;
+          while((channel = pending.poll()) != null){
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session session = new Session(channel);
+            channel.register(selector, SelectionKey.OP_READ, session);
+          }
+
+          // Stop reading the connections the pools had no room for, and try them again once a thread is free
+          long now = System.currentTimeMillis();
+          boolean retry = freed.getAndSet(false) || now - retried >= RETRY;
+          if(retry){
+            retried = now;
+          }
+          for(int i = stalled.size(); i > 0; i--){
+            Session session = stalled.poll();
+            if(!retry || !session.dispatch()){
+              stalled.add(session);
+            }
+            session.interest();
+          }
+          Session session;
+          while((session = resumed.poll()) != null){
+            session.interest();
+          }
+
+          // Read every connection that has data
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while(keys.hasNext()){
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            session = (Session) key.attachment();
+            try {
+              if(!key.isValid() || !read(session)){
+                session.close();
+              } else {
+                session.interest();
+              }
+            } catch (Exception e){
+              e.printStackTrace(); // An error occurred
+              session.close();
+            }
+          }
+
+          // Unframed connections carry a single RPC read with blocking streams, so serve them on a transfer thread.
+          // Their keys were cancelled while reading, and a channel can only go back to blocking once the cancellation
+          // is flushed.
+          if(!handoffs.isEmpty()){
+            selector.selectNow();
+            for(Session handoff : handoffs){
+              handoff.channel.configureBlocking(true);
+              handoff.start();
+            }
+            handoffs.clear();
+          }
+        } catch (Exception e){
+          e.printStackTrace(); // An error occurred
+        }
+      }
+    }
+
+    /**
+     * Reads whatever a connection has to offer and hands every complete frame to a worker
+     * @param session the connection to read
+     * @return false if the other peer closed the connection
+     * @throws IOException if the connection failed
+     */
+    private boolean read(Session session) throws IOException {
+      buffer.clear();
+      int count = session.channel.read(buffer);
+      if(count < 0){
+        return false;
+      }
+      buffer.flip();
+
+      while(buffer.hasRemaining()){
+        if(session.header.hasRemaining()){
+          // Still reading the handshake
+          transfer(buffer, session.header);
+          if(session.header.hasRemaining()){
+            break;
+          }
+          if(session.header.getInt(0) != PeerConnection.MAGIC){
+            // The other peer skipped the handshake, keep everything read so far for the blocking streams
+            session.prefix = new byte[session.header.capacity() + buffer.remaining()];
+            session.header.flip();
+            session.header.get(session.prefix, 0, session.header.capacity());
+            buffer.get(session.prefix, session.header.capacity(), buffer.remaining());
+            session.key().cancel();
+            handoffs.add(session);
+            return true;
+          }
+        } else if(session.version.hasRemaining()){
+          // Acknowledge the version the other peer asked for with the version both peers speak
+          transfer(buffer, session.version);
+          int version = PeerConnection.acceptVersion(session.version.get(0) & 0xFF);
+          session.connection.setVersion(version);
+          session.output.write(version);
+        } else if(session.length.hasRemaining()){
+          // Reading the length of the next frame
+          transfer(buffer, session.length);
+          if(!session.length.hasRemaining()){
+            int length = session.length.getInt(0);
+            if(length < 0 || length > PeerConnection.MAX_FRAME){
+              throw new IOException("Invalid frame length " + length);
+            }
+            session.frame = ByteBuffer.allocate(length);
+          }
+        } else {
+          // Reading the frame itself
+          transfer(buffer, session.frame);
+        }
+
+        // Queue a complete frame for the connection's worker and get ready for the next one
+        if(session.frame != null && !session.frame.hasRemaining()){
+          byte[] frame = session.frame.array();
+          session.frame = null;
+          session.length.clear();
+          session.queue(frame);
+        }
+      }
+
+      return true;
+    }
+
+    /**
+     * Copies as many bytes as fit from one buffer into another
+     * @param from buffer to copy from
+     * @param to buffer to copy into
+     */
+    private void transfer(ByteBuffer from, ByteBuffer to){
+      int count = Math.min(from.remaining(), to.remaining());
+      ByteBuffer slice = from.slice();
+      slice.limit(count);
+      to.put(slice);
+      from.position(from.position() + count);
+    }
+
+    /**
+     * State kept for each connection between reads
+     */
+    private class Session {
+      private SocketChannel channel; // The connection
+      private ByteBuffer header = ByteBuffer.allocate(4); // First four bytes, tell a handshake from an unframed RPC
+      private ByteBuffer version = ByteBuffer.allocate(1); // Protocol version asked for in the handshake
+      private ByteBuffer length = ByteBuffer.allocate(4); // Length of the frame being read
+      private ByteBuffer frame; // The frame being read, null between frames
+      private byte[] prefix; // Bytes read from an unframed connection before it was handed to a worker
+      private ChannelOutputStream output; // Stream the replies are written to
+      private PeerConnection connection; // Connection handed to the handlers for replies
+      private ArrayDeque<Request> requests = new ArrayDeque<Request>(); // RPCs read but not handled yet, in order
+      private boolean running; // Set while a thread of either pool has the connection, or it waits for room in one
+      private boolean stopped; // Set while the pools have no room for the connection
+
+      public Session(SocketChannel channel){
+        this.channel = channel;
+        this.output = new ChannelOutputStream(channel);
+        this.connection = PeerConnection.accept(channel, output, PeerConnection.UNFRAMED);
+      }
+
+      /**
+       * Queues the RPC in a frame behind the ones read before it, and hands the connection to a pool unless one has it
+       * already. Called on the selector thread.
+       * @param frame the frame holding the RPC
+       * @throws IOException if the frame can't be read
+       */
+      public void queue(byte[] frame) throws IOException {
+        MessageReader request = connection.openFrame(frame);
+        String rpc = request.readRpc();
+        synchronized(this){
+          requests.add(new Request(rpc, request));
+          if(running){
+            return; // Handled after the ones before it
+          }
+          running = true;
+        }
+        if(!dispatch()){
+          stalled.add(this);
+        }
+      }
+
+      /**
+       * Hands a connection without the handshake to a transfer thread. Called on the selector thread.
+       */
+      public void start(){
+        synchronized(this){
+          running = true;
+        }
+        if(!dispatch()){
+          stalled.add(this);
+        }
+      }
+
+      /**
+       * Hands the connection to the pool its next RPC runs on
+       * @return false if that pool had no room, and the connection stopped until it is tried again
+       */
+      private boolean dispatch(){
+        boolean transfer;
+        synchronized(this){
+          transfer = prefix != null || (!requests.isEmpty() && isTransfer(requests.peek().rpc));
+        }
+        MeteredExecutor pool = transfer ? transfers : workers;
+        synchronized(this){
+          stopped = false; // Before the pool can have it, since it may stop again right away
+        }
+        try {
+          if(prefix != null){
+            pool.execute(() -> {
+              try {
+                skeleton.serve(channel.socket(), prefix);
+              } finally {
+                freed();
+              }
+            });
+          } else {
+            pool.execute(() -> drain(transfer));
+          }
+          return true;
+        } catch (RejectedExecutionException e){
+          synchronized(this){
+            stopped = true;
+          }
+          return false;
+        }
+      }
+
+      /**
+       * Runs the handlers of the RPCs waiting, one at a time, for as long as they belong on the same pool. Runs on a
+       * thread of that pool.
+       * @param transfer true if running on the transfer threads
+       */
+      private void drain(boolean transfer){
+        try {
+          while(true){
+            Request next;
+            boolean resume;
+            synchronized(this){
+              next = requests.peek();
+              if(next == null){
+                running = false;
+                return;
+              }
+              if(isTransfer(next.rpc) != transfer){
+                break; // Runs on the other pool
+              }
+              requests.poll();
+              resume = requests.size() == MAX_QUEUED - 1;
+            }
+            if(resume){
+              // The selector thread may have stopped reading the connection while its backlog was full
+              resumed.add(this);
+              selector.wakeup();
+            }
+            handle(next);
+          }
+
+          // Move the connection over to the other pool, or have the selector thread try again once it has room
+          if(!dispatch()){
+            stalled.add(this);
+            selector.wakeup();
+          }
+        } finally {
+          freed();
+        }
+      }
+
+      /**
+       * Runs the handler for an RPC
+       * @param request the RPC
+       */
+      private void handle(Request request){
+        try {
+          skeleton.handle(connection, request.rpc, request.reader);
+        } catch (Exception e){
+          e.printStackTrace(); // An error occurred
+          close(); // The reply stream may be out of step now
+          synchronized(this){
+            requests.clear(); // Their replies can't be sent anymore
+          }
+        }
+      }
+
+      /**
+       * Reads the connection only while its RPCs have somewhere to go. Called on the selector thread.
+       */
+      private void interest(){
+        SelectionKey key = key();
+        if(key == null || !key.isValid()){
+          return; // Closed, or handed over to blocking streams
+        }
+        boolean read;
+        synchronized(this){
+          read = !stopped && requests.size() < MAX_QUEUED;
+        }
+        key.interestOps(read ? SelectionKey.OP_READ : 0);
+      }
+
+      public SelectionKey key(){
+        return channel.keyFor(selector);
+      }
+
+      /**
+       * Closes the connection and releases the reply stream
+       */
+      public void close(){
+        connection.close();
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * An RPC read from a connection, waiting for its handler
+   */
+  private static class Request {
+    private String rpc; // Name of the RPC
+    private MessageReader reader; // Reader holding the rest of it
+
+    public Request(String rpc, MessageReader reader){
+      this.rpc = rpc;
+      this.reader = reader;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An OutboundQueue holds the messages waiting to be sent to one neighbor. Fanning a query or an invalidation out to
+ * the neighbors only puts it on each neighbor's queue, and a sender worker per neighbor sends the messages in order,
+ * so a neighbor that is slow or can't be reached only holds up its own messages instead of the whole peer.
+ *
+ * Each queue is bounded. When a query or search arrives at a full queue, the overflow policy decides which one is
+ * dropped: the new one (DROP_NEWEST) or the oldest one waiting (DROP_OLDEST). Hits, invalidations and cancels are
+ * queued past that bound, since losing one may leave a download or a stale copy hanging. They still can't pile up
+ * without end for a neighbor that can't be reached, so no more than MAX_DEPTH messages of any kind wait for one
+ * neighbor: past that, the oldest message waiting makes room and is counted as overflow. Once the peer that started a
+ * query or search cancels it, every message of it still waiting is dropped.
+ *
+ * Messages that pile up while the sender is busy go out together in a single batch frame. After the first message of
+ * a batch is queued the sender lingers for Peer.LINGER milliseconds, or until MAX_BATCH messages are waiting, so that
+ * a burst of messages shares one frame at the cost of that small delay.
+ */
+public class OutboundQueue {
+  public static final int CAPACITY = 256; // Most droppable messages waiting for one neighbor
+  public static final int MAX_DEPTH = 4 * CAPACITY; // Most messages of any kind waiting for one neighbor
+  public static final int DROP_NEWEST = 0, DROP_OLDEST = 1; // Overflow policies
+  public static final int MAX_BATCH = 64; // Most messages sent in one batch frame
+
+  private static final Map<PeerID, OutboundQueue> queues = new ConcurrentHashMap<PeerID, OutboundQueue>(); // By peer
+  private static final MeteredExecutor senders = MeteredExecutor.create("senders"); // Runs a sender per neighbor
+
+  private PeerStub stub; // The neighbor the messages go to
+  private LinkedList<Message> messages = new LinkedList<Message>(); // Messages waiting to be sent, oldest first
+  private int droppable; // Waiting messages that the overflow policy may drop
+  private boolean sending; // Set once the sender worker is started
+
+  private long sent; // Messages sent
+  private long frames; // Frames the messages were sent in
+  private long dropped; // Messages dropped by the overflow policy
+  private long overflow; // Messages dropped because MAX_DEPTH messages were waiting
+  private long cancelled; // Messages dropped because their query or search was cancelled
+  private int peakDepth; // Most messages ever waiting at once
+  private long totalLatency; // Time from queueing to sent, summed over every message, in nanoseconds
+  private long maxLatency; // Longest time from queueing to sent, in nanoseconds
+
+  /**
+   * Creates an empty queue for the given neighbor
+   * @param ID the neighbor
+   */
+  private OutboundQueue(PeerID ID){
+    this.stub = new PeerStub(ID);
+  }
+
+  /**
+   * Returns the queue for the given peer, creating it the first time
+   * @param ID the peer
+   * @return the peer's queue
+   */
+  public static OutboundQueue to(PeerID ID){
+    return queues.computeIfAbsent(ID, OutboundQueue::new);
+  }
+
+  // ********
+  // Messages
+  // ********
+
+  /**
+   * Queues a query for the neighbor. See PeerStub.query
+   */
+  public void query(PeerID upstream, MessageID messageID, int TTL, String filename){
+    offer(new Message(true, messageID, PeerStub.packQuery(upstream, messageID, TTL, filename)));
+  }
+
+  /**
+   * Queues a hitQuery for the neighbor. See PeerStub.hitQuery
+   */
+  public void hitQuery(MessageID messageID, int TTL, String filename, PeerID address, int version){
+    offer(new Message(false, messageID, PeerStub.packHitQuery(messageID, TTL, filename, address, version)));
+  }
+
+  /**
+   * Queues an invalidation for the neighbor. See PeerStub.invalidate
+   */
+  public void invalidate(MessageID messageID, PeerID originServer, String filename, int version){
+    offer(new Message(false, null, PeerStub.packInvalidate(messageID, originServer, filename, version)));
+  }
+
+  /**
+   * Queues a random walker for the neighbor. See PeerStub.packWalk
+   */
+  public void walk(PeerID upstream, MessageID messageID, int TTL, String filename){
+    offer(new Message(true, messageID, PeerStub.packWalk(upstream, messageID, TTL, filename)));
+  }
+
+  /**
+   * Queues a keyword search for the neighbor. See PeerStub.packSearch
+   */
+  public void search(PeerID upstream, MessageID messageID, int TTL, String search){
+    offer(new Message(true, messageID, PeerStub.packSearch(upstream, messageID, TTL, search)));
+  }
+
+  /**
+   * Queues search results for the neighbor. See PeerStub.packSearchHit
+   */
+  public void searchHit(MessageID messageID, int TTL, PeerID address, List<SearchResult> results){
+    offer(new Message(false, messageID, PeerStub.packSearchHit(messageID, TTL, address, results)));
+  }
+
+  /**
+   * Queues a cancellation for the neighbor. See PeerStub.packCancel
+   */
+  public void cancel(MessageID messageID){
+    offer(new Message(false, null, PeerStub.packCancel(messageID)));
+  }
+
+  /**
+   * Drops the messages of a cancelled query or search still waiting on any queue, hits included, since nobody wants
+   * them anymore
+   * @param messageID the query or search
+   */
+  public static void purge(MessageID messageID){
+    for(OutboundQueue queue : queues.values()){
+      queue.remove(messageID);
+    }
+  }
+
+  // *******
+  // Sending
+  // *******
+
+  /**
+   * Puts a message on the queue, applying the overflow policy if the queue is full, and wakes up the sender
+   * @param message the message to send
+   */
+  private synchronized void offer(Message message){
+    if(message.droppable && droppable >= CAPACITY){
+      dropped++;
+      if(Peer.OVERFLOW == DROP_NEWEST){
+        return;
+      }
+      dropOldest();
+    }
+    if(messages.size() >= MAX_DEPTH){
+      // Full of messages that aren't normally dropped, such as for a neighbor that can't be reached. A query or search
+      // goes unsent, anything else takes the place of the oldest message.
+      overflow++;
+      if(message.droppable){
+        return;
+      }
+      if(droppable > 0){
+        dropOldest();
+      } else {
+        messages.removeFirst();
+      }
+    }
+
+    messages.addLast(message);
+    if(message.droppable){
+      droppable++;
+    }
+    peakDepth = Math.max(peakDepth, messages.size());
+
+    // Start the sender the first time anything is sent to this neighbor
+    if(!sending){
+      sending = true;
+      senders.execute(this::send);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Sends the queued messages in order, forever, batching together the ones that are waiting at the same time. Runs
+   * on the neighbor's sender worker.
+   */
+  private void send(){
+    List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+    List<PeerStub.Batchable> packed = new ArrayList<PeerStub.Batchable>(MAX_BATCH);
+    while(true){
+      batch.clear();
+      packed.clear();
+      synchronized(this){
+        try {
+          while(messages.isEmpty()){
+            wait();
+          }
+
+          // Linger a moment so that messages queued right behind this one go in the same frame
+          long deadline = System.currentTimeMillis() + Peer.LINGER;
+          long left;
+          while(messages.size() < MAX_BATCH && (left = deadline - System.currentTimeMillis()) > 0){
+            wait(left);
+          }
+        } catch (InterruptedException e){
+          e.printStackTrace();
+        }
+
+        while(!messages.isEmpty() && batch.size() < MAX_BATCH){
+          Message message = messages.removeFirst();
+          if(message.droppable){
+            droppable--;
+          }
+          batch.add(message);
+          packed.add(message.packed);
+        }
+      }
+
+      // The stub reports its own errors, so failed messages are simply gone
+      if(batch.size() == 1){
+        stub.send(packed.get(0));
+      } else {
+        stub.batch(packed);
+      }
+
+      long now = System.nanoTime();
+      synchronized(this){
+        frames++;
+        for(Message message : batch){
+          long latency = now - message.queued;
+          sent++;
+          totalLatency += latency;
+          maxLatency = Math.max(maxLatency, latency);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes every waiting message of a query or search
+   * @param messageID the query or search
+   */
+  private synchronized void remove(MessageID messageID){
+    Iterator<Message> iterator = messages.iterator();
+    while(iterator.hasNext()){
+      Message message = iterator.next();
+      if(message.messageID != null && message.messageID.equals(messageID)){
+        iterator.remove();
+        if(message.droppable){
+          droppable--;
+        }
+        cancelled++;
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest waiting message that may be dropped
+   */
+  private void dropOldest(){
+    Iterator<Message> iterator = messages.iterator();
+    while(iterator.hasNext()){
+      if(iterator.next().droppable){
+        iterator.remove();
+        droppable--;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns a one line summary of the queue for the stats
+   * @return the summary
+   */
+  public synchronized String print(){
+    double average = sent == 0 ? 0 : totalLatency / 1e6 / sent;
+    double perFrame = frames == 0 ? 0 : (double) sent / frames;
+    return String.format("  %-22s depth: %d (peak %d); sent: %d in %d frames (%.1f each); dropped: %d; overflow: %d; "
+        + "cancelled: %d; latency avg %.1f ms, max %.1f ms", stub.getID(), messages.size(), peakDepth, sent, frames,
+        perFrame, dropped, overflow, cancelled, average, maxLatency / 1e6);
+  }
+
+  /**
+   * A message waiting to be sent
+   */
+  private static class Message {
+    private boolean droppable; // Whether the overflow policy may drop it
+    private MessageID messageID; // The query or search it belongs to, null if it can't be cancelled
+    private PeerStub.Batchable packed; // Packs the message into a frame
+    private long queued = System.nanoTime(); // When it was queued
+
+    public Message(boolean droppable, MessageID messageID, PeerStub.Batchable packed){
+      this.droppable = droppable;
+      this.messageID = messageID;
+      this.packed = packed;
+    }
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public static Collection<OutboundQueue> getQueues(){
+    return queues.values();
+  }
+
+  public synchronized int getDepth(){
+    return messages.size();
+  }
+}
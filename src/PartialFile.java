@@ -0,0 +1,332 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PartialFile is a download in progress in the shared directory. The file is split into fixed-size pieces, and
+ * which pieces have been written is kept in a small state file next to it, so that a download that was cut off can
+ * pick up where it stopped instead of starting over. The state file holds the version and size of the file being
+ * downloaded, the piece size and one bit per piece:
+ *   version (4 bytes), size (8 bytes), piece size (4 bytes), piece bitmap
+ * A download of a different version or size starts from scratch. The state file is removed once every piece is in.
+ *
+ * The pieces are written to a file of their own, named with DATA_SUFFIX, which replaces the file by that name in one
+ * atomic rename once every piece is in. Until then the version the peer already had stays whole and is still served,
+ * and a transfer that is sending it when the rename happens goes on sending it to the end.
+ *
+ * If the DanFile being downloaded carries a Merkle root, each piece is checked against it as soon as it is written
+ * (see MerkleTree), and only a piece that matches counts as in. The pieces that matched, along with the proofs they
+ * came with, can be sent on to other peers while the rest of the file is still coming in, so every download open on
+ * this peer can be found by its filename.
+ */
+public class PartialFile {
+  public static final int PIECE_SIZE = 256 * 1024; // Size of the pieces a file is split into
+  public static final String STATE_SUFFIX = ".partial"; // Added to the file name to name the state file
+  public static final String DATA_SUFFIX = ".download"; // Added to the file name to name the file being written
+  private static final int HEADER = 4 + 8 + 4; // Bytes in front of the bitmap
+
+  private static final Map<String, PartialFile> downloads = new ConcurrentHashMap<String, PartialFile>(); // Open ones
+
+  private DanFile danFile; // The version of the file being downloaded, as its source described it
+  private String filename; // Name of the file being downloaded
+  private int version; // Version of the file being downloaded
+  private long size; // Size of the whole file
+  private int pieceCount; // How many pieces the file has
+  private byte[] bitmap; // One bit per piece, set once the piece is written
+  private int missing; // Pieces not written yet
+  private byte[][] proofs; // Proof of each piece that matched the root since the download was opened
+
+  private FileChannel file; // The file being written
+  private RandomAccessFile state; // The state file
+
+  /**
+   * Opens the download of the given version of a file, resuming it if a state file for the same version and size is
+   * found
+   * @param danFile the version of the file to download
+   * @param size size of the whole file
+   * @return the download
+   * @throws IOException if the file or the state file couldn't be opened
+   */
+  public static PartialFile open(DanFile danFile, long size) throws IOException {
+    PartialFile partial = new PartialFile();
+    partial.danFile = danFile;
+    partial.filename = danFile.getFilename();
+    partial.version = danFile.getVersion();
+    partial.size = size;
+    partial.pieceCount = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+    partial.bitmap = new byte[(partial.pieceCount + 7) / 8];
+    partial.missing = partial.pieceCount;
+    partial.proofs = new byte[partial.pieceCount][];
+
+    File data = partial.getFile();
+    File stateFile = new File(Peer.OTHER_FILES_DIR + partial.filename + STATE_SUFFIX);
+    boolean resume = data.exists() && partial.load(stateFile);
+
+    // Anything that isn't a matching download in progress, such as an earlier attempt at another version, is thrown
+    // away. Pieces are read back to check them against the root.
+    if(resume){
+      partial.file = FileChannel.open(data.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } else {
+      partial.file = FileChannel.open(data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    partial.state = new RandomAccessFile(stateFile, "rw");
+    if(!resume){
+      partial.state.setLength(0);
+      partial.state.writeInt(partial.version);
+      partial.state.writeLong(size);
+      partial.state.writeInt(PIECE_SIZE);
+      partial.state.write(partial.bitmap);
+    }
+
+    downloads.put(partial.filename, partial);
+    return partial;
+  }
+
+  /**
+   * Finds the download of a file open on this peer
+   * @param filename name of the file
+   * @return the download, null if the file isn't being downloaded
+   */
+  public static PartialFile find(String filename){
+    return downloads.get(filename);
+  }
+
+  /**
+   * Reads a state file left by an earlier attempt
+   * @param stateFile the state file
+   * @return true if it belongs to a download of the same version and size
+   */
+  private boolean load(File stateFile){
+    if(!stateFile.exists() || stateFile.length() != HEADER + bitmap.length){
+      return false;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(stateFile, "r")) {
+      if(raf.readInt() != version || raf.readLong() != size || raf.readInt() != PIECE_SIZE){
+        return false;
+      }
+      raf.readFully(bitmap);
+    } catch (IOException e){
+      e.printStackTrace();
+      return false;
+    }
+
+    // Count the pieces that are still missing
+    missing = 0;
+    for(int i = 0; i < pieceCount; i++){
+      if(!has(i)){
+        missing++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Opens the file being written for reading, to send the pieces that are in on to other peers
+   * @return the stream, null if the file is gone, such as when it was just completed and renamed
+   */
+  public FileInputStream read(){
+    try {
+      return new FileInputStream(getFile());
+    } catch (IOException e){
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether a piece has been written
+   * @param piece index of the piece
+   * @return true if the piece is in the file
+   */
+  public synchronized boolean has(int piece){
+    return (bitmap[piece / 8] & (1 << (piece % 8))) != 0;
+  }
+
+  /**
+   * Records that a piece has been written to the file
+   * @param piece index of the piece
+   * @throws IOException if the state file couldn't be updated
+   */
+  public synchronized void complete(int piece) throws IOException {
+    if(has(piece)){
+      return;
+    }
+    bitmap[piece / 8] |= 1 << (piece % 8);
+    missing--;
+
+    // Only the byte holding the piece's bit changes
+    state.seek(HEADER + piece / 8);
+    state.write(bitmap[piece / 8]);
+  }
+
+  /**
+   * Checks a piece that was just written against the Merkle root of the file, and keeps its proof to send it onward
+   * @param piece index of the piece
+   * @param proofs holds the proof the piece came with, may be null if none came
+   * @param offset where the proof starts in proofs
+   * @return true if the piece matches, or the file has no root to check it against
+   */
+  public boolean verify(int piece, byte[] proofs, int offset){
+    if(danFile.getRoot() == null){
+      return true; // Only the whole file can be checked, once it is in
+    }
+    try {
+      byte[] hash = MerkleTree.hash(file, offset(piece), (int) length(piece));
+      if(!MerkleTree.verify(hash, piece, pieceCount, proofs, offset, danFile.getRoot())){
+        return false;
+      }
+    } catch (IOException e){
+      e.printStackTrace();
+      return false;
+    }
+    synchronized(this){
+      this.proofs[piece] = Arrays.copyOfRange(proofs, offset, offset + MerkleTree.proofLength(piece, pieceCount));
+    }
+    return true;
+  }
+
+  /**
+   * Works out how much of a range can be sent onward: the pieces from its start that matched the root since the
+   * download was opened. Pieces resumed from an earlier attempt have no proof to send with them, so they don't count.
+   * @param offset where the range starts, which must be the start of a piece
+   * @param length how long the range is
+   * @return how many bytes from the start of the range can be sent
+   */
+  public synchronized long available(long offset, long length){
+    if(danFile.getRoot() == null || offset % PIECE_SIZE != 0){
+      return 0;
+    }
+    long end = offset;
+    for(int piece = (int) (offset / PIECE_SIZE); piece < pieceCount && end < offset + length; piece++){
+      if(!has(piece) || proofs[piece] == null){
+        break;
+      }
+      end = offset(piece) + length(piece);
+    }
+    return Math.min(end, offset + length) - offset;
+  }
+
+  /**
+   * Returns the proofs of a run of pieces that matched the root, one after the other
+   * @param first index of the first piece
+   * @param last index of the last piece
+   * @return the proofs
+   */
+  public synchronized byte[] proofs(int first, int last){
+    int total = 0;
+    for(int piece = first; piece <= last; piece++){
+      total += proofs[piece].length;
+    }
+    byte[] run = new byte[total];
+    int at = 0;
+    for(int piece = first; piece <= last; piece++){
+      System.arraycopy(proofs[piece], 0, run, at, proofs[piece].length);
+      at += proofs[piece].length;
+    }
+    return run;
+  }
+
+  /**
+   * Lists the pieces that still have to be downloaded, in order
+   * @return indexes of the missing pieces
+   */
+  public synchronized List<Integer> missingPieces(){
+    List<Integer> pieces = new ArrayList<Integer>();
+    for(int i = 0; i < pieceCount; i++){
+      if(!has(i)){
+        pieces.add(i);
+      }
+    }
+    return pieces;
+  }
+
+  /**
+   * Returns where a piece starts in the file
+   * @param piece index of the piece
+   * @return offset of the piece
+   */
+  public long offset(int piece){
+    return (long) piece * PIECE_SIZE;
+  }
+
+  /**
+   * Returns how long a piece is. Every piece but the last is PIECE_SIZE long.
+   * @param piece index of the piece
+   * @return length of the piece
+   */
+  public long length(int piece){
+    return Math.min(PIECE_SIZE, size - offset(piece));
+  }
+
+  /**
+   * Closes the download. If every piece is in, the file replaces the one by its name and the state file is removed,
+   * otherwise both are kept for the next attempt.
+   */
+  public synchronized void close(){
+    downloads.remove(filename, this);
+    try {
+      file.close();
+      state.close();
+      if(missing == 0){
+        Files.move(getFile().toPath(), new File(Peer.OTHER_FILES_DIR + filename).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new File(Peer.OTHER_FILES_DIR + filename + STATE_SUFFIX).delete();
+      }
+    } catch (IOException e){
+      e.printStackTrace();
+    }
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public FileChannel getChannel(){
+    return file;
+  }
+
+  public File getFile(){
+    return new File(Peer.OTHER_FILES_DIR + filename + DATA_SUFFIX);
+  }
+
+  public DanFile getDanFile(){
+    return danFile;
+  }
+
+  public String getFilename(){
+    return filename;
+  }
+
+  public int getVersion(){
+    return version;
+  }
+
+  public long getSize(){
+    return size;
+  }
+
+  public int getPieceCount(){
+    return pieceCount;
+  }
+
+  public synchronized int getMissing(){
+    return missing;
+  }
+
+  public synchronized boolean isComplete(){
+    return missing == 0;
+  }
+}
@@ -3,9 +3,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Peer class is where most of the Gnutella implementation is located, because no central indexing server
@@ -28,22 +38,58 @@ public class Peer {
 
   // Numeric Constants
   public static final int DEFAULT_TTL = 5; // Default number of hops for messages
-  public static final int MESSAGE_CACHE = 10; // Default size of associative array for messages
+  public static final int SWARM_HISTORY = 10; // Number of swarm downloads remembered so late hits find theirs
   public static final long TTR = 1000 * 60; // Default length of TTR (time to refresh/poll)
+  public static final int MAX_RESULTS = 64; // Most files a peer returns for one search
+  public static final int WALKERS = 4; // Random walkers sent out for a search
+  public static final int WALK_TTL = 64; // Hops a random walker makes at most
+  public static final int WALK_CHECK = 4; // Hops between a walker checking back with the peer that sent it
+  public static final int MAX_OUTSTANDING = 256; // Most searches this peer started whose hits are counted
 
   // Program configuration parameters
   public static final int PUSH = 0, PULL = 1;
   public static int MODE = PUSH;
-
-  // Instance variables
+  public static boolean POOLED = true; // Keep connections to other peers open between RPCs
+  public static boolean BINARY = true; // Offer the binary wire protocol instead of Java serialization
+  public static final int THREADED = 0, NIO = 1;
+  public static int SERVER = THREADED; // How incoming connections are served
+  public static final int PLATFORM = 0, VIRTUAL = 1;
+  public static int THREADS = VIRTUAL; // Kind of threads that handle messages, virtual if the JDK supports it
+  public static final int SINGLE = 0, SWARM = 1;
+  public static int DOWNLOAD = SINGLE; // Download from the first peer that answers, or from all of them at once
+  public static int OVERFLOW = OutboundQueue.DROP_OLDEST; // Which query a full outbound queue drops
+  public static final int FLOOD = 0, EXPANDING = 1, WALK = 2;
+  public static int SEARCH = FLOOD; // Send queries with the full TTL right away, in rings of growing TTL or as walkers
+  public static long LINGER = 5; // Milliseconds an outbound queue waits for more messages to batch, 0 to not wait
+  public static int MESSAGE_CACHE = 1 << 16; // Most messages remembered for dropping duplicates and routing hits back
+  public static long MESSAGE_EXPIRY = 1000 * 60 * 5; // Milliseconds a message is remembered at most
+  public static final int REVERSE = 0, DIRECT = 1;
+  public static int HITS = REVERSE; // Send hits back along the path the query took, or straight to the originator
+  public static int NEGATIVE = NegativeCache.REDUCE; // What to do with queries for files that recently went unanswered
+  public static long NEGATIVE_WINDOW = 1000 * 60; // Milliseconds an unanswered query is remembered at most
+  public static int DOWNLOADS = 8; // Most downloads running at once
+  public static int MAX_HITS = 8; // Hits after which a swarm download or keyword search this peer started is cancelled
+  public static boolean SNAPSHOT = true; // Start from the catalog the last run saved instead of only the own files
+  public static boolean WATCH = true; // Follow changes to the own files while running instead of only at startup
+
+  // Instance variables. The handlers below run on many threads at once, so there is no lock on the whole peer: each
+  // shared structure guards itself, and no lock is held while a message is sent or a file is transferred.
   private PeerID ID; // The ID of the peer
 
   private ArrayList<PeerStub> neighbors; // Neighboring peers to connect with
-  private ArrayList<DanFile> files; // List of files this peer contains
-  private LinkedList<MessagePair> messages; // Associative mapping from messageID to upstream
-  private LinkedList<MessageID> fileRequests; // List of files the peer is still waiting to get a hitQuery for
-
-  private int sequenceNumber = 0; // This peer's current sequence number for messages
+  private FileCatalog files; // List of files this peer contains
+  private MessageCache messages; // Associative mapping from messageID to upstream
+  private List<MessageID> fileRequests; // List of files the peer is still waiting to get a hitQuery for
+  private LinkedList<SwarmDownload> swarms; // Swarm downloads that are still collecting sources, guarded by itself
+  private QueryRouter router; // Route tables exchanged with the neighbors
+  private HitCache hits; // Hits recently passed on for other peers
+  private NegativeCache misses; // Queries recently passed on that no hit came back for
+  private MeteredExecutor direct; // Sends hits straight to the originator
+  private DownloadManager downloads; // Runs the downloads
+  private CatalogWatcher watcher; // Follows changes to the own files
+  private LinkedHashMap<MessageID, Integer> outstanding; // Hits so far of searches not cancelled yet, guarded by itself
+
+  private AtomicInteger sequenceNumber = new AtomicInteger(); // This peer's current sequence number for messages
   private int TTL = DEFAULT_TTL; // The TTL this peers' files have for pull-based consistency
 
   /**
@@ -54,19 +100,116 @@ public class Peer {
    */
   public static void main(String[] args){
 
-    // Read command line arguments if there are any (push vs pull)
+    // Read command line arguments if there are any (push vs pull, pooled vs unpooled connections, binary vs serialized
+    // messages, threaded vs nio, virtual vs platform threads, single vs swarm downloads, which queries full outbound
+    // queues drop, linger={milliseconds} to batch outgoing messages, cache={messages} and expiry={seconds} to size the
+    // message cache, flood vs expanding ring vs random walk searches, whether to suppress, reduce or keep forwarding
+    // queries that recently went unanswered and window={seconds} to remember them, reverse path vs direct hits,
+    // maxhits={hits} to cancel a swarm download or keyword search after, downloads={transfers} to run at once, whether
+    // to start from the saved catalog or rescan the own files, whether to watch the own files for changes)
     if(args.length == 0){
       System.out.println("No consistency configuration parameter provided. Using push-based consistency.");
-    } else {
-      if(args[0].equals("push")){
+    }
+    for(String arg : args){
+      if(arg.equals("push")){
         MODE = PUSH;
-      } else if(args[0].equals("pull")){
+      } else if(arg.equals("pull")){
         MODE = PULL;
+      } else if(arg.equals("pooled")){
+        POOLED = true;
+      } else if(arg.equals("unpooled")){
+        POOLED = false;
+      } else if(arg.equals("binary")){
+        BINARY = true;
+      } else if(arg.equals("serialized")){
+        BINARY = false;
+      } else if(arg.equals("threaded")){
+        SERVER = THREADED;
+      } else if(arg.equals("nio")){
+        SERVER = NIO;
+      } else if(arg.equals("virtual")){
+        THREADS = VIRTUAL;
+      } else if(arg.equals("platform")){
+        THREADS = PLATFORM;
+      } else if(arg.equals("single")){
+        DOWNLOAD = SINGLE;
+      } else if(arg.equals("swarm")){
+        DOWNLOAD = SWARM;
+      } else if(arg.equals("flood")){
+        SEARCH = FLOOD;
+      } else if(arg.equals("expanding")){
+        SEARCH = EXPANDING;
+      } else if(arg.equals("walk")){
+        SEARCH = WALK;
+      } else if(arg.equals("reverse")){
+        HITS = REVERSE;
+      } else if(arg.equals("direct")){
+        HITS = DIRECT;
+      } else if(arg.equals("snapshot")){
+        SNAPSHOT = true;
+      } else if(arg.equals("rescan")){
+        SNAPSHOT = false;
+      } else if(arg.equals("watch")){
+        WATCH = true;
+      } else if(arg.equals("nowatch")){
+        WATCH = false;
+      } else if(arg.equals("suppress")){
+        NEGATIVE = NegativeCache.SUPPRESS;
+      } else if(arg.equals("reduce")){
+        NEGATIVE = NegativeCache.REDUCE;
+      } else if(arg.equals("nosuppress")){
+        NEGATIVE = NegativeCache.OFF;
+      } else if(arg.startsWith("window=")){
+        try {
+          NEGATIVE_WINDOW = 1000 * Math.max(1, Long.parseLong(arg.substring("window=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid window " + arg + ". Using " + NEGATIVE_WINDOW / 1000 + " seconds.");
+        }
+      } else if(arg.startsWith("downloads=")){
+        try {
+          DOWNLOADS = Math.max(1, Integer.parseInt(arg.substring("downloads=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid downloads " + arg + ". Running " + DOWNLOADS + " at once.");
+        }
+      } else if(arg.startsWith("maxhits=")){
+        try {
+          MAX_HITS = Math.max(1, Integer.parseInt(arg.substring("maxhits=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid maxhits " + arg + ". Cancelling after " + MAX_HITS + " hits.");
+        }
+      } else if(arg.equals("dropoldest")){
+        OVERFLOW = OutboundQueue.DROP_OLDEST;
+      } else if(arg.equals("dropnewest")){
+        OVERFLOW = OutboundQueue.DROP_NEWEST;
+      } else if(arg.startsWith("linger=")){
+        try {
+          LINGER = Math.max(0, Long.parseLong(arg.substring("linger=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid linger " + arg + ". Using " + LINGER + " milliseconds.");
+        }
+      } else if(arg.startsWith("cache=")){
+        try {
+          MESSAGE_CACHE = Math.max(2, Integer.parseInt(arg.substring("cache=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid cache " + arg + ". Remembering " + MESSAGE_CACHE + " messages.");
+        }
+      } else if(arg.startsWith("expiry=")){
+        try {
+          MESSAGE_EXPIRY = 1000 * Math.max(1, Long.parseLong(arg.substring("expiry=".length())));
+        } catch (NumberFormatException e){
+          System.out.println("Invalid expiry " + arg + ". Using " + MESSAGE_EXPIRY / 1000 + " seconds.");
+        }
       } else {
-        System.out.println("Invalid command line arguments. Defaulting to push-based consistency.");
+        System.out.println("Invalid command line argument " + arg + ". Ignoring it.");
       }
     }
 
+    // Fall back to platform threads on JDKs without virtual threads
+    if(THREADS == VIRTUAL && !MeteredExecutor.virtualThreadsSupported()){
+      System.out.println("Virtual threads are not supported by this JDK. Using platform threads.");
+      THREADS = PLATFORM;
+    }
+
     // Initialize the peer
     Peer peer = initializePeer();
 
@@ -80,12 +223,33 @@ public class Peer {
     PeerSkeleton peerSkeleton = new PeerSkeleton(peer);
 
     // Start listening for incoming connections on a separate thread
-    new Thread(peerSkeleton::listen).start();
+    if(SERVER == NIO){
+      NioListener nioListener = new NioListener(peerSkeleton, peer.getPort());
+      new Thread(nioListener::listen).start();
+    } else {
+      new Thread(peerSkeleton::listen).start();
+    }
+
+    // Health-check pooled connections on a separate thread
+    if(POOLED){
+      new Thread(PeerStub.getPool()::maintain).start();
+    }
+
+    // Keep the neighbors' copies of this peer's route table up to date on a separate thread
+    MeteredExecutor.create("router").execute(peer.router::advertise);
+
+    // Check the catalog against the files on disk, now that the peer is up. When the own files are watched, the
+    // watcher does the check on its own thread before it applies any change, so the two never overlap.
+    if(WATCH){
+      MeteredExecutor.create("watcher").execute(peer.watcher::watch);
+    } else {
+      MeteredExecutor.create("catalog").execute(peer::reconcile);
+    }
 
     // If it's set to PULL mode create and deploy a lazy polling thread
     if(MODE == PULL){
       LazyPoller lazyPoller = new LazyPoller(peer);
-      new Thread(lazyPoller::autoPoll).start();
+      MeteredExecutor.create("poller").execute(lazyPoller::autoPoll);
     }
 
     // Run the command line interface
@@ -95,8 +259,15 @@ public class Peer {
   /**
    * Function to run the command line interface. Options include:
    * - get {filename} - starts a query through the network to download a file
+   * - get sha256:{hash} - same, for the file with that content, whatever it is called
+   * - get {filename} {flood|expanding|walk} - same, but searches this way instead of the way the peer was started with
+   * - search {keywords} - lists the files in the network whose names have all the keywords; a keyword ending in *
+   *   matches every word starting with it
    * - refresh - refreshes all files that are expired (pull-based)
    * - refresh {filename} - specifically refresh this file
+   * - downloads - shows the downloads running, with their progress, and how many are waiting
+   * - stats - shows the size of the catalog and message cache, query routing, and how busy the executors and outbound
+   *   queues are
    * @param peer
    */
   private static void runCLI(Peer peer) {
@@ -108,7 +279,8 @@ public class Peer {
     Scanner in = new Scanner(System.in);
 
     // Display options for peer
-    System.out.println("Please enter a command: get {filename}, files, edit {filename}, refresh, ? for help");
+    System.out.println("Please enter a command: get {filename}, search {keywords}, files, edit {filename}, refresh, "
+        + "downloads, stats, ? for help");
 
     // Keep asking for commands until user types exit
     while(true){
@@ -123,12 +295,26 @@ public class Peer {
       if(function.equals("exit")){
         // Shut down the peer by informing the user and ending all threads
         System.out.println("Shutting down peer. Goodbye!");
+        peer.files.checkpoint(); // So the next start reads one record per file
         System.exit(0); // End all threads
       } else if (function.equals("get")){
         if(command.length == 2){
           // Parse filename from command and query neighbors for filename
           String filename = command[1];
-          peer.get(filename);
+          peer.get(filename, SEARCH);
+          continue;
+        }
+        int mode = command.length == 3 ? Arrays.asList(SearchMetrics.MODES).indexOf(command[2]) : -1;
+        if(mode >= 0){
+          // Same, with the way of searching given after the filename
+          peer.get(command[1], mode);
+          continue;
+        }
+      } else if (function.equals("search")){
+        if(command.length >= 2){
+          // Everything after the command is the search
+          String search = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+          peer.search(search);
           continue;
         }
       } else if (function.equals("edit")){
@@ -146,9 +332,18 @@ public class Peer {
         // Refresh invalid files
         peer.refresh();
         continue;
+      } else if(function.equals("downloads")){
+        // Show the downloads in progress
+        System.out.println(peer.downloads.print());
+        continue;
+      } else if(function.equals("stats")){
+        // Show statistics
+        peer.printStats();
+        continue;
       } else if(function.equals("?")){
         // Display help message
-        System.out.println("Please enter a command: get {filename}, files, edit {filename}, refresh, ? for help");
+        System.out.println("Please enter a command: get {filename}, search {keywords}, files, edit {filename}, "
+            + "refresh, downloads, stats, ? for help");
         continue;
       }
 
@@ -157,6 +352,25 @@ public class Peer {
     }
   }
 
+  /**
+   * Lets the network know about a new version of a file this peer owns. In PUSH mode an invalidation goes out to every
+   * neighbor, in PULL mode the peers holding a copy find out when they next poll.
+   * @param danFile the file, with its new version
+   */
+  private void publish(DanFile danFile){
+    // Check if we're in PUSH mode
+    if(MODE == PUSH){
+      // Show user that it is being invalidated
+      System.out.println("Invalidating " + danFile.getFilename() + "; new version: " + danFile.getVersion());
+
+      // Broadcast an invalidation message to all neighboring peers
+      MessageID messageID = new MessageID(ID, sequenceNumber.getAndIncrement());
+      for(PeerStub peerStub : neighbors){
+        OutboundQueue.to(peerStub.getID()).invalidate(messageID, ID, danFile.getFilename(), danFile.getVersion());
+      }
+    }
+  }
+
   /**
    * Simulates an edit on a file
    * @param filename the name of the file to virtually edit
@@ -171,18 +385,8 @@ public class Peer {
       // Increment the version and set a new modified time
       danFile.setVersion(danFile.getVersion()+1);
       danFile.setLastModifiedTime(System.currentTimeMillis());
-
-      // Check if we're in PUSH mode
-      if(MODE == PUSH){
-        // Show user that it is being invalidated
-        System.out.println("Invalidating " + filename + "; new version: " + danFile.getVersion());
-
-        // Broadcast an invalidation message to all neighboring peers
-        MessageID messageID = new MessageID(ID, sequenceNumber++);
-        for(PeerStub peerStub : neighbors){
-          peerStub.invalidate(messageID, ID, filename, danFile.getVersion());
-        }
-      }
+      files.changed(danFile);
+      publish(danFile);
 
     } else {
       // Inform user he cannot edit a file he doesn't own
@@ -195,55 +399,60 @@ public class Peer {
    */
   private void listFiles() {
     System.out.println("List of Files:");
-    // Loops through each file
-    for(DanFile danFile : files){
+    // Loops through each file, in order of name
+    List<DanFile> list = files.snapshot();
+    list.sort(Comparator.comparing(DanFile::getFilename));
+    for(DanFile danFile : list){
       // Prints out its details
       System.out.println(danFile.print(this));
     }
   }
 
+  /**
+   * Prints statistics about the peer
+   */
+  private void printStats() {
+    System.out.println("Catalog:");
+    System.out.println(files.print());
+    if(WATCH){
+      System.out.println(watcher.print());
+    }
+    System.out.println("Message cache:");
+    System.out.println(messages.print());
+    System.out.println("Hit cache:");
+    System.out.println(hits.print());
+    System.out.println("Negative cache:");
+    System.out.println(misses.print());
+    System.out.println("Downloads:");
+    System.out.println(downloads.print());
+    System.out.println("Query routing:");
+    System.out.println(router.print());
+    System.out.println("Expanding rings:");
+    System.out.println(ExpandingRing.print());
+    System.out.println("Searches:");
+    System.out.println(SearchMetrics.print());
+    System.out.println("Executors:");
+    for(MeteredExecutor executor : MeteredExecutor.getExecutors()){
+      System.out.println(executor.print());
+    }
+    System.out.println("Outbound queues:");
+    for(OutboundQueue queue : OutboundQueue.getQueues()){
+      System.out.println(queue.print());
+    }
+  }
+
   private void refresh() {
-    // Update Invalid files directly
-    for(DanFile df : files){
+    // Queue a download of every invalid file from its origin server. They run in parallel, a few per origin at a time.
+    int queued = 0;
+    for(DanFile df : files.snapshot()){
       // Check if it is invalid
       if(df.getConsistency() == DanFile.INVALID){
-        // Create PeerStub to interact with the Peer that owns the file
-        PeerStub origin = new PeerStub(df.getOriginServer());
-
-        // Download file from that peer
-        DanFile danFile = origin.obtain(df.getFilename());
-
-        if(danFile != null){
-          // Since we already had it, update parameters
-          df.setVersion(danFile.getVersion());
-          df.setLastModifiedTime(danFile.getLastModifiedTime());
-          df.setConsistency(danFile.getConsistency());
-          df.setTTR(danFile.getTTR());
-          df.setLastPolledTime(System.currentTimeMillis());
-
-          System.out.println("Successfully refreshed " + df.getFilename());
-
-
-          // Print file contents if small file
-          try {
-            long length = new File(OTHER_FILES_DIR + df.getFilename()).length();
-            System.out.println("File size: " + length + " bytes.");
-            if(length > 1024){
-              System.out.println("File is larger than 1K - will not display.");
-            } else {
-              FileInputStream fileInputStream = new FileInputStream(OTHER_FILES_DIR + df.getFilename());
-              byte[] buffer = new byte[1024];
-              fileInputStream.read(buffer, 0, 1024);
-              System.out.println("<==|== Start of File Contents ==||==>");
-              System.out.println(new String(buffer));
-              System.out.println("<==|==  End of File Contents  ==||==>");
-            }
-          } catch (Exception e){
-            e.printStackTrace();
-          }
+        if(downloads.download(df.getFilename(), -1, df.getOriginServer(), DownloadManager.REFRESH)){
+          queued++;
         }
       }
     }
+    System.out.println("Refreshing " + queued + " files.");
   }
 
   /**
@@ -278,30 +487,38 @@ public class Peer {
       }
 
 
-      // Load list of files it contains
-      File folder = new File(MY_FILES_DIR); // Open my files directory
-      File[] listOfFiles = folder.listFiles(); // Get list of files in directory
+      // Start from the catalog the last run saved, which has the downloaded files and the state of every file as well.
+      // The files on disk are checked against it once the peer is up (see reconcile).
+      CatalogStore store = new CatalogStore(CatalogStore.LOG_FILE);
+      long start = System.currentTimeMillis();
+      List<DanFile> saved = SNAPSHOT ? store.load() : null;
 
       ArrayList<DanFile> files = new ArrayList<DanFile>(); // Create empty list of files
+      if(saved != null){
+        files.addAll(saved);
+        System.out.println("Loaded " + files.size() + " files from " + CatalogStore.LOG_FILE + " in "
+            + (System.currentTimeMillis() - start) + " ms.");
+      } else {
+        // Load list of files it contains
+        File folder = new File(MY_FILES_DIR); // Open my files directory
+        File[] listOfFiles = folder.listFiles(); // Get list of files in directory
 
-      // Add each of files to list
-      for (int i = 0; i < listOfFiles.length; i++) {
-
-        // Create File and set proper attributes
-        DanFile danFile = new DanFile(listOfFiles[i].getName()); // Create file with name
-        danFile.setOriginServer(ID); // Set the origin server to be this peer
-        danFile.setVersion(0); // Original version is 0
-        danFile.setConsistency(DanFile.VALID); // File is valid when created
-        danFile.setLastModifiedTime(System.currentTimeMillis()); // Now is the last modified time
-        danFile.setLastPolledTime(-1); // A negative last polled time means this is the master file
-        danFile.setTTR(Peer.TTR); // Set the time to refresh as default time to refresh
+        // Add each of files to list
+        for (int i = 0; i < listOfFiles.length; i++) {
+          files.add(ownFile(listOfFiles[i].getName(), ID));
+        }
 
-        // Add file to list of files
-        files.add(danFile);
+        // Hash the content of the files, which identifies them whatever they are called, reusing the hashes of files
+        // that didn't change since the last run
+        ContentHash.hashAll(files, MY_FILES_DIR);
       }
 
-      // Create this peer object with given ID, peers, and own files
-      return new Peer(ID, peers, files);
+      // Create this peer object with given ID, peers, and files
+      Peer peer = new Peer(ID, peers, files, store);
+      if(saved == null){
+        peer.files.checkpoint(); // Start the log over with the files there are now
+      }
+      return peer;
 
     } catch (Exception e){
       // Warn user of incorrect configuration and return null
@@ -311,22 +528,54 @@ public class Peer {
 
   }
 
+  /**
+   * Creates the DanFile of a file this peer owns, as it is when first found in MY_FILES_DIR
+   * @param filename Name of the file
+   * @param ID The ID of this peer
+   * @return The DanFile, without its hashes
+   */
+  private static DanFile ownFile(String filename, PeerID ID){
+    // Create File and set proper attributes
+    DanFile danFile = new DanFile(filename); // Create file with name
+    danFile.setOriginServer(ID); // Set the origin server to be this peer
+    danFile.setVersion(0); // Original version is 0
+    danFile.setConsistency(DanFile.VALID); // File is valid when created
+    danFile.setLastModifiedTime(System.currentTimeMillis()); // Now is the last modified time
+    danFile.setLastPolledTime(-1); // A negative last polled time means this is the master file
+    danFile.setTTR(Peer.TTR); // Set the time to refresh as default time to refresh
+    return danFile;
+  }
+
   // ************
   // Constructors
   // ************
 
   /**
-   * Creates a Peer with the given ID, neighbors, and own files. Used in Peer Initialization
+   * Creates a Peer with the given ID, neighbors, and files. Used in Peer Initialization
    * @param ID The ID of the Peer
    * @param peers The neighbor stubs the peer can connect to
-   * @param files The list of the peer's own initial files
+   * @param files The list of the peer's initial files
+   * @param store Where the catalog is saved, null to not save it
    */
-  public Peer(PeerID ID, ArrayList<PeerStub> peers, ArrayList<DanFile> files){
+  public Peer(PeerID ID, ArrayList<PeerStub> peers, ArrayList<DanFile> files, CatalogStore store){
     this.ID = ID;
     this.neighbors = peers;
-    this.files = files;
-    this.messages = new LinkedList<MessagePair>();
-    this.fileRequests = new LinkedList<MessageID>();
+    this.files = new FileCatalog(ID, files, store);
+    this.messages = new MessageCache(MESSAGE_CACHE, MESSAGE_EXPIRY);
+    this.fileRequests = Collections.synchronizedList(new LinkedList<MessageID>());
+    this.swarms = new LinkedList<SwarmDownload>();
+    this.router = new QueryRouter(this);
+    this.hits = new HitCache();
+    this.misses = new NegativeCache(NEGATIVE_WINDOW);
+    this.direct = MeteredExecutor.create("direct");
+    this.downloads = new DownloadManager(this);
+    this.watcher = new CatalogWatcher(this);
+    this.outstanding = new LinkedHashMap<MessageID, Integer>(){
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<MessageID, Integer> eldest){
+        return size() > MAX_OUTSTANDING;
+      }
+    };
   }
 
   // ********************
@@ -338,20 +587,114 @@ public class Peer {
    * the Peer must contact all neighbors to see if they have the file. Also, the messageID is added
    * to the list of outgoing file requests so that only one copy of the file is downloaded.
    * @param filename Name of the file this peer is requesting
+   * @param mode How to search for it: FLOOD, EXPANDING or WALK
    */
-  public synchronized void get(String filename){
+  public void get(String filename, int mode){
+
+    // Nothing to fetch if this peer already has the content asked for by hash
+    DanFile have = filename.startsWith(ContentHash.PREFIX) ? files.find(filename) : null;
+    if(have != null && have.isValid()){
+      System.out.println("Already have " + filename + " as " + have.getFilename() + ".");
+      return;
+    }
 
     // Create the message ID that will be propagated through the network
-    MessageID messageID = new MessageID(ID, sequenceNumber++); // Increment sequence number for uniqueness
+    // Increment sequence number for uniqueness
+    MessageID messageID = new MessageID(ID, sequenceNumber.getAndIncrement());
 
     // Add this message to list of ongoing file requests
     fileRequests.add(messageID);
+    SearchMetrics.started(messageID, mode);
+    synchronized(outstanding){
+      outstanding.put(messageID, 0);
+    }
 
-    // For each neighbor, query it
+    // Either flood the query, send it in rings of growing TTL until the file is found, or send out random walkers. A
+    // single download only needs one hit, a swarm wants a few sources.
+    if(mode == EXPANDING){
+      ExpandingRing.start(messageID, TTL, DOWNLOAD == SWARM ? ExpandingRing.ENOUGH_HITS : 1,
+          ringTTL -> sendQuery(messageID, ringTTL, filename));
+    } else if(mode == WALK){
+      sendWalkers(messageID, filename);
+    } else {
+      sendQuery(messageID, TTL, filename);
+    }
+
+  }
+
+  /**
+   * Sends a query this peer started to each neighbor that might lead to the file
+   * @param messageID The messageID of the query
+   * @param TTL The TTL to send it with
+   * @param filename The name of the file wanted
+   * @return How many neighbors it was sent to
+   */
+  private int sendQuery(MessageID messageID, int TTL, String filename){
+    int sent = 0;
     for(PeerStub neighbor : neighbors){
-      neighbor.query(this.ID, messageID, TTL, filename);
+      if(router.shouldForward(neighbor.getID(), TTL, filename)){
+        OutboundQueue.to(neighbor.getID()).query(this.ID, messageID, TTL, filename);
+        sent++;
+      }
+    }
+    SearchMetrics.queries(sent);
+    return sent;
+  }
+
+  /**
+   * Sends WALKERS random walkers for a file this peer wants, spread over the neighbors
+   * @param messageID The messageID of the search, shared by every walker
+   * @param filename The name of the file wanted
+   */
+  private void sendWalkers(MessageID messageID, String filename){
+    List<PeerStub> shuffled = new ArrayList<PeerStub>(neighbors);
+    Collections.shuffle(shuffled, ThreadLocalRandom.current());
+    for(int i = 0; i < WALKERS && !shuffled.isEmpty(); i++){
+      OutboundQueue.to(shuffled.get(i % shuffled.size()).getID()).walk(ID, messageID, WALK_TTL, filename);
+      SearchMetrics.walkers(1);
+    }
+  }
+
+  /**
+   * This function is called by the user via the command line. The user wants to find files by keyword, so the search is
+   * sent to every neighbor. Results come back in searchHit messages and are shown as they arrive.
+   * @param search the keywords, separated by spaces
+   */
+  public void search(String search){
+    // Create the message ID that will be propagated through the network
+    MessageID messageID = new MessageID(ID, sequenceNumber.getAndIncrement());
+    synchronized(outstanding){
+      outstanding.put(messageID, 0);
     }
 
+    // Either flood the search or send it in rings of growing TTL until enough peers answered. Walkers look for a single
+    // file, so keyword searches are flooded in walk mode.
+    SearchMetrics.started(messageID, SEARCH == EXPANDING ? EXPANDING : FLOOD);
+    if(SEARCH == EXPANDING){
+      ExpandingRing.start(messageID, TTL, ExpandingRing.ENOUGH_HITS, ringTTL -> sendSearch(messageID, ringTTL, search));
+    } else {
+      sendSearch(messageID, TTL, search);
+    }
+  }
+
+  /**
+   * Sends a search this peer started to each neighbor that might have matching files
+   * @param messageID The messageID of the search
+   * @param TTL The TTL to send it with
+   * @param search The keywords
+   * @return How many neighbors it was sent to
+   */
+  private int sendSearch(MessageID messageID, int TTL, String search){
+    int sent = 0;
+    List<String> terms = RouteTable.terms(search);
+    for(PeerStub neighbor : neighbors){
+      if(router.shouldForward(neighbor.getID(), TTL, terms)){
+        OutboundQueue.to(neighbor.getID()).search(this.ID, messageID, TTL, search);
+        sent++;
+      }
+    }
+    SearchMetrics.queries(sent);
+    return sent;
   }
 
   // **********************************************
@@ -368,7 +711,7 @@ public class Peer {
    * @param TTL The remaining time to live for the message
    * @param filename The name of the file being searched for
    */
-  public synchronized void query(PeerID upstream, MessageID messageID, int TTL, String filename){
+  public void query(PeerID upstream, MessageID messageID, int TTL, String filename){
 
     // Check if this peer is the origin of the message.
     if(messageID.getPeerID().equals(this.ID)){
@@ -376,40 +719,61 @@ public class Peer {
       return;
     }
 
-    // Check to see if the peer has already received this message
-    if(!seenQuery(messageID)){
-      // If not, add it to the associate cache
-
-      // If the cache is too large, delete the first-in message
-      if(messages.size() >= MESSAGE_CACHE){
-        messages.removeFirst();
-      }
-
-      // Create the mapping and at it to the cache
-      MessagePair mp = new MessagePair(messageID, upstream);
-      messages.addLast(mp);
-    } else {
+    // Add the message to the associative cache, unless the peer has already received it
+    int seen = messages.add(messageID, upstream, TTL);
+    if(seen == MessageCache.DUPLICATE){
       // If this peer has already seen this message, ignore it
       return;
     }
 
-    // Inform the user that a query has been received
-    System.out.println("Query from " + upstream + " for " + filename + ".");
-    sleep();
-
-    // Check to see if this peer is able to share this file
-    if(this.hasFile(filename)){
-      // If so, create and set a hitQuery upstream
-      System.out.println("Found it! Sending hitQuery to " + upstream);
-      PeerStub peerStub = new PeerStub(upstream);
-      peerStub.hitQuery(messageID, this.TTL, filename, ID);
+    // A larger ring of a query this peer already answered only has to be passed on
+    if(seen == MessageCache.NEW){
+      // Inform the user that a query has been received
+      System.out.println("Query from " + upstream + " for " + filename + ".");
+      sleep();
+
+      // Check to see if this peer is able to share this file. A query by hash finds the file under whatever name it has
+      // here, and the hit carries that name.
+      DanFile found = files.find(filename);
+      PartialFile partial = PartialFile.find(filename);
+      if(found != null && found.isValid()){
+        // If so, queue a hitQuery upstream
+        System.out.println("Found it! Sending hitQuery to " + upstream);
+        sendHit(upstream, messageID, this.TTL, found.getFilename(), ID, found.getVersion());
+      } else if(DOWNLOAD == SWARM && partial != null && partial.getDanFile().getRoot() != null){
+        // A swarm can already fetch the pieces of a file this peer is still downloading that matched their root
+        System.out.println("Downloading it, sending hitQuery to " + upstream + " for the pieces in so far.");
+        sendHit(upstream, messageID, this.TTL, filename, ID, partial.getVersion());
+      } else {
+        // Otherwise answer with the peers that had the file when the last hits for it passed by. The query then goes
+        // no further, unless a larger ring of it comes by because these weren't enough.
+        List<HitCache.Source> sources = hits.get(filename);
+        for(HitCache.Source source : sources){
+          sendHit(upstream, messageID, this.TTL, filename, source.getAddress(), source.getVersion());
+        }
+        if(!sources.isEmpty()){
+          System.out.println("Answered from the hit cache with " + sources.size() + " sources.");
+          return;
+        }
+      }
     }
 
     // If the TTL is not zero, propagate query forward
     if(TTL > 0){
-      // For each neighbor, query it
+      // Queries for this file from this direction that recently went unanswered are dropped or cut short
+      int forwardTTL = misses.limit(filename, upstream, TTL-1); // Reduce TTL by 1, or more
+      if(forwardTTL < 0){
+        System.out.println("Not forwarding query for " + filename + ", recent queries for it went unanswered.");
+        return;
+      }
+      misses.forwarded(messageID, filename, upstream);
+
+      // For each neighbor, query it. On the last hop, only neighbors whose route table might hold the file are queried.
       for(PeerStub neighbor : neighbors){
-        neighbor.query(ID, messageID, TTL-1, filename); // Reduce TTL by 1
+        if(router.shouldForward(neighbor.getID(), forwardTTL, filename)){
+          OutboundQueue.to(neighbor.getID()).query(ID, messageID, forwardTTL, filename);
+          SearchMetrics.queries(1);
+        }
       }
     }
   }
@@ -423,86 +787,313 @@ public class Peer {
    * @param TTL The remaining hops for this message
    * @param filename The name of the file wanting to be downloaded
    * @param address The location where the file can be downloaded from
+   * @param version The version of the file there, -1 if unknown
    */
-  public synchronized void hitQuery(MessageID messageID, int TTL, String filename, PeerID address) {
+  public void hitQuery(MessageID messageID, int TTL, String filename, PeerID address, int version) {
     // Announce that a new hitquery has come in
     System.out.println("Received hitQuery from " + address + " meant for " + messageID.getPeerID() + ".");
     sleep();
 
     // First, check if this hitQuery is to me
     if(messageID.getPeerID().equals(ID)){
+      // Count it towards stopping the query's rings from expanding, and time the first one
+      ExpandingRing.hit(messageID);
+      SearchMetrics.hit(messageID);
+
+      // A single download is settled by its first hit, a swarm by MAX_HITS of them
+      hitCounted(messageID, DOWNLOAD == SINGLE);
 
-      // Check to see if this peer has already downloaded this file
-      if(!fileRequests.contains(messageID)){
+      // In swarm mode every hit is another source for the same download
+      if(DOWNLOAD == SWARM){
+        swarm(messageID, filename, address);
+        return;
+      }
+
+      // Remove this file from the list of files this peer is waiting for. Only the first hit finds it there, so only
+      // that one downloads the file.
+      if(!fileRequests.remove(messageID)){
         // Ignore the message if the file is no longer wanted
         System.out.println("Receieved hitQuery from " + address + ", but I already got " + filename + ".");
         return;
       }
 
-      // Remove this file from the list of files this peer is waiting for
-      fileRequests.remove(messageID);
+      // Queue the download from that peer. It runs on the download manager's workers, so this handler is done.
+      downloads.download(filename, version, address, DownloadManager.INTERACTIVE);
+    } else {
+      // If this is not a hitQuery to this Peer, send it upstream, remembering where the file is for the next query
+      hits.put(filename, address, version);
 
-      // Create PeerStub to interact with the Peer that has the file
-      PeerStub origin = new PeerStub(address);
+      // Get upstream from the associative list
+      PeerID upstreamPort = messages.getUpstream(messageID);
 
-      // Download file from that peer
-      DanFile danFile = origin.obtain(filename);
+      // The query was answered, so queries for this file from that direction are worth forwarding again
+      misses.answered(messageID, filename, upstreamPort);
 
-      if(danFile != null){
-        // Add this file to this peer's list of files
+      // If there was a mapping in the associative list and the TTL is above zero, propagate it upstream. Nobody wants
+      // more hits for a query that was cancelled.
+      if(upstreamPort != null && TTL > 0 && !messages.isCancelled(messageID)){
+        // Queue the hitQuery message for the upstream peer
+        OutboundQueue.to(upstreamPort).hitQuery(messageID, TTL-1, filename, address, version); // Decrement TTL
+      }
+    }
+  }
 
-        // First, check if we already had this file
-        DanFile old = getDanFile(filename);
-        if(old != null){
-          // If we already had it, update parameters
-          old.setVersion(danFile.getVersion());
-          old.setLastModifiedTime(danFile.getLastModifiedTime());
-          old.setConsistency(danFile.getConsistency());
-          old.setTTR(danFile.getTTR());
-          old.setLastPolledTime(danFile.getLastPolledTime());
-          danFile = old;
-        } else {
-          // Otherwise, add it to the list of files
-          files.add(danFile);
+  /**
+   * This method is called when a random walker reaches this peer. The first walker of a search to get here checks for
+   * the file like a query would, and stops with a hitQuery if the file is here. Otherwise the walker goes on to one
+   * randomly chosen neighbor, other than the one it came from. Every WALK_CHECK hops it first asks the peer that sent
+   * it whether the search is still going, and stops if not.
+   * @param upstream The ID of the peer the walker came from
+   * @param messageID The messageID of the search
+   * @param TTL The hops the walker has left
+   * @param filename The name of the file being searched for
+   */
+  public void walk(PeerID upstream, MessageID messageID, int TTL, String filename){
+    boolean mine = messageID.getPeerID().equals(ID);
+    if(mine){
+      // One of this peer's own walkers came back, keep it going only if the file is still wanted
+      if(!walkCheck(messageID)){
+        return;
+      }
+    } else if(messages.isCancelled(messageID)){
+      // The search has enough hits, so the walker ends here
+      return;
+    } else if(messages.add(messageID, upstream)){
+      // Inform the user that a walker has arrived
+      System.out.println("Walker from " + upstream + " for " + filename + ".");
+      sleep();
+
+      // Check to see if this peer is able to share this file. The hit travels back along the walker's path, which can
+      // be much longer than a query's.
+      DanFile found = files.find(filename);
+      if(found != null && found.isValid()){
+        System.out.println("Found it! Sending hitQuery to " + upstream);
+        sendHit(upstream, messageID, WALK_TTL, found.getFilename(), ID, found.getVersion());
+        return; // This walker is done
+      }
+    }
+
+    if(TTL == 0){
+      return;
+    }
+
+    // Check back with the originator every few hops
+    int hops = WALK_TTL - TTL;
+    if(!mine && hops > 0 && hops % WALK_CHECK == 0){
+      SearchMetrics.check();
+      if(!new PeerStub(messageID.getPeerID()).walkCheck(messageID)){
+        return;
+      }
+    }
+
+    // Pass the walker on to a random neighbor, avoiding the one it came from unless there is no other
+    List<PeerStub> candidates = new ArrayList<PeerStub>();
+    for(PeerStub neighbor : neighbors){
+      if(!neighbor.getID().equals(upstream)){
+        candidates.add(neighbor);
+      }
+    }
+    if(candidates.isEmpty()){
+      candidates = neighbors;
+    }
+    if(!candidates.isEmpty()){
+      PeerStub next = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+      OutboundQueue.to(next.getID()).walk(ID, messageID, TTL-1, filename);
+      SearchMetrics.walkers(1);
+    }
+  }
+
+  /**
+   * This method is called when a random walker checks back on the search it belongs to
+   * @param messageID The messageID of the search
+   * @return True if this peer is still waiting for a hit for it, or a swarm download still wants more
+   */
+  public boolean walkCheck(MessageID messageID){
+    synchronized(outstanding){
+      return fileRequests.contains(messageID) || outstanding.containsKey(messageID);
+    }
+  }
+
+  /**
+   * This method is called when a keyword search is received by this peer. Like a query, it is ignored if this peer sent
+   * it or has seen it before. Otherwise the catalog's index is searched, every matching file is sent back upstream in
+   * one searchHit, and the search is passed on to the neighbors.
+   * @param upstream The ID of the peer where to send the results
+   * @param messageID The messageID for tracking and mapping purposes
+   * @param TTL The remaining time to live for the message
+   * @param search The keywords being searched for
+   */
+  public void search(PeerID upstream, MessageID messageID, int TTL, String search){
+    // Ignore our own searches and searches we've already seen
+    int seen = messageID.getPeerID().equals(this.ID) ? MessageCache.DUPLICATE : messages.add(messageID, upstream, TTL);
+    if(seen == MessageCache.DUPLICATE){
+      return;
+    }
+
+    // Look the keywords up in the index and send whatever matched upstream, unless this is just a larger ring of a
+    // search this peer already answered
+    List<String> terms = RouteTable.terms(search);
+    if(seen == MessageCache.NEW){
+      // Inform the user that a search has been received
+      System.out.println("Search from " + upstream + " for " + search + ".");
+      sleep();
+
+      List<SearchResult> results = new ArrayList<SearchResult>();
+      for(DanFile danFile : files.search(terms)){
+        if(results.size() == MAX_RESULTS){
+          break;
         }
+        String dir = danFile.isOwned() ? MY_FILES_DIR : OTHER_FILES_DIR;
+        results.add(new SearchResult(danFile.getFilename(), new File(dir + danFile.getFilename()).length(),
+            danFile.getVersion()));
+      }
+      if(!results.isEmpty()){
+        System.out.println("Found " + results.size() + " matching files! Sending searchHit to " + upstream);
+        sendSearchHit(upstream, messageID, this.TTL, results);
+      }
+    }
 
-        // If this file was downloaded from the origin server, it counts as if it was just polled.
-        if(danFile.getOriginServer().equals(address)){
-          danFile.setLastPolledTime(System.currentTimeMillis());
+    // If the TTL is not zero, propagate the search forward
+    if(TTL > 0){
+      for(PeerStub neighbor : neighbors){
+        if(router.shouldForward(neighbor.getID(), TTL-1, terms)){
+          OutboundQueue.to(neighbor.getID()).search(ID, messageID, TTL-1, search); // Reduce TTL by 1
+          SearchMetrics.queries(1);
         }
+      }
+    }
+  }
 
-        System.out.println("Successfully downloaded " + filename + " from " + address + ".");
+  /**
+   * This method is called when the peer receives the results of a keyword search. Results for a search this peer sent
+   * are shown to the user, others are passed upstream just like a hitQuery.
+   * @param messageID The messageID that the search issuer created
+   * @param TTL The remaining hops for this message
+   * @param address The location where the files can be downloaded from
+   * @param results The files that matched
+   */
+  public void searchHit(MessageID messageID, int TTL, PeerID address, List<SearchResult> results){
+    // Check if these are results for this peer
+    if(messageID.getPeerID().equals(ID)){
+      ExpandingRing.hit(messageID);
+      SearchMetrics.hit(messageID);
+      hitCounted(messageID, false);
+      System.out.println("Search results from " + address + ":");
+      for(SearchResult result : results){
+        System.out.println("  " + result);
+      }
+      return;
+    }
 
-        // Print file contents if small file
-        try {
-          long length = new File(OTHER_FILES_DIR + filename).length();
-          System.out.println("File size: " + length + " bytes.");
-          if(length > 1024){
-            System.out.println("File is larger than 1K - will not display.");
-          } else {
-            FileInputStream fileInputStream = new FileInputStream(OTHER_FILES_DIR + filename);
-            byte[] buffer = new byte[1024];
-            fileInputStream.read(buffer, 0, 1024);
-            System.out.println("<==|== Start of File Contents ==||==>");
-            System.out.println(new String(buffer));
-            System.out.println("<==|==  End of File Contents  ==||==>");
-          }
-        } catch (Exception e){
-          e.printStackTrace();
+    // Otherwise send them upstream, if there is a mapping, the TTL is above zero and the search wasn't cancelled
+    PeerID upstreamPort = messages.getUpstream(messageID);
+    if(upstreamPort != null && TTL > 0 && !messages.isCancelled(messageID)){
+      OutboundQueue.to(upstreamPort).searchHit(messageID, TTL-1, address, results); // Decrement TTL
+    }
+  }
+
+  /**
+   * This method is called when the peer that started a query or search cancels it. The cancellation is remembered in
+   * the message cache, so copies of the query arriving later go no further, and the messages of it still waiting to be
+   * sent are dropped. If this peer had the query, it may have passed it on, so the cancel goes on to the neighbors too.
+   * @param messageID The messageID of the query or search
+   */
+  public void cancel(MessageID messageID){
+    // Ignore our own cancels
+    if(messageID.getPeerID().equals(ID)){
+      return;
+    }
+
+    // A query cut short isn't a miss
+    misses.cancelled(messageID);
+
+    // Record the cancellation, and stop here unless this peer had the query. No pause, so the cancel catches up.
+    if(!messages.cancel(messageID)){
+      return;
+    }
+    System.out.println("Query " + messageID.getSequenceNumber() + " from " + messageID.getPeerID() + " cancelled.");
+    sendCancel(messageID);
+  }
+
+  /**
+   * Adds a file that was just downloaded to this peer's list of files, or updates the one it had, and shows it to the
+   * user
+   * @param filename The name of the file that was downloaded
+   * @param danFile The DanFile that came with it
+   * @param address The peer it was downloaded from
+   */
+  public void downloaded(String filename, DanFile danFile, PeerID address){
+    // Add this file to this peer's list of files, or update the copy we already had
+    danFile = files.update(danFile);
+
+    // If this file was downloaded from the origin server, it counts as if it was just polled.
+    if(danFile.getOriginServer().equals(address)){
+      danFile.setLastPolledTime(System.currentTimeMillis());
+      files.changed(danFile);
+    }
+
+    System.out.println("Successfully downloaded " + filename + " from " + address + ".");
+
+    // Let the neighbors know this peer now has the file
+    router.changed();
+
+    // Print file contents if small file
+    try {
+      long length = new File(OTHER_FILES_DIR + filename).length();
+      System.out.println("File size: " + length + " bytes.");
+      if(length > 1024){
+        System.out.println("File is larger than 1K - will not display.");
+      } else {
+        FileInputStream fileInputStream = new FileInputStream(OTHER_FILES_DIR + filename);
+        byte[] buffer = new byte[1024];
+        fileInputStream.read(buffer, 0, 1024);
+        System.out.println("<==|== Start of File Contents ==||==>");
+        System.out.println(new String(buffer));
+        System.out.println("<==|==  End of File Contents  ==||==>");
+      }
+    } catch (Exception e){
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Hands a hitQuery for a file this peer requested to a swarm download. The first hit starts the swarm, later hits
+   * become extra sources for it.
+   * @param messageID The messageID of the query
+   * @param filename The name the file has where the hit came from
+   * @param address The location where the file can be downloaded from
+   */
+  private void swarm(MessageID messageID, String filename, PeerID address){
+    SwarmDownload swarm = null;
+    synchronized(swarms){
+      // Check if a swarm is already collecting sources for this query
+      for(SwarmDownload existing : swarms){
+        if(existing.getMessageID().equals(messageID)){
+          swarm = existing;
         }
       }
-    } else {
-      // If this is not a hitQuery to this Peer, send it upstream
 
-      // Get upstream from the associative list
-      PeerID upstreamPort = getUpstream(messageID);
+      if(swarm == null){
+        // Check to see if this peer has already downloaded this file
+        if(!fileRequests.remove(messageID)){
+          System.out.println("Receieved hitQuery from " + address + ", but I already got " + filename + ".");
+          return;
+        }
 
-      // If there was a mapping in the associative list and the TTL is above zero, propagate it upstream
-      if(upstreamPort != null && TTL > 0){
-        // Create PeerStub and send hitQuery message
-        new PeerStub(upstreamPort).hitQuery(messageID, TTL-1, filename, address); // Decrement TTL
+        // Start a swarm with this hit as its first source. The download runs on its own threads, so this peer keeps
+        // handling messages, including the hits that add more sources.
+        swarm = new SwarmDownload(this, messageID, filename);
+        if(swarms.size() >= SWARM_HISTORY){
+          swarms.removeFirst();
+        }
+        swarms.addLast(swarm);
+        swarm.addSource(address, filename);
+        swarm.start();
+        return;
       }
     }
+
+    swarm.addSource(address, filename);
   }
 
   /**
@@ -511,7 +1102,7 @@ public class Peer {
    * @param filename Name of the file to obtain
    * @return Returns the stream to the file, null if no file found
    */
-  public synchronized FileInputStream obtain(String filename) {
+  public FileInputStream obtain(String filename) {
     // Announce sending file
     System.out.println("Sending file " + filename + " directly over the network.");
     sleep();
@@ -519,7 +1110,7 @@ public class Peer {
     FileInputStream is = null; // The stream to be returned
 
     // Set directory based on if this peer is the owner of the file or not
-    String dir = this.isOwner(filename) ? MY_FILES_DIR : OTHER_FILES_DIR;
+    String dir = files.isOwner(filename) ? MY_FILES_DIR : OTHER_FILES_DIR;
 
     try {
       is = new FileInputStream(dir + filename); // Open file and grab stream
@@ -531,6 +1122,17 @@ public class Peer {
     return is;
   }
 
+  /**
+   * Returns the Merkle tree of a file this peer shares, to prove the pieces it sends of it
+   *
+   * @param filename Name of the file
+   * @return The tree, null if the file couldn't be read
+   */
+  public MerkleTree getTree(String filename){
+    String dir = files.isOwner(filename) ? MY_FILES_DIR : OTHER_FILES_DIR;
+    return MerkleTree.cached(new File(dir + filename));
+  }
+
   /**
    * This method is called when the peer receives an invalidate message. Propagates just like a query message, except that
    * there is no TTL to ensure utmost consistency.
@@ -539,26 +1141,15 @@ public class Peer {
    * @param filename The name of the file that is now invalid
    * @param version The new version number of the file
    */
-  public synchronized void invalidate(MessageID messageID, PeerID originServer, String filename, int version){
+  public void invalidate(MessageID messageID, PeerID originServer, String filename, int version){
 
     // Ignore the message if this peer was the creator of it
     if(messageID.getPeerID().equals(ID)){
       return;
     }
 
-    // Check to see if this peer has already seen this message
-    if(!seenQuery(messageID)){
-      // If not, add it to the associate cache
-
-      // If the cache is too large, remove the first-come message pair
-      if(messages.size() >= MESSAGE_CACHE){
-        messages.removeFirst();
-      }
-
-      // Create the message pair and add it to the cache
-      MessagePair mp = new MessagePair(messageID, null); // Upstream not important in invalidation
-      messages.addLast(mp);
-    } else {
+    // Add the message to the associative cache, unless this peer has already seen it
+    if(!messages.add(messageID, null)){ // Upstream not important in invalidation
       // If so, ignore it
       return;
     }
@@ -567,6 +1158,9 @@ public class Peer {
     System.out.println("Invalidation received! " + filename + " version is now " + version);
     sleep();
 
+    // Forget the peers known to have an older version
+    hits.invalidate(filename, version);
+
     // Check if this peer has this file
     DanFile file = this.getDanFile(filename);
     if(file != null){
@@ -574,29 +1168,43 @@ public class Peer {
       // If the new version > current version, invalidate the file (don't discard it though as it could still be wanted by the user
       if(file.getVersion() < version){
         file.invalidate();
+        files.changed(file);
       }
     }
 
     // Propagate invalidation message
     // For each neighbor, query it.
     for(PeerStub neighbor : neighbors){
-      neighbor.invalidate(messageID, originServer, filename, version);
+      OutboundQueue.to(neighbor.getID()).invalidate(messageID, originServer, filename, version);
     }
   }
 
+  /**
+   * This method is called when a neighbor sends its route table, whole or as a patch to the one this peer holds
+   * @param neighbor the neighbor the table belongs to
+   * @param version the version of the table
+   * @param base the version the patch applies to, -1 for a whole table
+   * @param data the deflated table or patch
+   * @return the version of the neighbor's table this peer now holds, -1 if the whole table must be sent
+   */
+  public int routeTable(PeerID neighbor, int version, int base, byte[] data){
+    return router.receive(neighbor, version, base, data);
+  }
+
   /**
    * When a peer receives a poll request, it checks to see if the current version is newer and returns a reply to update
-   * the TTR if necessary or to invalidate the file.
+   * the TTR if necessary or to invalidate the file. A file this peer no longer has, because it was deleted or renamed,
+   * is out of date too.
    * @param version the version that the other peer has the file of
    * @param filename the name of the file to check
    * @return a PollResult object for the other peer to process
    */
-  public synchronized PollResult poll(int version, String filename){
+  public PollResult poll(int version, String filename){
     // Get the DanFile representation of the file with the given name
     DanFile danFile = getDanFile(filename);
 
-    // Check to see if the current version is newer
-    if(danFile.getVersion() > version){
+    // Check to see if the file is gone or the current version is newer
+    if(danFile == null || danFile.getVersion() > version){
       // If it is newer, return an outOfDate = True result
       return new PollResult(true, 0);
     } else {
@@ -612,16 +1220,102 @@ public class Peer {
    * @return The DanFile to work with, null if the name doesn't exist
    */
   public DanFile getDanFile(String filename){
-    // Loop through all dan files
-    for(DanFile df : files){
-      if(df.getFilename().equals(filename)){
-        // If the name matches, return it
-        return df;
+    return files.get(filename);
+  }
+
+  /**
+   * Checks the catalog against the files on disk. Runs once the peer is up, since a catalog saved by the last run may
+   * be out of date: own files may have been added, edited or deleted while the peer was down, and downloaded files
+   * deleted or left part way through being rewritten by a newer version whose download was cut off. Own files are only
+   * hashed again if their size or modified time changed (see ContentHash), and an own file whose content changed
+   * becomes a new version. Must not run at the same time as fileChanged, so when the own files are watched it runs on
+   * the CatalogWatcher's thread.
+   */
+  public void reconcile(){
+    long start = System.currentTimeMillis();
+    int added = 0, edited = 0, removed = 0, invalidated = 0;
+
+    // Hash the own files as they are now
+    File[] listOfFiles = new File(MY_FILES_DIR).listFiles();
+    List<DanFile> onDisk = new ArrayList<DanFile>();
+    for(File file : listOfFiles != null ? listOfFiles : new File[0]){
+      onDisk.add(ownFile(file.getName(), ID));
+    }
+    ContentHash.hashAll(onDisk, MY_FILES_DIR);
+
+    // Add the new ones and bump the version of the edited ones
+    Set<String> mine = new HashSet<String>();
+    for(DanFile current : onDisk){
+      mine.add(current.getFilename());
+      DanFile known = files.get(current.getFilename());
+      if(known == null){
+        files.update(current);
+        added++;
+      } else if(known.isOwned() && current.getHash() != null && !current.getHash().equals(known.getHash())){
+        current.setVersion(known.getVersion() + 1);
+        publish(files.update(current));
+        edited++;
       }
     }
 
-    // DanFile with that name doesn't exist
-    return null;
+    for(DanFile danFile : files.snapshot()){
+      String filename = danFile.getFilename();
+      if(danFile.isOwned() ? !mine.contains(filename) : !new File(OTHER_FILES_DIR + filename).exists()){
+        // Gone from the disk
+        files.remove(filename);
+        removed++;
+      } else if(!danFile.isOwned() && danFile.getConsistency() != DanFile.INVALID && PartialFile.find(filename) == null
+          && new File(OTHER_FILES_DIR + filename + PartialFile.STATE_SUFFIX).exists()){
+        // A download of a newer version was cut off part way through the file. A refresh picks it up again.
+        danFile.invalidate();
+        files.changed(danFile);
+        invalidated++;
+      }
+    }
+
+    if(added + edited + removed > 0){
+      router.changed();
+    }
+    System.out.println("Checked the catalog against the disk in " + (System.currentTimeMillis() - start) + " ms: "
+        + added + " added, " + edited + " edited, " + removed + " removed, " + invalidated + " invalidated.");
+  }
+
+  /**
+   * Brings the catalog up to date with a change to one of the own files, found by the CatalogWatcher. A new file is
+   * added at version 0, a file whose content changed becomes a new version that is published like an edit, and a file
+   * that is gone is removed. Neighbors hear about added and removed files through the next route table. Runs on the
+   * CatalogWatcher's thread, one change at a time and never during reconcile.
+   * @param filename Name of the file in MY_FILES_DIR that changed
+   */
+  public void fileChanged(String filename){
+    DanFile known = files.get(filename);
+    if(known != null && !known.isOwned()){
+      return; // Has the name of a downloaded file, which takes precedence
+    }
+
+    if(!new File(MY_FILES_DIR + filename).isFile()){
+      if(known != null){
+        files.remove(filename);
+        router.changed();
+        System.out.println("Removed " + filename + ", it was deleted.");
+      }
+      return;
+    }
+
+    DanFile current = ownFile(filename, ID);
+    if(!ContentHash.hash(current, MY_FILES_DIR)){
+      return; // Couldn't be read, such as when it was deleted again in the meantime
+    }
+    if(known == null){
+      files.update(current);
+      router.changed();
+      System.out.println("Added " + filename + ".");
+    } else if(!current.getHash().equals(known.getHash())){
+      current.setVersion(known.getVersion() + 1);
+      System.out.println(filename + " changed; new version: " + current.getVersion());
+      publish(files.update(current));
+      router.changed();
+    }
   }
 
   /**
@@ -629,9 +1323,9 @@ public class Peer {
    * method. It checks each file to see if its ttr is expired. If it is expired, it will poll the origin server. If
    * it is out of date, the file will be invalidated. Otherwise, it will receive a new TTR.
    */
-  public synchronized void lazyPoll(){
+  public void lazyPoll(){
     // Loop through every file on this peer
-    for(DanFile danFile : files){
+    for(DanFile danFile : files.snapshot()){
 
       // Do not poll for own file
       if(danFile.isOwner(this)) continue;
@@ -644,6 +1338,9 @@ public class Peer {
         // If it is expired, poll the origin server
         PeerStub originServer = new PeerStub(danFile.getOriginServer()); // Create a stub to connect to
         PollResult result = originServer.poll(danFile.getVersion(), danFile.getFilename()); // poll the origin server
+        if(result == null){
+          continue; // The origin server couldn't be reached, the file is still expired so it is polled next round
+        }
 
         // If the result is out of date, invalidate the file
         if(result.isOutOfDate()){
@@ -655,6 +1352,7 @@ public class Peer {
           // Update it to valid once again
           danFile.setConsistency(DanFile.VALID);
         }
+        files.changed(danFile);
       }
     }
   }
@@ -666,86 +1364,108 @@ public class Peer {
 
 
   /**
-   * Checks if this message has already been seen to limit infinite talk-back
-   * @param messageID The messageID to check
-   * @return True if we've already seen the message
+   * Counts a hit for a query or search this peer started, and cancels it once no more hits are wanted, so the network
+   * stops spending messages on it
+   * @param messageID The query or search
+   * @param done True if no more hits are wanted whatever the count
    */
-  private boolean seenQuery(MessageID messageID){
-    // Loop through all message-upstream pairs
-    for(MessagePair mp : messages){
-      if(mp.getMessageID().equals(messageID)){
-        return true;
+  private void hitCounted(MessageID messageID, boolean done){
+    synchronized(outstanding){
+      Integer count = outstanding.get(messageID);
+      if(count == null){
+        return; // Cancelled already, or too old to count
+      }
+      if(!done && count + 1 < MAX_HITS){
+        outstanding.put(messageID, count + 1);
+        return;
       }
+      outstanding.remove(messageID);
     }
 
-    return false;
+    // Stop expanding it and tell the neighbors
+    System.out.println("Got enough hits for query " + messageID.getSequenceNumber() + ", cancelling it.");
+    ExpandingRing.stop(messageID);
+    sendCancel(messageID);
   }
 
   /**
-   * Sleeps 2 seconds to visibly show trace of messages. Only does anything if debug mode is enabled
+   * Drops the messages of a cancelled query or search still waiting to be sent, and passes the cancel on to every
+   * neighbor
+   * @param messageID The query or search
    */
-  private void sleep(){
-    if(!DEBUG){
-      return; // Do nothing in non-debug mode
-    }
-    try {
-      Thread.sleep(2000); // Sleep 2 seconds in debug mode
-    } catch (Exception e){
-      e.printStackTrace();
+  private void sendCancel(MessageID messageID){
+    OutboundQueue.purge(messageID);
+    for(PeerStub neighbor : neighbors){
+      OutboundQueue.to(neighbor.getID()).cancel(messageID);
     }
+    SearchMetrics.cancels(neighbors.size());
   }
 
   /**
-   * Checks to see if the given file is available for download from this peer.
-   * @param filename Name of the file to check if available
-   * @return True if the peer has a valid copy of the file
+   * Sends a hitQuery for a query this peer answered, either back along the reverse path or straight to the originator
+   * @param upstream The peer the query came from
+   * @param messageID The messageID of the query
+   * @param TTL The hops the hit may take on the reverse path
+   * @param filename The name of the file found
+   * @param address The location where the file can be downloaded from
+   * @param version The version of the file there
    */
-  private boolean hasFile(String filename){
-    // Loop through all files in list of files
-    for(DanFile f : files){
-      // Check that it has the right name
-      if(f.getFilename().equals((filename))){
-        // Check to see if this file is valid
-        if(f.isValid()){
-          return true; // If so, return true
-        } else {
-          return false; // Invalid file, return false
-        }
-      }
-    }
+  private void sendHit(PeerID upstream, MessageID messageID, int TTL, String filename, PeerID address, int version){
+    reply(upstream, messageID, PeerStub.packHitQuery(messageID, TTL, filename, address, version),
+        () -> OutboundQueue.to(upstream).hitQuery(messageID, TTL, filename, address, version));
+  }
 
-    return false; // This peer doesn't have the requested file
+  /**
+   * Sends the results of a search this peer answered, either back along the reverse path or straight to the originator
+   * @param upstream The peer the search came from
+   * @param messageID The messageID of the search
+   * @param TTL The hops the results may take on the reverse path
+   * @param results The files that matched
+   */
+  private void sendSearchHit(PeerID upstream, MessageID messageID, int TTL, List<SearchResult> results){
+    reply(upstream, messageID, PeerStub.packSearchHit(messageID, TTL, ID, results),
+        () -> OutboundQueue.to(upstream).searchHit(messageID, TTL, ID, results));
   }
 
   /**
-   * Check to see if this peer is the owner of the file with the given name
-   * @param filename Name of file to check
-   * @return True if this peer is the owner
+   * Delivers a hit. In DIRECT mode it is sent over a connection straight to the peer that started the search, which
+   * saves every hop of the reverse path and doesn't depend on each peer on it still remembering the upstream. If the
+   * originator can't be reached, for instance because it only accepts connections from its neighbors, the hit goes
+   * along the reverse path after all.
+   * @param upstream The peer the search came from
+   * @param messageID The messageID of the search
+   * @param hit The packed hit, for sending it directly
+   * @param reversePath Queues the hit for the upstream peer
    */
-  private boolean isOwner(String filename) {
-    // Loop through all the files the peer has
-    for(DanFile f : files){
-      // Check if the file has the right name
-      if(f.getFilename().equals(filename)){
-        return f.isOwner(this); // Check whether this file is specifically own by this peer and return result
-      }
+  private void reply(PeerID upstream, MessageID messageID, PeerStub.Batchable hit, Runnable reversePath){
+    PeerID originator = messageID.getPeerID();
+    if(HITS != DIRECT || originator.equals(upstream)){
+      reversePath.run(); // The reverse path is already direct
+      return;
     }
 
-    return false; // This peer doesn't even have the file
+    // Connecting may take a while, so it is done off the handler
+    direct.execute(() -> {
+      boolean delivered = new PeerStub(originator).send(hit);
+      SearchMetrics.direct(delivered);
+      if(!delivered){
+        reversePath.run();
+      }
+    });
   }
 
   /**
-   * Given a messageID, provide the upstream PeerID for back-tracing
-   * @param messageID The message to check the associative list for
-   * @return The upstream peer, or null if the message isn't in the cache
+   * Sleeps 2 seconds to visibly show trace of messages. Only does anything if debug mode is enabled
    */
-  private PeerID getUpstream(MessageID messageID) {
-    for(MessagePair mp : messages){
-      if(mp.getMessageID().equals(messageID)){
-        return mp.getUpstream();
-      }
+  private void sleep(){
+    if(!DEBUG){
+      return; // Do nothing in non-debug mode
+    }
+    try {
+      Thread.sleep(2000); // Sleep 2 seconds in debug mode
+    } catch (Exception e){
+      e.printStackTrace();
     }
-    return null;
   }
 
   // *******************
@@ -754,6 +1474,10 @@ public class Peer {
 
   // Comments omitted because this is generic, boilerplate code
 
+  public PeerID getID(){
+    return this.ID;
+  }
+
   public String getAddress(){
     return this.ID.getAddress();
   }
@@ -766,6 +1490,14 @@ public class Peer {
     return ID.toString();
   }
 
+  public FileCatalog getCatalog(){
+    return this.files;
+  }
+
+  public DownloadManager getDownloads(){
+    return downloads;
+  }
+
   public ArrayList<PeerStub> getNeighbors(){
     return this.neighbors;
   }
@@ -0,0 +1,486 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * A PeerConnection wraps a socket between two peers. Connections opened by a PeerStub start with a short handshake and
+ * then carry any number of length-prefixed frames, one RPC per frame, so that a single connection can be reused for
+ * many RPCs. Connections accepted from peers that skip the handshake carry exactly one unframed RPC, just like before.
+ * The handshake also settles which version of the wire protocol the frames are packed with: the stub offers the
+ * highest version it would like to speak and the skeleton answers with the highest version both of them know.
+ */
+public class PeerConnection {
+
+  public static final int MAGIC = 0x44414E50; // "DANP", sent by a stub to open a persistent connection
+  public static final int UNFRAMED = 0; // A single Java serialized RPC without a handshake
+  public static final int SERIALIZED = 1; // Frames packed with Java serialization
+  public static final int BINARY = 2; // Frames packed with the BinaryCodec
+  public static final int VERSION = BINARY; // Highest version of the protocol this peer speaks
+  public static final int MAX_FRAME = 1024 * 1024; // Largest frame we are willing to read, guards against garbage
+  public static final int CONNECT_TIMEOUT = 1000 * 5; // How long to wait for another peer to accept a connection
+
+  private Socket socket; // The underlying connection
+  private PeerID ID; // The peer on the other end, only known on the stub side
+  private BufferedInput buffered; // Read-ahead buffer under the input stream, drained before a file is received
+  private ChannelOutputStream channelOutput; // Non-blocking channel under the output stream, for the NioListener
+  private DataInputStream in; // Stream to read frames and file data from
+  private DataOutputStream out; // Stream to write frames and file data to
+  private int version; // Version of the protocol spoken over this connection
+
+  private MessageWriter frame; // The frame currently being written
+  private ByteArrayOutputStream frameBuffer; // Buffer holding the serialized frame currently being written
+  private BinaryCodec.Writer binaryWriter; // Writer reused for every binary frame
+  private BinaryCodec.Reader binaryReader; // Reader reused for every binary frame
+  private byte[] readBuffer = new byte[256]; // Buffer reused for every frame read, grows with the largest frame
+  private boolean unframedRead; // True once the single RPC of an unframed connection has been read
+  private Executor handlers; // Runs the handlers of this connection's messages in order, null to run them right away
+
+  private long lastUsed; // The last time this connection was handed out for an RPC
+  private int uses; // How many times this connection has been handed out by the pool
+
+  /**
+   * Creates a connection over an already connected socket
+   * @param socket the connected socket
+   * @param ID the peer on the other end, null if unknown
+   * @param in the stream to read from
+   * @param out the stream to write to
+   * @param version the version of the protocol spoken over the connection
+   */
+  private PeerConnection(Socket socket, PeerID ID, InputStream in, OutputStream out, int version){
+    this.socket = socket;
+    this.ID = ID;
+    if(in instanceof BufferedInput){
+      this.buffered = (BufferedInput) in;
+    }
+    this.in = new DataInputStream(in);
+    this.out = new DataOutputStream(out);
+    this.version = version;
+    this.lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Opens a persistent connection to the given peer and performs the handshake
+   * @param ID the peer to connect to
+   * @return the open connection
+   * @throws IOException if the peer can't be reached or doesn't speak the framed protocol
+   */
+  public static PeerConnection open(PeerID ID) throws IOException {
+    // Connect to the Peer through a channel, so that files can be received with FileChannel.transferFrom. A peer that
+    // can't be reached fails after CONNECT_TIMEOUT instead of the operating system's much longer default.
+    Socket socket = SocketChannel.open().socket();
+    try {
+      socket.connect(new InetSocketAddress(ID.getAddress(), ID.getPort()), CONNECT_TIMEOUT);
+    } catch (IOException e){
+      socket.close();
+      throw e;
+    }
+    socket.setTcpNoDelay(true); // Frames are small and flushed explicitly
+
+    PeerConnection connection = new PeerConnection(socket, ID, new BufferedInput(socket.getInputStream()),
+        new BufferedOutputStream(socket.getOutputStream()), UNFRAMED);
+
+    try {
+      // Announce that this connection will carry frames and offer a version of the protocol
+      int offered = Peer.BINARY ? VERSION : SERIALIZED;
+      connection.out.writeInt(MAGIC);
+      connection.out.writeByte(offered);
+      connection.out.flush();
+
+      // The other peer acknowledges with the version it will speak
+      int version = connection.in.readUnsignedByte();
+      if(version < SERIALIZED || version > offered){
+        throw new IOException("Peer " + ID + " answered with unknown protocol version " + version);
+      }
+      connection.version = version;
+    } catch (IOException e){
+      connection.close();
+      throw e;
+    }
+
+    return connection;
+  }
+
+  /**
+   * Wraps a socket accepted by a PeerSkeleton. If the other peer starts with the handshake the connection is framed,
+   * otherwise the bytes already read are handed back to the stream so the single RPC can be read as usual.
+   * @param socket the accepted socket
+   * @return the accepted connection
+   * @throws IOException if the connection fails during the handshake
+   */
+  public static PeerConnection accept(Socket socket) throws IOException {
+    // Read the first four bytes to see which kind of connection this is
+    byte[] header = new byte[4];
+    new DataInputStream(socket.getInputStream()).readFully(header);
+    return accept(socket, header);
+  }
+
+  /**
+   * Wraps a socket accepted by a PeerSkeleton whose first bytes have already been read
+   * @param socket the accepted socket
+   * @param header the bytes the other peer sent so far, at least four
+   * @return the accepted connection
+   * @throws IOException if the connection fails during the handshake
+   */
+  public static PeerConnection accept(Socket socket, byte[] header) throws IOException {
+    socket.setTcpNoDelay(true);
+    InputStream is = new BufferedInput(socket.getInputStream());
+    OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+
+    if(ByteBuffer.wrap(header).getInt() != MAGIC){
+      // Unframed connection, put the header back in front of the stream
+      return new PeerConnection(socket, null, new SequenceInputStream(new ByteArrayInputStream(header), is), os, UNFRAMED);
+    }
+
+    // Framed connection, read the requested version and acknowledge it
+    if(header.length > 4){
+      is = new SequenceInputStream(new ByteArrayInputStream(header, 4, header.length - 4), is);
+    }
+    PeerConnection connection = new PeerConnection(socket, null, is, os, UNFRAMED);
+    connection.version = acceptVersion(connection.in.readUnsignedByte());
+    connection.out.writeByte(connection.version);
+    connection.out.flush();
+    return connection;
+  }
+
+  /**
+   * Wraps a non-blocking channel served by the NioListener. The listener does the handshake and reads the frames
+   * itself, so the connection is only used to open frames and send replies.
+   * @param channel the accepted channel
+   * @param out stream that writes to the channel
+   * @param version the version of the protocol agreed on in the handshake
+   * @return the accepted connection
+   */
+  public static PeerConnection accept(SocketChannel channel, ChannelOutputStream out, int version){
+    PeerConnection connection = new PeerConnection(channel.socket(), null, InputStream.nullInputStream(),
+        new BufferedOutputStream(out), version);
+    connection.channelOutput = out;
+    return connection;
+  }
+
+  /**
+   * Picks the protocol version to speak with a peer that asked for the given version
+   * @param requested the version the other peer would like to speak
+   * @return the version this peer will speak
+   */
+  public static int acceptVersion(int requested){
+    return Math.max(SERIALIZED, Math.min(requested, VERSION));
+  }
+
+  // *****************
+  // Reading & Writing
+  // *****************
+
+  /**
+   * Starts a new outgoing frame. Everything written to the returned writer is sent by sendFrame()
+   * @return writer to pack the RPC or reply into
+   * @throws IOException if the writer couldn't be created
+   */
+  public MessageWriter newFrame() throws IOException {
+    if(version == UNFRAMED){
+      // Unframed connections write straight to the socket through a single object stream
+      if(frame == null){
+        frame = new SerializedCodec.Writer(out);
+      }
+    } else if(version == SERIALIZED){
+      frameBuffer = new ByteArrayOutputStream();
+      frame = new SerializedCodec.Writer(frameBuffer);
+    } else {
+      // Binary frames are packed into the same buffer every time
+      if(binaryWriter == null){
+        binaryWriter = new BinaryCodec.Writer();
+      }
+      binaryWriter.reset();
+      frame = binaryWriter;
+    }
+    return frame;
+  }
+
+  /**
+   * Sends the frame started by newFrame() to the other peer
+   * @throws IOException if the frame couldn't be sent
+   */
+  public void sendFrame() throws IOException {
+    if(version == UNFRAMED){
+      ((SerializedCodec.Writer) frame).flush();
+    } else if(version == SERIALIZED){
+      // Length prefix followed by the serialized RPC
+      ((SerializedCodec.Writer) frame).flush();
+      out.writeInt(frameBuffer.size());
+      frameBuffer.writeTo(out);
+      frameBuffer = null;
+    } else {
+      // The binary writer leaves room for the length prefix, so the whole frame goes out in one write
+      out.write(binaryWriter.finish(), 0, binaryWriter.getLength());
+    }
+
+    out.flush();
+  }
+
+  /**
+   * Reads the next incoming frame
+   * @return reader to unpack the RPC or reply from, null if the other peer closed the connection
+   * @throws IOException if the frame couldn't be read
+   */
+  public MessageReader readFrame() throws IOException {
+    if(version == UNFRAMED){
+      // Unframed connections carry exactly one RPC
+      if(unframedRead){
+        return null;
+      }
+      unframedRead = true;
+      return new SerializedCodec.Reader(in);
+    }
+
+    // Read the length prefix, a clean end of stream means the other peer is done with the connection
+    int first = in.read();
+    if(first < 0){
+      return null;
+    }
+    int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+    if(length < 0 || length > MAX_FRAME){
+      throw new StreamCorruptedException("Invalid frame length " + length);
+    }
+
+    // Read the whole frame before unpacking it so that the stream stays aligned. The buffer is reused, which is safe
+    // because every RPC is unpacked before the next frame is read.
+    if(readBuffer.length < length){
+      readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+    }
+    in.readFully(readBuffer, 0, length);
+
+    if(version == SERIALIZED){
+      return new SerializedCodec.Reader(new ByteArrayInputStream(readBuffer, 0, length));
+    }
+    if(binaryReader == null){
+      binaryReader = new BinaryCodec.Reader(readBuffer, length);
+    } else {
+      binaryReader.reset(readBuffer, length);
+    }
+    return binaryReader;
+  }
+
+  /**
+   * Opens a frame that the NioListener has read off the network. Frames are handled on different workers at the same
+   * time, so each one gets its own reader.
+   * @param frame the bytes of the frame, without the length prefix
+   * @return reader to unpack the RPC or reply from
+   * @throws IOException if the frame is not a valid RPC
+   */
+  public MessageReader openFrame(byte[] frame) throws IOException {
+    if(version == SERIALIZED){
+      return new SerializedCodec.Reader(new ByteArrayInputStream(frame));
+    }
+    return new BinaryCodec.Reader(frame, frame.length);
+  }
+
+  /**
+   * Sends the first bytes of a file right after a frame. Whenever the socket has a channel the bytes go from the file
+   * system cache to the socket with FileChannel.transferTo (sendfile), without being copied through the heap.
+   * @param file the file to send
+   * @param position where in the file to start
+   * @param length how many bytes to send
+   * @throws IOException if the file or the connection failed
+   */
+  public void sendFile(FileChannel file, long position, long length) throws IOException {
+    out.flush(); // Everything written before the file must go first
+
+    if(channelOutput != null){
+      // Non-blocking channel, the stream waits for room whenever the peer falls behind
+      channelOutput.transferFrom(file, position, length);
+      return;
+    }
+
+    SocketChannel channel = socket.getChannel();
+    if(channel != null){
+      long end = position + length;
+      while(position < end){
+        long sent = file.transferTo(position, end - position, channel);
+        if(sent <= 0){
+          throw new IOException("File ended before " + length + " bytes were sent");
+        }
+        position += sent;
+      }
+      return;
+    }
+
+    // Plain socket, copy through a buffer
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    while(length > 0){
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), length));
+      int count = file.read(buffer, position);
+      if(count < 0){
+        throw new IOException("File ended early");
+      }
+      out.write(buffer.array(), 0, count);
+      position += count;
+      length -= count;
+    }
+    out.flush();
+  }
+
+  /**
+   * Receives a file of the given length that follows a frame and writes it into the target file at the given
+   * position. The target is grown to its full size up front, the bytes the input buffer read ahead are written first,
+   * and the rest goes straight from the socket into the file with FileChannel.transferFrom.
+   * @param file the file to write into
+   * @param position where in the file the received bytes go
+   * @param length how many bytes to receive
+   * @param size the size the whole file will have
+   * @throws IOException if the connection closed early or the file couldn't be written
+   */
+  public void receiveFile(FileChannel file, long position, long length, long size) throws IOException {
+    // Preallocate the file, so that the file system doesn't have to grow it bit by bit
+    if(file.size() < size){
+      file.write(ByteBuffer.wrap(new byte[1]), size - 1);
+    }
+
+    // Bytes that were read along with the frame
+    if(buffered != null && buffered.buffered() > 0){
+      int count = (int) Math.min(buffered.buffered(), length);
+      byte[] head = new byte[count];
+      in.readFully(head);
+      file.write(ByteBuffer.wrap(head), position);
+      position += count;
+      length -= count;
+    }
+
+    SocketChannel channel = socket.getChannel();
+    byte[] chunk = channel == null ? new byte[64 * 1024] : null; // Plain sockets copy through a buffer
+    long end = position + length;
+    while(position < end){
+      long received;
+      if(channel != null){
+        received = file.transferFrom(channel, position, end - position);
+      } else {
+        received = Math.max(0, in.read(chunk, 0, (int) Math.min(chunk.length, end - position)));
+        file.write(ByteBuffer.wrap(chunk, 0, (int) received), position);
+      }
+      if(received <= 0){
+        throw new IOException("Connection closed with " + (end - position) + " bytes left");
+      }
+      position += received;
+    }
+  }
+
+  /**
+   * Checks that the other peer is still there by sending a ping and waiting for the reply
+   * @param timeout how long to wait for the reply in milliseconds
+   * @return true if the peer replied in time
+   */
+  public boolean ping(int timeout){
+    try {
+      socket.setSoTimeout(timeout);
+
+      MessageWriter os = newFrame();
+      os.writeRpc("ping");
+      sendFrame();
+
+      boolean alive = readFrame() != null;
+      socket.setSoTimeout(0);
+      return alive;
+    } catch (Exception e){
+      return false;
+    }
+  }
+
+  /**
+   * Closes the connection, ignoring errors since the other side may already be gone
+   */
+  public void close(){
+    try {
+      socket.close();
+    } catch (IOException e){
+      // Nothing left to release
+    }
+  }
+
+  /**
+   * Checks whether the connection can still be handed out
+   * @param idleTimeout longest time in milliseconds the connection may have been unused
+   * @return true if the socket is open and was used recently enough
+   */
+  public boolean isHealthy(long idleTimeout){
+    return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()
+        && System.currentTimeMillis() - lastUsed < idleTimeout;
+  }
+
+  /**
+   * Read-ahead buffer that can tell how many bytes it holds, so that those can be drained before the rest of a file
+   * is read from the channel underneath it
+   */
+  private static class BufferedInput extends BufferedInputStream {
+    public BufferedInput(InputStream in){
+      super(in);
+    }
+
+    public int buffered(){
+      return count - pos;
+    }
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public DataInputStream getInputStream(){
+    return in;
+  }
+
+  public DataOutputStream getOutputStream(){
+    return out;
+  }
+
+  public PeerID getID(){
+    return ID;
+  }
+
+  public boolean isFramed(){
+    return version != UNFRAMED;
+  }
+
+  public int getVersion(){
+    return version;
+  }
+
+  public void setVersion(int version){
+    this.version = version;
+  }
+
+  public Executor getHandlers(){
+    return handlers;
+  }
+
+  public void setHandlers(Executor handlers){
+    this.handlers = handlers;
+  }
+
+  public long getLastUsed(){
+    return lastUsed;
+  }
+
+  public boolean isReused(){
+    return uses > 1;
+  }
+
+  public void markUsed(){
+    uses++;
+    lastUsed = System.currentTimeMillis();
+  }
+}
@@ -1,11 +1,19 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 /**
- * A PeerID is a combination of the peer's address and port number used for identification purposes.
+ * A PeerID is a combination of the peer's address and port number used for identification purposes. The address is
+ * kept as a numeric IP address whenever the host name can be resolved, so that the same peer always compares equal no
+ * matter how it was written down or whether it arrived in binary form or serialized by an older peer.
  */
 public class PeerID implements Serializable{
+  private static final long serialVersionUID = 2422440870287642007L; // Keeps older peers able to read it
   private String address;
   private int port;
+  private transient byte[] rawAddress; // Numeric form of the address for the binary protocol, null if not yet known
 
   // ****************
   // Boilerplate Code
@@ -14,7 +22,17 @@ public class PeerID implements Serializable{
   // Comments omitted because this is generic, boilerplate code
 
   public PeerID(int port) {
-    this.address = Peer.ADDRESS;
+    this(Peer.ADDRESS, port);
+  }
+
+  public PeerID(String address, int port) {
+    normalize(address);
+    this.port = port;
+  }
+
+  public PeerID(byte[] rawAddress, int port) throws UnknownHostException {
+    this.address = InetAddress.getByAddress(rawAddress).getHostAddress();
+    this.rawAddress = rawAddress;
     this.port = port;
   }
 
@@ -23,7 +41,7 @@ public class PeerID implements Serializable{
   }
 
   public void setAddress(String address) {
-    this.address = address;
+    normalize(address);
   }
 
   public int getPort() {
@@ -34,6 +52,44 @@ public class PeerID implements Serializable{
     this.port = port;
   }
 
+  /**
+   * Returns the numeric IP address, computing it the first time for IDs that were deserialized
+   * @return the 4 or 16 byte address, null if the address is a name that couldn't be resolved
+   */
+  public byte[] getRawAddress() {
+    if(rawAddress == null){
+      try {
+        rawAddress = InetAddress.getByName(address).getAddress();
+      } catch (Exception e){
+        return null;
+      }
+    }
+    return rawAddress;
+  }
+
+  /**
+   * Sets the address to its numeric form, or to the name as given if it can't be resolved
+   * @param address the host name or address
+   */
+  private void normalize(String address){
+    try {
+      InetAddress inetAddress = InetAddress.getByName(address);
+      this.address = inetAddress.getHostAddress();
+      this.rawAddress = inetAddress.getAddress();
+    } catch (Exception e){
+      this.address = address; // Unresolvable, keep the name as given
+      this.rawAddress = null;
+    }
+  }
+
+  /**
+   * Normalizes the address of an ID that was serialized, which skips the constructors
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    normalize(address);
+  }
+
   public String toString(){
     return address + ":" + port;
   }
@@ -43,4 +99,9 @@ public class PeerID implements Serializable{
     PeerID otherID = (PeerID) other;
     return address.equals(otherID.getAddress()) && port == otherID.getPort();
   }
+
+  @Override
+  public int hashCode(){
+    return address.hashCode() * 31 + port;
+  }
 }
@@ -1,9 +1,11 @@
 import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -14,6 +16,8 @@ import java.net.Socket;
 public class PeerSkeleton {
 
   private Peer peer;
+  private MeteredExecutor connections; // Runs a task per connection in threaded mode
+  private MeteredExecutor handlers; // Runs the messages of each connection in threaded mode, see dispatch
 
   /**
    * Creates a Peer Skeleton that will listen to incoming connections for the given Peer.
@@ -22,6 +26,8 @@ public class PeerSkeleton {
    */
   public PeerSkeleton(Peer p){
     this.peer = p;
+    this.connections = MeteredExecutor.create("connections");
+    this.handlers = MeteredExecutor.create("handlers");
   }
 
   /**
@@ -30,35 +36,17 @@ public class PeerSkeleton {
    */
   public void listen(){
     try {
-      // Create a ServerSocket with the given port number
-      ServerSocket socket = new ServerSocket(peer.getPort());
+      // Create a ServerSocketChannel with the given port number. Connections accepted through a channel can send files
+      // with FileChannel.transferTo
+      ServerSocketChannel socket = ServerSocketChannel.open();
+      socket.bind(new InetSocketAddress(peer.getPort()));
       // Infinitely listen to requests
       while(true){
         // Accept a new connection
-        Socket s = socket.accept();
-
-        // Read the RPC
-        ObjectInputStream inputStream = new ObjectInputStream(s.getInputStream());
-        String rpc = (String) inputStream.readObject();
-
-        // Start a new Thread to complete the RPC
-        new Thread(){
-          @Override
-          public void run() {
-            // Check which operation is requested and complete the desired action
-            if(rpc.equals("query")){
-              query(s, inputStream);
-            } else if(rpc.equals("hitQuery")){
-              hitQuery(s, inputStream);
-            } else if(rpc.equals("obtain")){
-              obtain(s, inputStream);
-            } else if(rpc.equals("invalidate")){
-              invalidate(s, inputStream);
-            } else if(rpc.equals("poll")){
-              poll(s, inputStream);
-            }
-          }
-        }.start();
+        Socket s = socket.accept().socket();
+
+        // Serve the connection on its own thread so the accept loop never waits on a slow peer
+        connections.execute(() -> serve(s));
       }
     } catch (Exception e){
       // An error occurred in the connection
@@ -67,145 +55,434 @@ public class PeerSkeleton {
   }
 
   /**
-   * Reads the parameters from the input stream for a query and call the peer's query method
-   * @param s socket to close when done
-   * @param inputStream InputStream to read over the network
+   * Serves every RPC that arrives over a connection. A persistent connection from a PeerStub carries one RPC per frame
+   * until the other peer hangs up, while a connection without the handshake carries a single RPC.
+   * @param s the accepted connection
    */
-  public void query(Socket s, ObjectInputStream inputStream) {
-    try {
-      // Receive parameters
-      PeerID upstream = (PeerID) inputStream.readObject(); // Upstream
-      MessageID messageID = (MessageID) inputStream.readObject(); // MessageID
-      int TTL = inputStream.readInt(); // TTL
-      String filename = (String) inputStream.readObject(); // Filename
+  public void serve(Socket s){
+    serve(s, null);
+  }
 
-      // Release resources
-      s.close();
+  /**
+   * Serves every RPC that arrives over a connection whose first bytes may already have been read
+   * @param s the accepted connection
+   * @param prefix the bytes already read from the connection, at least four, or null if nothing has been read yet
+   */
+  public void serve(Socket s, byte[] prefix){
+    PeerConnection connection = null;
+    try {
+      connection = prefix == null ? PeerConnection.accept(s) : PeerConnection.accept(s, prefix);
+      if(Peer.SERVER != Peer.NIO){
+        connection.setHandlers(new SerialExecutor(handlers));
+      }
 
-      // Send the operation to the Peer object
-      peer.query(upstream, messageID, TTL, filename);
+      // Read and handle RPCs until the other peer is done with the connection
+      MessageReader request;
+      while((request = connection.readFrame()) != null){
+        handle(connection, request);
+      }
 
     } catch (Exception e){
       e.printStackTrace(); // An error occurred
+    } finally {
+      // Release resources
+      if(connection != null){
+        connection.close();
+      } else {
+        try { s.close(); } catch (Exception e){ e.printStackTrace(); }
+      }
     }
   }
 
   /**
-   * Reads the parameters from the input stream for a hitQuery and call the peer's hitQuery method
-   * @param s socket to close when done
-   * @param inputStream InputStream to read over the network
+   * Reads the name of an RPC and completes the desired action
+   * @param connection Connection the RPC arrived on, used to send replies
+   * @param request Reader holding the RPC
    */
-  public void hitQuery(Socket s, ObjectInputStream inputStream){
-    try {
-      // Receive parameters
-      MessageID messageID = (MessageID) inputStream.readObject(); // MessageID
-      int TTL = inputStream.readInt(); // TTL
-      String filename = (String) inputStream.readObject(); // Name of the file
-      PeerID address = (PeerID) inputStream.readObject(); // Address that has the file
+  public void handle(PeerConnection connection, MessageReader request) throws Exception {
+    handle(connection, request.readRpc(), request);
+  }
 
-      // Release resources
-      s.close();
+  /**
+   * Completes an RPC whose name was already read, such as by the NioListener to pick the pool it runs on
+   * @param connection Connection the RPC arrived on, used to send replies
+   * @param rpc Name of the RPC
+   * @param request Reader holding the rest of the RPC
+   */
+  public void handle(PeerConnection connection, String rpc, MessageReader request) throws Exception {
+    // Check which operation is requested and complete the desired action
+    if(rpc.equals("query")){
+      query(connection, request);
+    } else if(rpc.equals("hitQuery")){
+      hitQuery(connection, request, connection.isFramed());
+    } else if(rpc.equals("obtain")){
+      obtain(connection, request);
+    } else if(rpc.equals("obtainRange")){
+      obtainRange(connection, request);
+    } else if(rpc.equals("invalidate")){
+      invalidate(connection, request);
+    } else if(rpc.equals("poll")){
+      poll(connection, request);
+    } else if(rpc.equals("ping")){
+      ping(connection);
+    } else if(rpc.equals("batch")){
+      batch(connection, request);
+    } else if(rpc.equals("routeTable")){
+      routeTable(connection, request);
+    } else if(rpc.equals("search")){
+      search(connection, request);
+    } else if(rpc.equals("searchHit")){
+      searchHit(connection, request);
+    } else if(rpc.equals("walk")){
+      walk(connection, request);
+    } else if(rpc.equals("walkCheck")){
+      walkCheck(connection, request);
+    } else if(rpc.equals("cancel")){
+      cancel(connection, request);
+    }
+  }
 
-      // Send the operation to the Peer object
-      peer.hitQuery(messageID, TTL, filename, address);
+  /**
+   * Unpacks a batch of one-way messages and handles them in the order they were sent
+   * @param connection Connection the batch came over
+   * @param request Reader holding the batch
+   */
+  private void batch(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive how many messages are in the batch
+    int count = request.readInt();
+
+    for(int i = 0; i < count; i++){
+      // Each message starts with its RPC name, followed by the same parameters as when it is sent on its own
+      String rpc = request.readRpc();
+      if(rpc.equals("query")){
+        query(connection, request);
+      } else if(rpc.equals("hitQuery")){
+        hitQuery(connection, request, true);
+      } else if(rpc.equals("invalidate")){
+        invalidate(connection, request);
+      } else if(rpc.equals("search")){
+        search(connection, request);
+      } else if(rpc.equals("searchHit")){
+        searchHit(connection, request);
+      } else if(rpc.equals("walk")){
+        walk(connection, request);
+      } else if(rpc.equals("cancel")){
+        cancel(connection, request);
+      } else {
+        throw new StreamCorruptedException("Unexpected " + rpc + " in a batch");
+      }
+    }
+  }
 
-    } catch (Exception e){
-      e.printStackTrace(); // An error occurred
+  /**
+   * Hands a message over to the peer. With a thread per connection the message is queued on the connection's
+   * SerialExecutor, so that the connection can go on reading the next RPC while the peer handles this one, and the
+   * messages of one connection are still handled in the order they were sent. The NioListener already runs each
+   * connection's handlers one at a time on its own pool of workers, so there the message is handled right away.
+   * @param connection the connection the message came over
+   * @param task the call into the peer
+   */
+  private void dispatch(PeerConnection connection, Runnable task){
+    Executor ordered = connection.getHandlers();
+    if(ordered == null){
+      task.run();
+    } else {
+      ordered.execute(task);
     }
   }
 
+  /**
+   * Reads the parameters from the input stream for a query and call the peer's query method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void query(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    PeerID upstream = request.readPeerID(); // Upstream
+    MessageID messageID = request.readMessageID(); // MessageID
+    int TTL = request.readTTL(); // TTL
+    String filename = request.readString(); // Filename
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.query(upstream, messageID, TTL, filename));
+  }
 
   /**
-   * Services request by the Peer on the other side of the connection of the socket. Sends the requested file over
-   * the network. Slightly different from Napster in that we also send the DanFile
-   * @param s Connection to listen for file name ane send file over
-   * @param inputStream InputStream to read over the network
+   * Reads the parameters from the input stream for a hitQuery and call the peer's hitQuery method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   * @param framed Whether the hitQuery came over a framed connection. Peers that send a single unframed RPC predate
+   *               the version of the file being sent along.
    */
-  private void obtain(Socket s, ObjectInputStream inputStream){
-    try {
-      // Receive filename
-      String filename = (String) inputStream.readObject();
+  public void hitQuery(PeerConnection connection, MessageReader request, boolean framed) throws Exception {
+    // Receive parameters
+    MessageID messageID = request.readMessageID(); // MessageID
+    int TTL = request.readTTL(); // TTL
+    String filename = request.readString(); // Name of the file
+    PeerID address = request.readPeerID(); // Address that has the file
+    int version = framed ? request.readInt() : -1; // Version of the file there
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.hitQuery(messageID, TTL, filename, address, version));
+  }
 
-      // Open output stream
-      OutputStream os = s.getOutputStream(); // File uploading stream
+  /**
+   * Reads the parameters from the input stream for a random walker and call the peer's walk method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void walk(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    PeerID upstream = request.readPeerID(); // Upstream
+    MessageID messageID = request.readMessageID(); // MessageID
+    int TTL = request.readTTL(); // TTL
+    String filename = request.readString(); // Filename
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.walk(upstream, messageID, TTL, filename));
+  }
 
-      // Send file information
-      DanFile danFile = peer.getDanFile(filename); // Get DanFile with the given name
-      ObjectOutputStream objectOutputStream = new ObjectOutputStream(os); // Create object output stream over network
-      objectOutputStream.writeObject(danFile); // Send DanFile over the network
+  /**
+   * Reads the messageID of a cancelled query or search and call the peer's cancel method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void cancel(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive the messageID
+    MessageID messageID = request.readMessageID();
 
-      // Send file
-      FileInputStream fis = peer.obtain(filename); // File reading stream
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.cancel(messageID));
+  }
 
-      int count; // Number of bytes read from file
-      byte[] buffer = new byte[4096]; // Buffer to store file in
-      while ((count = fis.read(buffer)) > 0){ // Read from file into buffer
-        os.write(buffer, 0, count); // Write to Peer from Buffer
-      }
+  /**
+   * Answers a random walker checking back on whether its search is still going
+   * @param connection Connection to send the answer over
+   * @param request Reader holding the parameters of the RPC
+   */
+  private void walkCheck(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive the messageID
+    MessageID messageID = request.readMessageID();
+
+    // Send the answer
+    MessageWriter reply = connection.newFrame();
+    reply.writeBoolean(peer.walkCheck(messageID));
+    connection.sendFrame();
+  }
 
-      // Release resources
-      s.close();
-      fis.close();
+  /**
+   * Reads the parameters from the input stream for a keyword search and call the peer's search method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void search(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    PeerID upstream = request.readPeerID(); // Upstream
+    MessageID messageID = request.readMessageID(); // MessageID
+    int TTL = request.readTTL(); // TTL
+    String search = request.readString(); // Search terms
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.search(upstream, messageID, TTL, search));
+  }
 
-    } catch (Exception e){
-      e.printStackTrace(); // An error occurred
+  /**
+   * Reads the parameters from the input stream for search results and call the peer's searchHit method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void searchHit(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    MessageID messageID = request.readMessageID(); // MessageID
+    int TTL = request.readTTL(); // TTL
+    PeerID address = request.readPeerID(); // Address that has the files
+    int count = request.readInt(); // Number of results
+    List<SearchResult> results = new ArrayList<SearchResult>(count);
+    for(int i = 0; i < count; i++){
+      String filename = request.readString();
+      long size = request.readLong();
+      results.add(new SearchResult(filename, size, request.readInt()));
     }
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.searchHit(messageID, TTL, address, results));
   }
 
   /**
-   * Reads the parameters from the input stream for an invalidate message and call the peer's invalidate method
-   * @param s socket to close when done
-   * @param inputStream InputStream to read over the network
+   * Services request by the Peer on the other side of the connection. Sends the requested file over the network.
+   * Slightly different from Napster in that we also send the DanFile. Framed connections stay open afterwards, so the
+   * length of the file is sent before its contents.
+   * @param connection Connection to send the file over
+   * @param request Reader holding the parameters of the RPC
    */
-  public void invalidate(Socket s, ObjectInputStream inputStream){
-    try {
-      // Receive parameters
-      MessageID messageID = (MessageID) inputStream.readObject(); // MessageID
-      PeerID originServer = (PeerID) inputStream.readObject(); // Origin Server
-      String filename = (String) inputStream.readObject(); // Name of the file
-      int version = inputStream.readInt(); // New Version of the file
+  private void obtain(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive filename
+    String filename = request.readString();
+
+    // Get DanFile with the given name and open the file for reading
+    DanFile danFile = peer.getDanFile(filename);
+    FileInputStream fis = danFile != null ? peer.obtain(filename) : null; // File reading stream
+
+    long length = fis != null ? fis.getChannel().size() : -1; // Length of the file
+
+    // Send file information
+    MessageWriter reply = connection.newFrame();
+    reply.writeDanFile(fis != null ? danFile : null); // Send DanFile over the network
+    if(connection.isFramed()){
+      reply.writeLong(length); // Send length of the file
+    }
+    connection.sendFrame();
+
+    if(fis == null){
+      return; // Nothing to send
+    }
 
+    // Send file
+    try {
+      connection.sendFile(fis.getChannel(), 0, length);
+    } finally {
       // Release resources
-      s.close();
+      fis.close();
+    }
+  }
 
-      // Send the operation to the Peer object
-      peer.invalidate(messageID, originServer, filename, version);
+  /**
+   * Services a request for part of a file, used by peers resuming a download or downloading from several sources at
+   * once. Sends the DanFile, the size of the whole file, the length of the range and the Merkle proofs of the pieces in
+   * it, followed by the bytes of the range. A range that runs past the end of the file is cut short, and a request for
+   * a version other than the one this peer has gets an empty range, so that pieces of different versions never end up
+   * in the same file. A file this peer is still downloading is served too, but only up to the first piece that hasn't
+   * matched its root yet.
+   * @param connection Connection to send the range over
+   * @param request Reader holding the parameters of the RPC
+   */
+  private void obtainRange(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive filename, expected version and range
+    String filename = request.readString();
+    int version = request.readInt();
+    long offset = request.readLong();
+    long length = request.readLong();
+
+    // Get DanFile with the given name, or the one being downloaded if it has a root to check its pieces against, and
+    // open the file for reading
+    DanFile danFile = peer.getDanFile(filename);
+    PartialFile partial = PartialFile.find(filename);
+    if(partial != null){
+      danFile = partial.getDanFile().getRoot() != null ? partial.getDanFile() : null;
+    }
+    FileInputStream fis = danFile == null ? null : partial != null ? partial.read() : peer.obtain(filename);
+
+    long size = fis == null ? -1 : partial != null ? partial.getSize() : fis.getChannel().size(); // Size of the file
+    long count = -1; // Length of the range actually sent
+    if(fis != null && version >= 0 && danFile.getVersion() != version){
+      count = 0; // Not the version the other peer is downloading
+    } else if(fis != null){
+      count = offset < 0 || offset >= size ? 0 : Math.max(0, Math.min(length, size - offset));
+      if(partial != null){
+        count = partial.available(offset, count);
+      }
+    }
 
-    } catch (Exception e){
-      e.printStackTrace(); // An error occurred
+    // Prove each piece of the range, so the other peer can check it as soon as it is in
+    byte[] proofs = null;
+    if(count > 0 && offset % PartialFile.PIECE_SIZE == 0){
+      int first = (int) (offset / PartialFile.PIECE_SIZE);
+      int last = (int) ((offset + count - 1) / PartialFile.PIECE_SIZE);
+      if(partial != null){
+        proofs = partial.proofs(first, last);
+      } else if(danFile.getRoot() != null){
+        MerkleTree tree = peer.getTree(filename);
+        proofs = tree != null && tree.getRoot().equals(danFile.getRoot()) ? tree.proofs(first, last) : null;
+      }
     }
+
+    // Send file information
+    MessageWriter reply = connection.newFrame();
+    reply.writeDanFile(fis != null ? danFile : null);
+    reply.writeLong(size);
+    reply.writeLong(count);
+    reply.writeBytes(proofs);
+    connection.sendFrame();
+
+    if(fis == null){
+      return; // Nothing to send
+    }
+
+    // Send the range
+    try {
+      if(count > 0){
+        connection.sendFile(fis.getChannel(), offset, count);
+      }
+    } finally {
+      // Release resources
+      fis.close();
+    }
+  }
+
+  /**
+   * Reads the parameters from the input stream for an invalidate message and call the peer's invalidate method
+   * @param connection Connection the message came over
+   * @param request Reader holding the parameters of the RPC
+   */
+  public void invalidate(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    MessageID messageID = request.readMessageID(); // MessageID
+    PeerID originServer = request.readPeerID(); // Origin Server
+    String filename = request.readString(); // Name of the file
+    int version = request.readInt(); // New Version of the file
+
+    // Send the operation to the Peer object
+    dispatch(connection, () -> peer.invalidate(messageID, originServer, filename, version));
   }
 
 
   /**
    * Reads parameters for a poll request and forwards them to the peer. Sends back
    * a poll result
-   * @param s Connection to listen for file name ane send result over
-   * @param inputStream InputStream to read over the network
+   * @param connection Connection to send result over
+   * @param request Reader holding the parameters of the RPC
    */
-  private void poll(Socket s, ObjectInputStream inputStream){
-    try {
-      // Receive version
-      int version = inputStream.readInt();
-
-      // Receive filename
-      String filename = (String) inputStream.readObject();
+  private void poll(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive version
+    int version = request.readInt();
 
-      // Open output stream
-      OutputStream os = s.getOutputStream();
-      ObjectOutputStream objectOutputStream = new ObjectOutputStream(os); // Create object output stream over network
+    // Receive filename
+    String filename = request.readString();
 
-      // Poll the peer
-      PollResult result = peer.poll(version, filename);
+    // Poll the peer
+    PollResult result = peer.poll(version, filename);
 
-      // Send result over network
-      objectOutputStream.writeObject(result);
+    // Send result over network
+    MessageWriter reply = connection.newFrame();
+    reply.writePollResult(result);
+    connection.sendFrame();
+  }
 
-      // Release resources
-      s.close();
+  /**
+   * Reads a RouteTable sent by a neighbor, hands it to the peer and acknowledges it with the version the peer now holds
+   * @param connection Connection to send the acknowledgement over
+   * @param request Reader holding the parameters of the RPC
+   */
+  private void routeTable(PeerConnection connection, MessageReader request) throws Exception {
+    // Receive parameters
+    PeerID sender = request.readPeerID(); // Neighbor the table belongs to
+    int version = request.readInt(); // Version of the table
+    int base = request.readInt(); // Version the patch applies to
+    byte[] data = request.readBytes(); // Deflated table or patch
+
+    // Send the acknowledgement
+    MessageWriter reply = connection.newFrame();
+    reply.writeInt(peer.routeTable(sender, version, base, data));
+    connection.sendFrame();
+  }
 
-    } catch (Exception e){
-      e.printStackTrace(); // An error occurred
-    }
+  /**
+   * Answers a health check from the ConnectionPool of the peer on the other side
+   * @param connection Connection to send the reply over
+   */
+  private void ping(PeerConnection connection) throws Exception {
+    MessageWriter reply = connection.newFrame();
+    reply.writeRpc("pong");
+    connection.sendFrame();
   }
 }
@@ -1,8 +1,7 @@
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * This class is the client-side interface of a Peer server. When connecting to and requesting files from other peers,
@@ -10,6 +9,10 @@ import java.net.Socket;
  */
 
 public class PeerStub {
+  public static final int MAX_RUN = 64; // Most pieces asked for in one range, so that their proofs fit in a frame
+
+  private static final ConnectionPool pool = new ConnectionPool(); // Connections shared by all stubs
+
   private PeerID ID;
 
   /**
@@ -30,29 +33,7 @@ public class PeerStub {
    * @param filename The name of the file being queried
    */
   public void query(PeerID upstream, MessageID messageID, int TTL, String filename){
-    // Name the RPC
-    String rpc = "query";
-    try {
-      // Connect to the Peer
-      Socket socket = new Socket(ID.getAddress(), ID.getPort());
-
-      // Send over the RPC
-      ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-      os.writeObject(rpc);
-
-      // Send over all the parameters
-      os.writeObject(upstream);
-      os.writeObject(messageID);
-      os.writeInt(TTL);
-      os.writeObject(filename);
-
-      // Clean up resources
-      socket.close();
-
-    } catch (Exception e){
-      // An error occurred on the connection
-      e.printStackTrace();
-    }
+    send(packQuery(upstream, messageID, TTL, filename));
   }
 
   /**
@@ -61,77 +42,200 @@ public class PeerStub {
    * @param TTL how many hops it has left
    * @param filename the name of the file that was found
    * @param address the address where the final can be found
+   * @param version the version of the file found there, -1 if unknown
    */
-  public void hitQuery(MessageID messageID, int TTL, String filename, PeerID address){
-    // Name the RPC
-    String rpc = "hitQuery";
-    try {
-      // Connect to the Peer
-      Socket socket = new Socket(ID.getAddress(), ID.getPort());
-
-      // Send over the RPC
-      ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-      os.writeObject(rpc);
-
-      // Send over all the parameters
-      os.writeObject(messageID);
-      os.writeInt(TTL);
-      os.writeObject(filename);
-      os.writeObject(address);
-
-      // Clean up socket
-      socket.close();
-
-    } catch (Exception e){
-      // A network error occurred
-      e.printStackTrace();
-    }
+  public void hitQuery(MessageID messageID, int TTL, String filename, PeerID address, int version){
+    send(packHitQuery(messageID, TTL, filename, address, version));
   }
 
-
   /**
    * Downloads the the given File from the Peer to the shared directory. Also gets a DanFile object to store in list of
-   * files
+   * files. The file is fetched in ranges and the pieces already written are recorded next to it, so if the connection
+   * drops part way through, the next attempt at the same version only fetches what is missing.
    *
    * @param filename Name of the file to download
    * @return The DanFile representation of the file. Null if error or no file found
    */
   public DanFile obtain(String filename){
-    // Name the RPC
-    String rpc = "obtain";
-    try {
-      // Connect over the network to the peer
-      Socket socket = new Socket(ID.getAddress(), ID.getPort());
-
-      // Send the RPC
-      ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-      os.writeObject(rpc);
+    // Ask which version and size of the file the peer has
+    RangeResult probe = obtainRange(filename, -1, 0, 0, null);
+    if(probe == null){
+      return null; // The peer doesn't have the file
+    }
+    return obtain(probe, null);
+  }
 
-      // Send filename
-      os.writeObject(filename);
+  /**
+   * Downloads the file the peer said it has when probed. If the peer sent the Merkle root of the file, every piece is
+   * checked against it as it comes in, and pieces that don't match are fetched again right away, up to
+   * ContentHash.ATTEMPTS times. Otherwise, if the peer sent the hash of the file, the download is checked against it
+   * once every piece is in, and a download that doesn't match is thrown away and fetched again from scratch, up to
+   * ContentHash.ATTEMPTS times.
+   * @param probe What the peer answered when asked which version and size of the file it has
+   * @param opened Called with the file being written every time it is opened, null if not needed
+   * @return The DanFile representation of the file. Null if error, or if the file never matched its hashes
+   */
+  public DanFile obtain(RangeResult probe, Consumer<PartialFile> opened){
+    DanFile danFile = probe.getDanFile();
+    String filename = danFile.getFilename();
+    for(int attempt = 1; attempt <= ContentHash.ATTEMPTS; attempt++){
+      if(!fetch(danFile, probe.getSize(), opened)){
+        return null;
+      }
+      // Every piece already matched the root, so the whole file only has to be checked if there is none
+      if(danFile.getRoot() != null || ContentHash.verify(danFile, new File(Peer.OTHER_FILES_DIR + filename))){
+        return danFile;
+      }
+      System.out.println("Download of " + filename + " from " + ID + " doesn't match its hash"
+          + (attempt < ContentHash.ATTEMPTS ? ", fetching it again." : ", giving up."));
+    }
+    return null;
+  }
 
-      // Get input over network
-      InputStream is = socket.getInputStream();
+  /**
+   * Fetches every piece of a file that is still missing. Pieces that don't match the Merkle root of the file are left
+   * missing and fetched again once the rest is in.
+   * @param danFile The version of the file to fetch
+   * @param size The size of the file
+   * @param opened Called with the file being written once it is opened, null if not needed
+   * @return True if every piece is in
+   */
+  private boolean fetch(DanFile danFile, long size, Consumer<PartialFile> opened){
+    String filename = danFile.getFilename();
+    PartialFile partial = null;
+    try {
+      // Pick up any earlier attempt at the same version
+      partial = PartialFile.open(danFile, size);
+      if(opened != null){
+        opened.accept(partial);
+      }
+      List<Integer> missing = partial.missingPieces();
+      if(missing.size() < partial.getPieceCount()){
+        System.out.println("Resuming " + filename + ": " + missing.size() + " of " + partial.getPieceCount()
+            + " pieces left.");
+      }
 
-      // Read in DanFile
-      ObjectInputStream objectInputStream = new ObjectInputStream(is);
-      DanFile danFile = (DanFile) objectInputStream.readObject();
+      for(int attempt = 1; !missing.isEmpty(); attempt++){
+        if(attempt > ContentHash.ATTEMPTS){
+          System.out.println("Pieces of " + filename + " from " + ID + " keep failing their hashes, giving up with "
+              + missing.size() + " of " + partial.getPieceCount() + " pieces left.");
+          return false;
+        }
+
+        // Fetch each run of missing pieces with a single RPC, MAX_RUN pieces at most
+        int rejected = 0;
+        int i = 0;
+        while(i < missing.size()){
+          int first = missing.get(i);
+          int last = first;
+          while(i + 1 < missing.size() && missing.get(i + 1) == last + 1 && last - first + 1 < MAX_RUN){
+            last = missing.get(++i);
+          }
+          i++;
+
+          long offset = partial.offset(first);
+          long length = partial.offset(last) + partial.length(last) - offset;
+          RangeResult result = obtainRange(filename, danFile.getVersion(), offset, length, partial);
+          if(result == null || result.getLength() != length){
+            // The peer went away or moved on to another version, keep what we have for next time
+            System.out.println("Download of " + filename + " stopped with " + partial.getMissing() + " of "
+                + partial.getPieceCount() + " pieces left.");
+            return false;
+          }
+          rejected += result.getRejected();
+        }
+
+        missing = partial.missingPieces();
+        if(rejected > 0){
+          System.out.println(rejected + " pieces of " + filename + " from " + ID + " didn't match their hashes"
+              + (attempt < ContentHash.ATTEMPTS ? ", fetching them again." : "."));
+        }
+      }
 
-      // Open file-writing stream
-      FileOutputStream fos = new FileOutputStream(Peer.OTHER_FILES_DIR + filename);
+      return true;
 
-      int count; // Number of bytes read
-      byte[] buffer = new byte[4096]; // Buffer to store file in
-      while((count = is.read(buffer)) > 0 ){ // Read from Peer into buffer
-        fos.write(buffer, 0, count); // Write to file from buffer
+    } catch (Exception e){
+      e.printStackTrace(); // An error occurred
+    } finally {
+      if(partial != null){
+        partial.close();
       }
+    }
 
-      // Release resources
-      socket.close();
-      fos.close();
+    return false; // Failed to download. Something went wrong
+  }
 
-      // Return the DanFile representation
-      return danFile;
+  /**
+   * Downloads part of the given file from the Peer into a download in progress, recording every whole piece as it is
+   * written. The range must start at the beginning of a piece. The peer sends the Merkle proof of every piece in the
+   * range along with it, and a piece that doesn't match the root of the download is left missing. Asking for a length
+   * of zero only fetches the DanFile and the size of the file, which is how a download finds out what a peer has. If
+   * the peer's version of the file isn't the expected one, it answers with an empty range.
+   *
+   * @param filename Name of the file to download from
+   * @param version The version of the file expected, -1 for any version
+   * @param offset Where in the file the range starts
+   * @param length How many bytes to download
+   * @param partial The download to write the range into, may be null if the length is zero
+   * @return The DanFile, size and length of the range received, and how many of its pieces didn't match. Null if error
+   * or no file found
+   */
+  public RangeResult obtainRange(String filename, int version, long offset, long length, PartialFile partial){
+    // Name the RPC
+    String rpc = "obtainRange";
+    try {
+      return call(connection -> {
+        // Send the RPC
+        MessageWriter os = connection.newFrame();
+        os.writeRpc(rpc);
+
+        // Send filename, expected version and range
+        os.writeString(filename);
+        os.writeInt(version);
+        os.writeLong(offset);
+        os.writeLong(length);
+        connection.sendFrame();
+
+        // Read in DanFile, the size of the whole file, the length of the range that follows and the proofs of its
+        // pieces
+        MessageReader reply = connection.readFrame();
+        if(reply == null){
+          throw new IOException("Peer " + ID + " closed the connection instead of sending " + filename);
+        }
+        DanFile danFile = reply.readDanFile();
+        long size = reply.readLong();
+        long received = reply.readLong();
+        byte[] proofs = reply.readBytes();
+
+        // The peer doesn't have the file
+        if(danFile == null || received < 0){
+          return null;
+        }
+
+        // Receive the range piece by piece straight into its place in the file, and check each piece as it comes in
+        long position = offset;
+        long end = offset + received;
+        int proof = 0; // Where the proof of the next piece starts
+        int rejected = 0;
+        while(position < end){
+          int piece = (int) (position / PartialFile.PIECE_SIZE);
+          long count = Math.min(partial.offset(piece) + partial.length(piece), end) - position;
+          connection.receiveFile(partial.getChannel(), position, count, size);
+          position += count;
+          if(position == partial.offset(piece) + partial.length(piece)){
+            if(partial.verify(piece, proofs, proof)){
+              partial.complete(piece);
+            } else {
+              rejected++;
+            }
+            proof += MerkleTree.proofLength(piece, partial.getPieceCount());
+          }
+        }
+
+        RangeResult result = new RangeResult(danFile, size, received);
+        result.setRejected(rejected);
+        return result;
+      });
 
     } catch (Exception e){
       e.printStackTrace(); // An error occurred
@@ -148,32 +252,95 @@ public class PeerStub {
    * @param version the latest version of the file
    */
   public void invalidate(MessageID messageID, PeerID originServer, String filename, int version){
-    // Name the RPC
-    String rpc = "invalidate";
+    send(packInvalidate(messageID, originServer, filename, version));
+  }
+
+  /**
+   * Sends a one-way message to the peer in a frame of its own
+   * @param message the message to send
+   * @return true if the message was sent
+   */
+  public boolean send(Batchable message){
     try {
-      // Connect to the peer
-      Socket socket = new Socket(ID.getAddress(), ID.getPort());
+      call(connection -> {
+        MessageWriter os = connection.newFrame();
+        message.pack(os);
+        connection.sendFrame();
+        return null;
+      });
+      return true;
 
-      // Send the name of the RPC
-      ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-      os.writeObject(rpc);
+    } catch (Exception e){
+      // An error occurred on the connection
+      e.printStackTrace();
+    }
 
-      // Send over parameters one by one
-      os.writeObject(messageID);
-      os.writeObject(originServer);
-      os.writeObject(filename);
-      os.writeInt(version);
-      os.writeObject("endoffile"); // End of stream padding
+    return false; // Failed to send. Something went wrong
+  }
 
-      // Clean up resources and close connection
-      socket.close();
+  /**
+   * Sends several one-way messages to the peer in a single batch frame, which the peer unpacks and handles one by one
+   * in order. Saves a frame, a flush and a wakeup on both sides for every message after the first.
+   * @param messages the messages to send
+   */
+  public void batch(List<Batchable> messages){
+    // Name the RPC
+    String rpc = "batch";
+    try {
+      call(connection -> {
+        // Send the RPC and how many messages follow
+        MessageWriter os = connection.newFrame();
+        os.writeRpc(rpc);
+        os.writeInt(messages.size());
+
+        // Send each message just like it would be sent on its own
+        for(Batchable message : messages){
+          message.pack(os);
+        }
+        connection.sendFrame();
+        return null;
+      });
 
     } catch (Exception e){
-      // An error occurred over the network
+      // An error occurred on the connection
       e.printStackTrace();
     }
   }
 
+  /**
+   * Asks the peer that started a search whether it still wants hits for it. Random walkers check back this way every
+   * few hops, so they stop once the search is satisfied.
+   * @param messageID the ID of the search
+   * @return true if the search is still going, false if it is done or the peer couldn't be reached
+   */
+  public boolean walkCheck(MessageID messageID){
+    // Name the RPC
+    String rpc = "walkCheck";
+    try {
+      return call(connection -> {
+        // Send the RPC
+        MessageWriter os = connection.newFrame();
+        os.writeRpc(rpc);
+
+        // Send the messageID
+        os.writeMessageID(messageID);
+        connection.sendFrame();
+
+        // Read in the answer
+        MessageReader reply = connection.readFrame();
+        if(reply == null){
+          throw new IOException("Peer " + ID + " closed the connection instead of answering a walker");
+        }
+        return reply.readBoolean();
+      });
+
+    } catch (Exception e){
+      e.printStackTrace(); // An error occurred
+    }
+
+    return false; // The originator is gone, so the walker stops
+  }
+
   /**
    * Polls the origin server to see if the file must be updated or not. Packs the parameters
    * and returns a PollResult object for the Peer to make decisions on
@@ -186,34 +353,256 @@ public class PeerStub {
     // Name the RPC
     String rpc = "poll";
     try {
-      // Connect over the network to the peer
-      Socket socket = new Socket(ID.getAddress(), ID.getPort());
-
-      // Send the RPC
-      ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-      os.writeObject(rpc);
+      return call(connection -> {
+        // Send the RPC
+        MessageWriter os = connection.newFrame();
+        os.writeRpc(rpc);
+
+        // Send version
+        os.writeInt(version);
+        // Send filename
+        os.writeString(filename);
+        connection.sendFrame();
+
+        // Read in PollResult
+        MessageReader reply = connection.readFrame();
+        return reply.readPollResult();
+      });
 
-      // Send version
-      os.writeInt(version);
-      // Send filename
-      os.writeObject(filename);
-
-      // Get input over network
-      InputStream is = socket.getInputStream();
-      // Read in PollResult
-      ObjectInputStream objectInputStream = new ObjectInputStream(is);
-      PollResult result = (PollResult) objectInputStream.readObject();
+    } catch (Exception e){
+      e.printStackTrace(); // An error occurred
+    }
 
-      // Release resources
-      socket.close();
+    return null; // Failed to poll. Something went wrong
+  }
 
-      // Return the poll result
-      return result;
+  /**
+   * Sends this peer's RouteTable to the peer, either whole or as a patch to the table the peer already holds from us
+   * @param sender the ID of this peer, which the table is filed under
+   * @param version the version of the table
+   * @param base the version the patch applies to, -1 if the whole table is sent
+   * @param data the deflated table or patch
+   * @return the version the peer now holds, -1 if it couldn't apply the patch or couldn't be reached
+   */
+  public int routeTable(PeerID sender, int version, int base, byte[] data){
+    // Name the RPC
+    String rpc = "routeTable";
+    try {
+      return call(connection -> {
+        // Send the RPC
+        MessageWriter os = connection.newFrame();
+        os.writeRpc(rpc);
+
+        // Send over all the parameters
+        os.writePeerID(sender);
+        os.writeInt(version);
+        os.writeInt(base);
+        os.writeBytes(data);
+        connection.sendFrame();
+
+        // Read in the acknowledgement
+        MessageReader reply = connection.readFrame();
+        if(reply == null){
+          throw new IOException("Peer " + ID + " closed the connection instead of acknowledging the route table");
+        }
+        return reply.readInt();
+      });
 
     } catch (Exception e){
       e.printStackTrace(); // An error occurred
     }
 
-    return null; // Failed to poll. Something went wrong
+    return -1; // Failed to send. Something went wrong
+  }
+
+  /**
+   * Runs an RPC over a connection borrowed from the pool. An idle connection may have been dropped by the other peer
+   * since it was last used, so if the RPC fails on a reused connection it is tried again on another one.
+   * @param rpc the RPC to run
+   * @return the result of the RPC
+   * @throws Exception if the RPC failed on a fresh connection
+   */
+  private <T> T call(RemoteCall<T> rpc) throws Exception {
+    while(true){
+      PeerConnection connection = pool.borrow(ID);
+      try {
+        T result = rpc.run(connection);
+        pool.release(connection);
+        return result;
+      } catch (Exception e){
+        // Never reuse a connection that failed part way through an RPC
+        connection.close();
+        if(!(e instanceof IOException) || !connection.isReused()){
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * The part of an RPC that talks over a connection
+   */
+  private interface RemoteCall<T> {
+    T run(PeerConnection connection) throws Exception;
+  }
+
+  // ****************
+  // One-way messages
+  // ****************
+
+  /**
+   * Packs a query. See query()
+   * @return the packed message
+   */
+  public static Batchable packQuery(PeerID upstream, MessageID messageID, int TTL, String filename){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("query");
+
+      // Send over all the parameters
+      os.writePeerID(upstream);
+      os.writeMessageID(messageID);
+      os.writeTTL(TTL);
+      os.writeString(filename);
+    };
+  }
+
+  /**
+   * Packs a hitQuery. See hitQuery()
+   * @return the packed message
+   */
+  public static Batchable packHitQuery(MessageID messageID, int TTL, String filename, PeerID address, int version){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("hitQuery");
+
+      // Send over all the parameters
+      os.writeMessageID(messageID);
+      os.writeTTL(TTL);
+      os.writeString(filename);
+      os.writePeerID(address);
+      os.writeInt(version);
+    };
+  }
+
+  /**
+   * Packs an invalidation. See invalidate()
+   * @return the packed message
+   */
+  public static Batchable packInvalidate(MessageID messageID, PeerID originServer, String filename, int version){
+    return os -> {
+      // Send the name of the RPC
+      os.writeRpc("invalidate");
+
+      // Send over parameters one by one
+      os.writeMessageID(messageID);
+      os.writePeerID(originServer);
+      os.writeString(filename);
+      os.writeInt(version);
+    };
+  }
+
+  /**
+   * Packs a random walker. Carries the same parameters as a query, but each peer passes it on to a single neighbor.
+   * @param upstream Where to send back
+   * @param messageID The messageID of the search the walker belongs to
+   * @param TTL How many hops it has left
+   * @param filename The name of the file being searched for
+   * @return the packed message
+   */
+  public static Batchable packWalk(PeerID upstream, MessageID messageID, int TTL, String filename){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("walk");
+
+      // Send over all the parameters
+      os.writePeerID(upstream);
+      os.writeMessageID(messageID);
+      os.writeTTL(TTL);
+      os.writeString(filename);
+    };
+  }
+
+  /**
+   * Packs a keyword search. Travels like a query, but carries search terms instead of a filename.
+   * @param upstream Where to send back
+   * @param messageID The messageID of this message
+   * @param TTL How many hops it has left
+   * @param search The terms being searched for, separated by spaces
+   * @return the packed message
+   */
+  public static Batchable packSearch(PeerID upstream, MessageID messageID, int TTL, String search){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("search");
+
+      // Send over all the parameters
+      os.writePeerID(upstream);
+      os.writeMessageID(messageID);
+      os.writeTTL(TTL);
+      os.writeString(search);
+    };
+  }
+
+  /**
+   * Packs the reply to a keyword search, holding every matching file the peer has. Travels back like a hitQuery.
+   * @param messageID the ID of the search
+   * @param TTL how many hops it has left
+   * @param address the address where the files can be found
+   * @param results the files that matched
+   * @return the packed message
+   */
+  public static Batchable packSearchHit(MessageID messageID, int TTL, PeerID address, List<SearchResult> results){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("searchHit");
+
+      // Send over all the parameters, followed by how many results there are and each result
+      os.writeMessageID(messageID);
+      os.writeTTL(TTL);
+      os.writePeerID(address);
+      os.writeInt(results.size());
+      for(SearchResult result : results){
+        os.writeString(result.getFilename());
+        os.writeLong(result.getSize());
+        os.writeInt(result.getVersion());
+      }
+    };
+  }
+
+  /**
+   * Packs the cancellation of a query or search by the peer that started it. Travels to every peer the query reached.
+   * @param messageID the ID of the query or search
+   * @return the packed message
+   */
+  public static Batchable packCancel(MessageID messageID){
+    return os -> {
+      // Send over the RPC
+      os.writeRpc("cancel");
+
+      // Send over the messageID
+      os.writeMessageID(messageID);
+    };
+  }
+
+  /**
+   * A message that expects no reply, so it can be sent on its own or as part of a batch
+   */
+  public interface Batchable {
+    void pack(MessageWriter os) throws IOException;
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public PeerID getID(){
+    return ID;
+  }
+
+  public static ConnectionPool getPool(){
+    return pool;
   }
 }
@@ -5,6 +5,7 @@ import java.io.Serializable;
  * and if not, provide a new TTR for the file to update on.
  */
 public class PollResult implements Serializable{
+  private static final long serialVersionUID = 1857101597596513059L; // Keeps older peers able to read it
   private boolean outOfDate;
   private long newTTR;
 
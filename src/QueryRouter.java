@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The QueryRouter keeps a peer's RouteTable up to date with its neighbors, in both directions. It sends the table of
+ * the peer's own files to every neighbor, as a patch when the neighbor already holds an older table, and keeps the
+ * tables the neighbors send in return. A query on its last hop is only sent to neighbors whose table might match,
+ * since those neighbors won't forward it any further. A neighbor that hasn't sent a table gets every query, as before.
+ */
+public class QueryRouter {
+  public static final int ROUTE_INTERVAL = 1000 * 10; // How often neighbors missing the latest table are retried
+  public static final int STARTUP_DELAY = 1000 * 2; // How long to wait before sending the first tables
+
+  private Peer peer;
+  private RouteTable local; // Table of this peer's files
+  private int catalogChanges = -1; // Catalog change count the local table was built from
+  private Map<PeerID, RouteTable> sent = new ConcurrentHashMap<PeerID, RouteTable>(); // Tables neighbors acknowledged
+  private Map<PeerID, RouteTable> received = new ConcurrentHashMap<PeerID, RouteTable>(); // Tables from neighbors
+
+  private AtomicLong forwarded = new AtomicLong(); // Last hop queries sent to a neighbor whose table matched
+  private AtomicLong skipped = new AtomicLong(); // Last hop queries left out because the table didn't match
+  private AtomicLong fullTables = new AtomicLong(); // Whole tables sent
+  private AtomicLong patches = new AtomicLong(); // Patches sent
+  private AtomicLong bytesSent = new AtomicLong(); // Deflated bytes sent in tables and patches
+
+  public QueryRouter(Peer peer){
+    this.peer = peer;
+  }
+
+  // *******
+  // Routing
+  // *******
+
+  /**
+   * Decides whether a query should be sent to a neighbor
+   * @param neighbor the neighbor
+   * @param TTL the TTL the neighbor would receive the query with
+   * @param keyword the filename or keyword being searched for
+   * @return false if this is the query's last hop and the neighbor certainly doesn't have a match
+   */
+  public boolean shouldForward(PeerID neighbor, int TTL, String keyword){
+    RouteTable table = received.get(neighbor);
+    if(TTL > 0 || table == null){
+      return true; // The neighbor may forward it on, or we don't know what it has
+    }
+    if(table.mightContain(keyword.toLowerCase())){
+      forwarded.incrementAndGet();
+      return true;
+    }
+    skipped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Decides whether a keyword search should be sent to a neighbor. Prefix terms can't be looked up in a table, so only
+   * the exact terms are checked.
+   * @param neighbor the neighbor
+   * @param TTL the TTL the neighbor would receive the search with
+   * @param terms the terms of the search
+   * @return false if this is the search's last hop and the neighbor certainly has no file matching every term
+   */
+  public boolean shouldForward(PeerID neighbor, int TTL, List<String> terms){
+    RouteTable table = received.get(neighbor);
+    if(TTL > 0 || table == null){
+      return true; // The neighbor may forward it on, or we don't know what it has
+    }
+    for(String term : terms){
+      if(!RouteTable.isPrefix(term) && !table.mightContain(term)){
+        skipped.incrementAndGet();
+        return false;
+      }
+    }
+    forwarded.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Takes in a table or patch sent by a neighbor
+   * @param neighbor the neighbor that sent it
+   * @param version the version of the neighbor's table
+   * @param base the version the patch applies to, -1 for a whole table
+   * @param data the deflated table or patch
+   * @return the version of the neighbor's table now held, -1 if the patch doesn't apply and the whole table is needed
+   */
+  public int receive(PeerID neighbor, int version, int base, byte[] data){
+    RouteTable held = received.get(neighbor);
+    if(base >= 0 && (held == null || held.getVersion() != base)){
+      return -1;
+    }
+    try {
+      received.put(neighbor, RouteTable.inflate(version, data, base >= 0 ? held : null));
+      return version;
+    } catch (IOException e){
+      e.printStackTrace();
+      received.remove(neighbor);
+      return -1;
+    }
+  }
+
+  // ***********
+  // Advertising
+  // ***********
+
+  /**
+   * Sends the table to every neighbor that doesn't hold the latest one, forever. Runs on its own thread, and wakes up
+   * early whenever the catalog changes.
+   */
+  public void advertise(){
+    // Give the neighbors a moment to start up before the first tables go out
+    try {
+      Thread.sleep(STARTUP_DELAY);
+    } catch (Exception e){
+      e.printStackTrace();
+    }
+
+    while(true){
+      RouteTable table = update();
+      for(PeerStub neighbor : peer.getNeighbors()){
+        RouteTable held = sent.get(neighbor.getID());
+        if(held == table){
+          continue; // Already up to date
+        }
+        if(!send(neighbor, table, held) && held != null){
+          send(neighbor, table, null); // The neighbor lost track of its copy, start over
+        }
+      }
+
+      synchronized(this){
+        try {
+          wait(ROUTE_INTERVAL);
+        } catch (InterruptedException e){
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Wakes up the advertiser after the catalog changed, so neighbors hear about new files right away
+   */
+  public synchronized void changed(){
+    notifyAll();
+  }
+
+  /**
+   * Rebuilds the local table if files were added since it was built
+   * @return the latest table
+   */
+  private RouteTable update(){
+    int changes = peer.getCatalog().getChanges();
+    if(local == null || changes != catalogChanges){
+      List<String> filenames = new ArrayList<String>();
+      for(DanFile danFile : peer.getCatalog().snapshot()){
+        filenames.add(danFile.getFilename());
+        if(danFile.getHash() != null){
+          filenames.add(ContentHash.PREFIX + danFile.getHash()); // So that queries by hash get through too
+        }
+      }
+      local = RouteTable.of(local == null ? 1 : local.getVersion() + 1, filenames);
+      catalogChanges = changes;
+    }
+    return local;
+  }
+
+  /**
+   * Sends a table to a neighbor
+   * @param neighbor the neighbor
+   * @param table the table to send
+   * @param held the table the neighbor holds, null to send the whole table
+   * @return true if the neighbor now holds the table
+   */
+  private boolean send(PeerStub neighbor, RouteTable table, RouteTable held){
+    byte[] data = table.deflate(held);
+    (held == null ? fullTables : patches).incrementAndGet();
+    bytesSent.addAndGet(data.length);
+
+    int ack = neighbor.routeTable(peer.getID(), table.getVersion(), held == null ? -1 : held.getVersion(), data);
+    if(ack == table.getVersion()){
+      sent.put(neighbor.getID(), table);
+      return true;
+    }
+    sent.remove(neighbor.getID());
+    return false;
+  }
+
+  /**
+   * Returns a summary of the routing tables for the stats
+   * @return the summary
+   */
+  public String print(){
+    RouteTable table = local;
+    StringBuilder sb = new StringBuilder();
+    if(table != null){
+      sb.append(String.format("  own table: version %d; %d keywords; %.2f%% full%n", table.getVersion(),
+          table.getKeywords(), table.fill() * 100));
+    }
+    sb.append(String.format("  sent: %d tables, %d patches, %d bytes; neighbor tables: %d%n", fullTables.get(),
+        patches.get(), bytesSent.get(), received.size()));
+    sb.append(String.format("  last hop queries: %d forwarded, %d skipped", forwarded.get(), skipped.get()));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * This class is used for ranged obtain replies. It is a self explanatory container holding the DanFile the other peer
+ * has, the full size of that file and how many bytes of the requested range were sent along with the reply, as well
+ * as how many of the pieces sent didn't match the Merkle root of the file and were left to be fetched again.
+ */
+public class RangeResult {
+  private DanFile danFile;
+  private long size;
+  private long length;
+  private int rejected;
+
+  // ****************
+  // Boilerplate Code
+  // ****************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public RangeResult(DanFile danFile, long size, long length) {
+    this.danFile = danFile;
+    this.size = size;
+    this.length = length;
+  }
+
+  public DanFile getDanFile() {
+    return danFile;
+  }
+
+  public void setDanFile(DanFile danFile) {
+    this.danFile = danFile;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public void setLength(long length) {
+    this.length = length;
+  }
+
+  public int getRejected() {
+    return rejected;
+  }
+
+  public void setRejected(int rejected) {
+    this.rejected = rejected;
+  }
+}
@@ -0,0 +1,230 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A RouteTable is a Bloom filter of the keywords of the files a peer shares. A peer sends its table to its neighbors,
+ * so that they can tell when a query can't possibly match anything the peer has and leave it out. A table never says
+ * a file is missing when it's there, but it may say a file might be there when it isn't.
+ *
+ * Tables are sent deflated. Once a neighbor holds a table, a change is sent as the exclusive or of the old and new
+ * table, which is almost all zeros and so deflates to a few bytes.
+ */
+public class RouteTable {
+  public static final int BITS = 1 << 16; // Size of the table in bits
+  public static final int HASHES = 4; // Bits set for every keyword
+
+  private byte[] bits = new byte[BITS / 8];
+  private int version; // Which table this is, counted up by the peer that made it
+  private int keywords; // How many keywords were added
+
+  /**
+   * Creates an empty table
+   * @param version which table this is
+   */
+  public RouteTable(int version){
+    this.version = version;
+  }
+
+  /**
+   * Creates a table holding the keywords of the given files
+   * @param version which table this is
+   * @param filenames names of the files
+   * @return the table
+   */
+  public static RouteTable of(int version, List<String> filenames){
+    RouteTable table = new RouteTable(version);
+    for(String filename : filenames){
+      for(String keyword : keywords(filename)){
+        table.add(keyword);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Splits a filename into the keywords it can be found by: the whole name, and every run of letters and digits in it
+   * @param filename the name of the file
+   * @return the keywords, in lower case
+   */
+  public static List<String> keywords(String filename){
+    List<String> keywords = new ArrayList<String>();
+    String name = filename.toLowerCase();
+    keywords.add(name);
+    for(String word : name.split("[^\\p{L}\\p{N}]+")){
+      if(!word.isEmpty() && !word.equals(name)){
+        keywords.add(word);
+      }
+    }
+    return keywords;
+  }
+
+  /**
+   * Splits a search into its terms. A term is matched against the keywords of a file, so it is either a whole filename
+   * or a word in one. A term ending in * matches every keyword starting with the rest of it.
+   * @param search the search as typed by the user
+   * @return the terms, in lower case
+   */
+  public static List<String> terms(String search){
+    List<String> terms = new ArrayList<String>();
+    for(String term : search.toLowerCase().trim().split("\\s+")){
+      if(!term.isEmpty() && !term.equals("*")){
+        terms.add(term);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Checks whether a search term matches keywords by prefix instead of exactly
+   * @param term the term
+   * @return true if the term ends in *
+   */
+  public static boolean isPrefix(String term){
+    return term.endsWith("*");
+  }
+
+  /**
+   * Adds a keyword to the table
+   * @param keyword the keyword, in lower case
+   */
+  public void add(String keyword){
+    long hash = hash(keyword);
+    for(int i = 0; i < HASHES; i++){
+      int bit = bit(hash, i);
+      bits[bit >>> 3] |= 1 << (bit & 7);
+    }
+    keywords++;
+  }
+
+  /**
+   * Checks whether a keyword might be in the table
+   * @param keyword the keyword, in lower case
+   * @return false if the keyword is certainly not in the table
+   */
+  public boolean mightContain(String keyword){
+    long hash = hash(keyword);
+    for(int i = 0; i < HASHES; i++){
+      int bit = bit(hash, i);
+      if((bits[bit >>> 3] & (1 << (bit & 7))) == 0){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Deflates the table for sending
+   * @param base the table the neighbor already holds, or null to send the whole table
+   * @return the table, or its difference from the base, deflated
+   */
+  public byte[] deflate(RouteTable base){
+    byte[] input = bits;
+    if(base != null){
+      input = new byte[bits.length];
+      for(int i = 0; i < input.length; i++){
+        input[i] = (byte) (bits[i] ^ base.bits[i]);
+      }
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    deflater.setInput(input);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while(!deflater.finished()){
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  /**
+   * Rebuilds a table sent by deflate()
+   * @param version which table it is
+   * @param data the deflated table or difference
+   * @param base the table the difference is from, or null if the whole table was sent
+   * @return the table
+   * @throws IOException if the data isn't a deflated table
+   */
+  public static RouteTable inflate(int version, byte[] data, RouteTable base) throws IOException {
+    RouteTable table = new RouteTable(version);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      int length = 0;
+      while(length < table.bits.length && !inflater.finished()){
+        int inflated = inflater.inflate(table.bits, length, table.bits.length - length);
+        if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+          break;
+        }
+        length += inflated;
+      }
+      if(length != table.bits.length || !inflater.finished()){
+        throw new IOException("Route table has the wrong size");
+      }
+    } catch (DataFormatException e){
+      throw new IOException("Route table is corrupted", e);
+    } finally {
+      inflater.end();
+    }
+
+    if(base != null){
+      for(int i = 0; i < table.bits.length; i++){
+        table.bits[i] ^= base.bits[i];
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Hashes a keyword with 64 bit FNV-1a
+   */
+  private static long hash(String keyword){
+    long hash = 0xCBF29CE484222325L;
+    for(int i = 0; i < keyword.length(); i++){
+      hash ^= keyword.charAt(i);
+      hash *= 0x100000001B3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Picks the i-th bit for a hash, combining its two halves so that one hash gives all the bits
+   */
+  private static int bit(long hash, int i){
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    return (h1 + i * h2) & (BITS - 1);
+  }
+
+  /**
+   * Works out what share of the bits are set, which is what makes the table give false positives
+   * @return the fraction of bits set
+   */
+  public double fill(){
+    int set = 0;
+    for(byte b : bits){
+      set += Integer.bitCount(b & 0xFF);
+    }
+    return (double) set / BITS;
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public int getVersion(){
+    return version;
+  }
+
+  public int getKeywords(){
+    return keywords;
+  }
+}
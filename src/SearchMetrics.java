@@ -0,0 +1,163 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SearchMetrics counts what each way of searching costs and how quickly it finds files, so flooding, expanding rings
+ * and random walkers can be compared on the same topology. Every peer counts the query messages it sends, whether it
+ * started the search or passes it on, so adding up the counts of every peer gives the cost of the searches. The peer
+ * that started a search also times how long the first hit took to come back.
+ *
+ * A search with no hit after Peer.MESSAGE_EXPIRY counts as unanswered, since hits can't find their way back once the
+ * peers along the way have forgotten it. If more than MAX_PENDING searches are waiting for their first hit, the oldest
+ * one stops being timed and counts as dropped.
+ */
+public class SearchMetrics {
+  public static final String[] MODES = {"flood", "expanding", "walk"}; // Names of Peer.FLOOD, EXPANDING and WALK
+  public static final int MAX_PENDING = 1024; // Most searches waiting for their first hit that are timed at once
+
+  private static final AtomicLong queries = new AtomicLong(); // Query messages sent, by flooding or rings
+  private static final AtomicLong walkers = new AtomicLong(); // Walker messages sent
+  private static final AtomicLong checks = new AtomicLong(); // Walkers checking back with the originator
+  private static final AtomicLong cancels = new AtomicLong(); // Cancel messages sent, by the originator or passed on
+  private static final AtomicLong direct = new AtomicLong(); // Hits sent straight to the originator
+  private static final AtomicLong fellBack = new AtomicLong(); // Direct hits sent along the reverse path after all
+
+  // Searches waiting for their first hit, oldest first. Guarded by started, like the counts below.
+  private static final LinkedHashMap<MessageID, Pending> pending = new LinkedHashMap<MessageID, Pending>();
+  private static final long[] started = new long[MODES.length]; // Searches started, by mode
+  private static final long[] found = new long[MODES.length]; // Searches that got a hit, by mode
+  private static final long[] unanswered = new long[MODES.length]; // Searches that expired without a hit, by mode
+  private static final long[] dropped = new long[MODES.length]; // Searches no longer timed to make room, by mode
+  private static final long[] totalTime = new long[MODES.length]; // Time to first hit summed, by mode, in nanoseconds
+  private static final long[] maxTime = new long[MODES.length]; // Longest time to first hit, by mode, in nanoseconds
+
+  /**
+   * Starts timing a search this peer sent
+   * @param messageID the ID of the search
+   * @param mode how it is sent, Peer.FLOOD, EXPANDING or WALK
+   */
+  public static void started(MessageID messageID, int mode){
+    synchronized(started){
+      started[mode]++;
+      expire(System.nanoTime());
+      pending.put(messageID, new Pending(mode));
+      if(pending.size() > MAX_PENDING){
+        Iterator<Pending> oldest = pending.values().iterator();
+        dropped[oldest.next().mode]++;
+        oldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Records a hit for a search this peer sent. Only the first hit of each search is timed.
+   * @param messageID the ID of the search
+   */
+  public static void hit(MessageID messageID){
+    synchronized(started){
+      Pending search = pending.remove(messageID);
+      if(search == null){
+        return;
+      }
+      long time = System.nanoTime() - search.start;
+      found[search.mode]++;
+      totalTime[search.mode] += time;
+      maxTime[search.mode] = Math.max(maxTime[search.mode], time);
+    }
+  }
+
+  /**
+   * Counts the searches that waited too long for their first hit as unanswered. The caller must hold the lock on
+   * started.
+   * @param now the current time, in nanoseconds
+   */
+  private static void expire(long now){
+    Iterator<Pending> iterator = pending.values().iterator();
+    while(iterator.hasNext()){
+      Pending search = iterator.next();
+      if(now - search.start < Peer.MESSAGE_EXPIRY * 1000000){
+        break; // The rest are newer
+      }
+      unanswered[search.mode]++;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Counts query messages sent to neighbors
+   * @param count how many
+   */
+  public static void queries(int count){
+    queries.addAndGet(count);
+  }
+
+  /**
+   * Counts walker messages sent to neighbors
+   * @param count how many
+   */
+  public static void walkers(int count){
+    walkers.addAndGet(count);
+  }
+
+  /**
+   * Counts a walker checking back with its originator
+   */
+  public static void check(){
+    checks.incrementAndGet();
+  }
+
+  /**
+   * Counts cancel messages sent to neighbors
+   * @param count how many
+   */
+  public static void cancels(int count){
+    cancels.addAndGet(count);
+  }
+
+  /**
+   * Counts a hit sent straight to the originator
+   * @param delivered false if it couldn't be and went along the reverse path instead
+   */
+  public static void direct(boolean delivered){
+    direct.incrementAndGet();
+    if(!delivered){
+      fellBack.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a summary of the searches for the stats
+   * @return the summary
+   */
+  public static String print(){
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("  sent: %d queries, %d walkers, %d check-backs, %d cancels, %d direct hits (%d fell back)",
+        queries.get(), walkers.get(), checks.get(), cancels.get(), direct.get(), fellBack.get()));
+    synchronized(started){
+      expire(System.nanoTime());
+      for(int mode = 0; mode < MODES.length; mode++){
+        if(started[mode] == 0){
+          continue;
+        }
+        double average = found[mode] == 0 ? 0 : totalTime[mode] / 1e6 / found[mode];
+        sb.append(String.format("%n  %-10s started: %d; found: %d; unanswered: %d; dropped: %d; first hit avg %.1f ms,"
+            + " max %.1f ms", MODES[mode], started[mode], found[mode], unanswered[mode], dropped[mode], average,
+            maxTime[mode] / 1e6));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A search waiting for its first hit
+   */
+  private static class Pending {
+    private int mode; // How the search was sent
+    private long start = System.nanoTime(); // When it was sent
+
+    public Pending(int mode){
+      this.mode = mode;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * This class is used for keyword search replies. It is a self explanatory container holding the name, size and version
+ * of one file that matched a search.
+ */
+public class SearchResult {
+  private String filename;
+  private long size;
+  private int version;
+
+  // ****************
+  // Boilerplate Code
+  // ****************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public SearchResult(String filename, long size, int version) {
+    this.filename = filename;
+    this.size = size;
+    this.version = version;
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  public void setFilename(String filename) {
+    this.filename = filename;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
+
+  public String toString(){
+    return filename + " (" + size + " bytes, version " + version + ")";
+  }
+}
@@ -0,0 +1,55 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A SerialExecutor runs tasks on another executor, one at a time and in the order they were handed to it. Each
+ * connection served with a thread per connection has one, so the messages a neighbor sent over it are handled in the
+ * order it sent them, while the connection goes on reading the next ones.
+ */
+public class SerialExecutor implements Executor {
+  private Executor executor; // Runs the tasks
+  private ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>(); // Tasks waiting, oldest first
+  private boolean running; // Set while a task of this executor is running or about to
+
+  /**
+   * Creates a SerialExecutor with nothing to run
+   * @param executor the executor that runs the tasks
+   */
+  public SerialExecutor(Executor executor){
+    this.executor = executor;
+  }
+
+  /**
+   * Runs the task once every task handed over before it has run
+   * @param task the task to run
+   */
+  @Override
+  public synchronized void execute(Runnable task){
+    tasks.add(task);
+    if(!running){
+      running = true;
+      executor.execute(this::drain);
+    }
+  }
+
+  /**
+   * Runs the waiting tasks until there are none left
+   */
+  private void drain(){
+    while(true){
+      Runnable task;
+      synchronized(this){
+        task = tasks.poll();
+        if(task == null){
+          running = false;
+          return;
+        }
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e){
+        e.printStackTrace(); // Don't let one task hold up the ones behind it
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The SerializedCodec packs RPCs with Java serialization, the way every message was sent before the binary protocol.
+ * It is spoken on unframed connections and on framed connections with peers that only know protocol version 1.
+ */
+public class SerializedCodec {
+
+  /**
+   * Writes each parameter as a serialized object, or as a primitive where the original protocol did
+   */
+  public static class Writer implements MessageWriter {
+    private ObjectOutputStream os;
+
+    public Writer(OutputStream out) throws IOException {
+      this.os = new ObjectOutputStream(out);
+    }
+
+    public void writeRpc(String rpc) throws IOException {
+      os.writeObject(rpc);
+    }
+
+    public void writePeerID(PeerID peerID) throws IOException {
+      os.writeObject(peerID);
+    }
+
+    public void writeMessageID(MessageID messageID) throws IOException {
+      os.writeObject(messageID);
+    }
+
+    public void writeTTL(int TTL) throws IOException {
+      os.writeInt(TTL);
+    }
+
+    public void writeInt(int value) throws IOException {
+      os.writeInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+      os.writeLong(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+      os.writeBoolean(value);
+    }
+
+    public void writeString(String value) throws IOException {
+      os.writeObject(value);
+    }
+
+    public void writeBytes(byte[] value) throws IOException {
+      os.writeObject(value);
+    }
+
+    public void writeDanFile(DanFile danFile) throws IOException {
+      os.writeObject(danFile);
+    }
+
+    public void writePollResult(PollResult result) throws IOException {
+      os.writeObject(result);
+    }
+
+    public void flush() throws IOException {
+      os.flush();
+    }
+  }
+
+  /**
+   * Reads parameters written by a SerializedCodec.Writer
+   */
+  public static class Reader implements MessageReader {
+    private ObjectInputStream is;
+
+    public Reader(InputStream in) throws IOException {
+      this.is = new ObjectInputStream(in);
+    }
+
+    public String readRpc() throws IOException {
+      return (String) readObject();
+    }
+
+    public PeerID readPeerID() throws IOException {
+      return (PeerID) readObject();
+    }
+
+    public MessageID readMessageID() throws IOException {
+      return (MessageID) readObject();
+    }
+
+    public int readTTL() throws IOException {
+      return is.readInt();
+    }
+
+    public int readInt() throws IOException {
+      return is.readInt();
+    }
+
+    public long readLong() throws IOException {
+      return is.readLong();
+    }
+
+    public boolean readBoolean() throws IOException {
+      return is.readBoolean();
+    }
+
+    public String readString() throws IOException {
+      return (String) readObject();
+    }
+
+    public byte[] readBytes() throws IOException {
+      return (byte[]) readObject();
+    }
+
+    public DanFile readDanFile() throws IOException {
+      return (DanFile) readObject();
+    }
+
+    public PollResult readPollResult() throws IOException {
+      return (PollResult) readObject();
+    }
+
+    /**
+     * Reads the next serialized object
+     * @return the object read
+     * @throws IOException if the stream doesn't hold a known object
+     */
+    private Object readObject() throws IOException {
+      try {
+        return is.readObject();
+      } catch (ClassNotFoundException e){
+        throw new IOException("Unknown class in message", e);
+      }
+    }
+  }
+}
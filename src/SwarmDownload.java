@@ -0,0 +1,451 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SwarmDownload fetches one file from every peer that answered a query for it, instead of only the first one. Hits
+ * are collected for a short window, then each source is asked which version and size of the file it has, and the
+ * sources with the newest version split the file between them: the pieces of the file that are still missing are kept
+ * in a shared queue and each source takes the next piece as soon as it is done with the last one, so faster sources end
+ * up sending more of the file. A source that fails, sends something unexpected, or falls far behind the fastest one is
+ * dropped and its pieces are left for the others. A source that finds the queue empty waits while others still have
+ * pieces in flight, so a piece whose source fails at the very end still has someone to fetch it. Hits that arrive while
+ * the download is running join it as extra sources. The pieces are written into a PartialFile, so a swarm that loses
+ * every source can be resumed by the next one. The file is claimed with the peer's DownloadManager first, so a swarm
+ * never writes the same file as another download. When the file has a Merkle root, a piece that doesn't match it goes
+ * back in the queue to be fetched again, most likely from another source, and a source that sends ContentHash.ATTEMPTS
+ * such pieces is dropped.
+ *
+ * A query for a hash (see ContentHash.PREFIX) can be answered by peers that have the same content under different
+ * names and versions, so each source is asked for the file by the name and version it has, and a source counts as
+ * having the same file when its hash matches. The file is saved under the name of the version picked.
+ */
+public class SwarmDownload {
+  public static final long COLLECT_WINDOW = 500; // How long to wait for more hits after the first one, in milliseconds
+  public static final long PROBE_TIMEOUT = 5000; // How long a source may take to say what it has, in milliseconds
+  public static final int MAX_SOURCES = 8; // Most sources downloaded from at once
+  public static final double SLOW_FACTOR = 4; // A source this many times slower than the fastest one is dropped
+  public static final int MIN_PIECES = 2; // Pieces a source must have sent before its speed is judged
+
+  private static final MeteredExecutor workers = MeteredExecutor.create("swarm"); // Runs probes and source workers
+
+  private Peer peer; // The peer downloading the file
+  private MessageID messageID; // The query the hits answer
+  private String filename; // Name the file is saved under
+
+  // Sources that haven't been probed yet, with the name each has the file under
+  private Map<PeerID, String> pending = new LinkedHashMap<PeerID, String>();
+  private Map<PeerID, Source> sources = new LinkedHashMap<PeerID, Source>(); // Sources that were probed
+  private boolean started; // Set once the collect window is over
+
+  private DanFile danFile; // The version of the file being downloaded
+  private long size; // Size of the file being downloaded
+  private int pieceCount; // How many pieces were missing when the download began
+  private ConcurrentLinkedQueue<Integer> pieces = new ConcurrentLinkedQueue<Integer>(); // Pieces nobody is fetching
+  private int done; // Pieces written to the file
+  private int inFlight; // Pieces a source is fetching right now
+  private int active; // Sources still fetching pieces
+  private PartialFile partial; // The file being written
+
+  /**
+   * Creates a swarm download for the file a query asked for
+   * @param peer the peer downloading the file
+   * @param messageID the query the hits answer
+   * @param filename the name of the file, as the first hit gave it
+   */
+  public SwarmDownload(Peer peer, MessageID messageID, String filename){
+    this.peer = peer;
+    this.messageID = messageID;
+    this.filename = filename;
+  }
+
+  /**
+   * Starts collecting hits on another thread. The download begins once the collect window is over.
+   */
+  public void start(){
+    workers.execute(this::run);
+  }
+
+  /**
+   * Adds a peer that answered the query. Before the download begins it is probed along with the others, afterwards it
+   * is probed on its own and joins if it has the same version of the file.
+   * @param address the peer that has the file
+   * @param filename the name the peer has the file under
+   */
+  public synchronized void addSource(PeerID address, String filename){
+    if(sources.containsKey(address) || pending.containsKey(address)){
+      return; // Same peer reached over another path
+    }
+    if(!started){
+      pending.put(address, filename);
+    } else if(danFile != null && done < pieceCount && active < MAX_SOURCES){
+      sources.put(address, null);
+      workers.execute(() -> join(address, filename));
+    }
+  }
+
+  /**
+   * Collects hits, picks the version to download, fetches the pieces and hands the finished file to the peer
+   */
+  private void run(){
+    try {
+      Thread.sleep(COLLECT_WINDOW);
+    } catch (InterruptedException e){
+      e.printStackTrace();
+    }
+
+    // Ask every source what it has, all at once so that one slow source doesn't hold up the others
+    Map<PeerID, String> names;
+    synchronized(this){
+      started = true;
+      names = new LinkedHashMap<PeerID, String>(pending);
+      pending.clear();
+    }
+    List<PeerID> probed = new ArrayList<PeerID>(names.keySet());
+    List<CompletableFuture<RangeResult>> probes = new ArrayList<CompletableFuture<RangeResult>>();
+    for(PeerID address : probed){
+      String name = names.get(address);
+      probes.add(CompletableFuture.supplyAsync(() -> new PeerStub(address).obtainRange(name, -1, 0, 0, null),
+          workers));
+    }
+
+    // Keep the sources that have the newest version of the file
+    RangeResult best = null;
+    List<RangeResult> results = new ArrayList<RangeResult>();
+    for(CompletableFuture<RangeResult> probe : probes){
+      RangeResult result;
+      try {
+        result = probe.get(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (Exception e){
+        result = null; // The source didn't answer in time
+      }
+      results.add(result);
+      if(result != null && (best == null || result.getDanFile().getVersion() > best.getDanFile().getVersion())){
+        best = result;
+      }
+    }
+    if(best == null){
+      System.out.println("None of the " + probed.size() + " peers that had " + filename + " could send it.");
+      return;
+    }
+
+    // Save the file under the name of the version picked, which the PartialFile is written under too
+    synchronized(this){
+      filename = best.getDanFile().getFilename();
+    }
+
+    // Leave the file to the download that is already fetching it, if any
+    DownloadManager.Transfer claim = peer.getDownloads().claim(filename, best.getDanFile().getVersion());
+    if(claim == null){
+      System.out.println("Already downloading " + filename + ", leaving it to that download.");
+      return;
+    }
+    boolean finished = false;
+    try {
+      finished = download(probed, results, best, claim);
+    } finally {
+      peer.getDownloads().finish(claim, finished);
+    }
+  }
+
+  /**
+   * Fetches the pieces from the sources that have the chosen version and hands the finished file to the peer
+   * @param probed the sources that were probed
+   * @param results what each of them answered, null if it didn't
+   * @param best the answer with the newest version
+   * @param claim the claim on the file, told which file is being written
+   * @return true if the file was downloaded
+   */
+  private boolean download(List<PeerID> probed, List<RangeResult> results, RangeResult best,
+      DownloadManager.Transfer claim){
+    try {
+      // Pick up any earlier attempt at the same version and queue the pieces it is missing
+      PartialFile opened = PartialFile.open(best.getDanFile(), best.getSize());
+
+      synchronized(this){
+        partial = opened;
+        claim.opened(opened);
+        danFile = best.getDanFile();
+        size = best.getSize();
+        pieces.addAll(partial.missingPieces());
+        pieceCount = pieces.size();
+        if(pieceCount < partial.getPieceCount()){
+          System.out.println("Resuming " + filename + ": " + pieceCount + " of " + partial.getPieceCount()
+              + " pieces left.");
+        }
+
+        // Start a worker for each matching source
+        for(int i = 0; i < probed.size(); i++){
+          if(sameFile(results.get(i)) && active < MAX_SOURCES){
+            Source source = new Source(probed.get(i), results.get(i).getDanFile());
+            sources.put(source.address, source);
+            active++;
+            workers.execute(() -> fetch(source));
+          }
+        }
+
+        System.out.println("Downloading " + filename + " (" + size + " bytes, " + partial.getPieceCount()
+            + " pieces) from " + active + " of " + probed.size() + " peers.");
+
+        // Wait until every piece is written or every source is gone
+        while(done < pieceCount && active > 0){
+          wait();
+        }
+      }
+    } catch (Exception e){
+      e.printStackTrace();
+      return false;
+    } finally {
+      if(partial != null){
+        partial.close(); // Keeps the state file if pieces are missing
+      }
+    }
+
+    synchronized(this){
+      if(done < pieceCount){
+        System.out.println("Lost every source of " + filename + " with " + (pieceCount - done) + " pieces left.");
+        return false;
+      }
+    }
+
+    // Report what each source sent and hand the file to the peer
+    PeerID address = null;
+    StringBuilder report = new StringBuilder();
+    synchronized(this){
+      for(Source source : sources.values()){
+        if(source == null){
+          continue;
+        }
+        report.append("\n  ").append(source.print());
+        if(address == null || source.address.equals(danFile.getOriginServer())){
+          address = source.address;
+        }
+      }
+    }
+    System.out.println("Swarm download of " + filename + " finished:" + report);
+
+    // Throw the file away if it doesn't match the hash the sources sent, so it isn't served onward. Every piece already
+    // matched the root if there is one.
+    if(danFile.getRoot() == null && !ContentHash.verify(danFile, new File(Peer.OTHER_FILES_DIR + filename))){
+      System.out.println("Swarm download of " + filename + " doesn't match its hash, throwing it away.");
+      return false;
+    }
+    peer.downloaded(filename, danFile, address);
+    return true;
+  }
+
+  /**
+   * Probes a source that answered after the download began and starts fetching from it if it has the same file
+   * @param address the late source
+   * @param name the name it has the file under
+   */
+  private void join(PeerID address, String name){
+    RangeResult result = new PeerStub(address).obtainRange(name, -1, 0, 0, null);
+    synchronized(this){
+      if(!sameFile(result) || done >= pieceCount || active == 0 || active >= MAX_SOURCES){
+        return; // Different version, or too late to help
+      }
+      Source source = new Source(address, result.getDanFile());
+      sources.put(address, source);
+      active++;
+      workers.execute(() -> fetch(source));
+    }
+  }
+
+  /**
+   * Fetches pieces from a single source until there are none left or the source is dropped
+   * @param source the source to fetch from
+   */
+  private void fetch(Source source){
+    PeerStub stub = new PeerStub(source.address);
+    Integer piece;
+    while((piece = take()) != null){
+      long offset = partial.offset(piece);
+      long length = partial.length(piece);
+
+      long start = System.nanoTime();
+      RangeResult result = stub.obtainRange(source.filename, source.version, offset, length, partial);
+      long elapsed = System.nanoTime() - start;
+
+      if(!sameFile(result) || result.getLength() != length){
+        // The source failed or changed its file, or is still downloading it and doesn't have the piece yet. Leave the
+        // piece for someone else.
+        putBack(piece);
+        drop(source, sameFile(result) ? "doesn't have the rest yet" : "failed");
+        return;
+      }
+      if(result.getRejected() > 0){
+        // The piece didn't match the root, put it back for the next source to take
+        synchronized(this){
+          putBack(piece);
+          source.rejected++;
+        }
+        if(source.rejected >= ContentHash.ATTEMPTS){
+          drop(source, "sent pieces that didn't match their hashes");
+          return;
+        }
+        continue;
+      }
+
+      synchronized(this){
+        source.pieces++;
+        source.bytes += length;
+        source.nanos += elapsed;
+        inFlight--;
+        done++;
+        notifyAll();
+
+        // Drop sources that fall far behind, as long as someone else can take over their pieces
+        if(isSlow(source)){
+          drop(source, "too slow");
+          return;
+        }
+      }
+    }
+    drop(source, null);
+  }
+
+  /**
+   * Takes the next piece nobody is fetching. While other sources still have pieces in flight, waits for them instead of
+   * stopping, since a piece whose source fails goes back in the queue and would otherwise be left to nobody.
+   * @return the piece, null once every piece is written
+   */
+  private synchronized Integer take(){
+    while(true){
+      Integer piece = pieces.poll();
+      if(piece != null){
+        inFlight++;
+        return piece;
+      }
+      if(inFlight == 0){
+        return null;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e){
+        e.printStackTrace();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Puts a piece that wasn't written back in the queue, for the next source to take
+   * @param piece the piece
+   */
+  private synchronized void putBack(Integer piece){
+    pieces.add(piece);
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Stops fetching from a source
+   * @param source the source to stop fetching from
+   * @param reason why it is dropped, null if it simply ran out of pieces
+   */
+  private synchronized void drop(Source source, String reason){
+    if(source.dropped){
+      return;
+    }
+    source.dropped = true;
+    source.reason = reason;
+    active--;
+    if(reason != null){
+      System.out.println("Dropped " + source.address + " from the download of " + filename + ": " + reason + ".");
+    }
+    notifyAll();
+  }
+
+  /**
+   * Checks whether a source is so much slower than the fastest other source that its pieces are better left to others
+   * @param source the source to check
+   * @return true if the source should be dropped
+   */
+  private synchronized boolean isSlow(Source source){
+    if(source.pieces < MIN_PIECES){
+      return false;
+    }
+    double fastest = 0;
+    for(Source other : sources.values()){
+      if(other != null && other != source && !other.dropped && other.pieces >= MIN_PIECES){
+        fastest = Math.max(fastest, other.rate());
+      }
+    }
+    return fastest > 0 && source.rate() * SLOW_FACTOR < fastest;
+  }
+
+  /**
+   * Checks whether a reply is for the same file as the one being downloaded: the same content if both have a hash,
+   * otherwise the same version, and the same size either way
+   * @param result the reply to check
+   * @return true if the reply matches
+   */
+  private synchronized boolean sameFile(RangeResult result){
+    if(result == null || danFile == null || result.getSize() != size){
+      return false;
+    }
+    DanFile other = result.getDanFile();
+    if(danFile.getHash() != null && other.getHash() != null){
+      return danFile.getHash().equals(other.getHash());
+    }
+    return other.getVersion() == danFile.getVersion();
+  }
+
+  /**
+   * One peer the file is downloaded from, along with how much it sent and how fast
+   */
+  private static class Source {
+    private PeerID address; // The peer
+    private String filename; // Name the peer has the file under
+    private int version; // Version of the file at the peer, asked for with every piece
+    private int pieces; // Pieces it sent
+    private long bytes; // Bytes it sent
+    private long nanos; // Time spent receiving those bytes
+    private int rejected; // Pieces it sent that didn't match the root
+    private boolean dropped; // Set once no more pieces are fetched from it
+    private String reason; // Why it was dropped, null if it finished normally
+
+    public Source(PeerID address, DanFile danFile){
+      this.address = address;
+      this.filename = danFile.getFilename();
+      this.version = danFile.getVersion();
+    }
+
+    /**
+     * Returns how fast the source sent its pieces
+     * @return bytes per nanosecond
+     */
+    public double rate(){
+      return nanos == 0 ? 0 : (double) bytes / nanos;
+    }
+
+    /**
+     * Returns a one line summary of the source for the download report
+     * @return the summary
+     */
+    public String print(){
+      return String.format("%-22s %4d pieces %10d bytes %8.1f KB/s%s%s", address, pieces, bytes, rate() * 1e9 / 1024,
+          rejected > 0 ? ", " + rejected + " rejected" : "", reason != null ? " (dropped: " + reason + ")" : "");
+    }
+  }
+
+  // *******************
+  // Getters and Setters
+  // *******************
+
+  // Comments omitted because this is generic, boilerplate code
+
+  public MessageID getMessageID(){
+    return messageID;
+  }
+
+  public String getFilename(){
+    return filename;
+  }
+}
@@ -0,0 +1,107 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compares the old 4 KB buffer loop used by obtain against FileChannel.transferTo / transferFrom by sending a file
+ * over a loopback connection. Usage: java TransferBenchmark [size in MB] [rounds]
+ */
+public class TransferBenchmark {
+  public static void main(String[] args) throws Exception {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long size = megabytes * 1024L * 1024L;
+
+    // Create the file to send
+    File source = File.createTempFile("danutella-bench", ".src");
+    File target = File.createTempFile("danutella-bench", ".dst");
+    source.deleteOnExit();
+    target.deleteOnExit();
+    try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+      byte[] block = new byte[1024 * 1024];
+      for(int i = 0; i < block.length; i++){
+        block[i] = (byte) i;
+      }
+      for(int i = 0; i < megabytes; i++){
+        raf.write(block);
+      }
+    }
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress("localhost", 0));
+    int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+    System.out.println("Sending " + megabytes + " MB over loopback, best of " + rounds + " rounds");
+    for(boolean zeroCopy : new boolean[]{false, true}){
+      long best = Long.MAX_VALUE;
+      for(int round = 0; round < rounds; round++){
+        // Upload on a separate thread, just like the PeerSkeleton
+        Thread uploader = new Thread(() -> {
+          try (SocketChannel channel = server.accept()) {
+            if(zeroCopy){
+              try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while(position < size){
+                  position += file.transferTo(position, size - position, channel);
+                }
+              }
+            } else {
+              try (FileInputStream fis = new FileInputStream(source)) {
+                OutputStream os = channel.socket().getOutputStream();
+                int count;
+                byte[] buffer = new byte[4096];
+                while((count = fis.read(buffer)) > 0){
+                  os.write(buffer, 0, count);
+                }
+              }
+            }
+          } catch (Exception e){
+            e.printStackTrace();
+          }
+        });
+        uploader.start();
+
+        // Download on this thread, just like the PeerStub
+        long start = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+          if(zeroCopy){
+            try (FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+              file.write(ByteBuffer.wrap(new byte[1]), size - 1); // Preallocate
+              long position = 0;
+              while(position < size){
+                position += file.transferFrom(channel, position, size - position);
+              }
+            }
+          } else {
+            try (FileOutputStream fos = new FileOutputStream(target)) {
+              InputStream is = channel.socket().getInputStream();
+              int count;
+              byte[] buffer = new byte[4096];
+              while((count = is.read(buffer)) > 0){
+                fos.write(buffer, 0, count);
+              }
+            }
+          }
+        }
+        uploader.join();
+        best = Math.min(best, System.nanoTime() - start);
+      }
+
+      double seconds = best / 1e9;
+      System.out.printf("  %-24s %8.1f MB/s (%.3f s)%n", zeroCopy ? "transferTo/transferFrom" : "4 KB buffer loop",
+          megabytes / seconds, seconds);
+    }
+
+    server.close();
+  }
+}